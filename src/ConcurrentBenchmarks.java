@@ -0,0 +1,267 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * ConcurrentBenchmarks
+ *
+ * Measures how read throughput scales with threads, on a mix of 95% searches
+ * and 5% writes (inserts and deletes in equal parts) of random keys, for
+ * ConcurrentRBTree and for an RBTree behind a single synchronized block.
+ *
+ * Then measures how write throughput scales, on an ingest of only inserts
+ * and deletes, for ConcurrentRBTree and for a ShardedRBTree with a shard
+ * per thread - and for a DurableRBTree with each of its sync policies.
+ *
+ * Every configuration runs WARMUP_MILLIS unmeasured, then MEASURED_MILLIS
+ * measured.
+ *
+ * usage: java ConcurrentBenchmarks [size] [max-threads]
+ *
+ */
+
+public class ConcurrentBenchmarks {
+	private static final int DEFAULT_SIZE = 1000000;
+	private static final int WARMUP_MILLIS = 1000;
+	private static final int MEASURED_MILLIS = 2000;
+	// out of 100 operations, in the read mix and in the ingest:
+	private static final int WRITE_PERCENT = 5;
+	private static final int INGEST_WRITE_PERCENT = 100;
+
+	// results are added here so the JIT can't drop the measured calls:
+	public static volatile long sink;
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+		int maxThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		System.out.printf("%-14s %8s %16s %16s\n", "tree", "threads", "reads/sec", "writes/sec");
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			for (Target target : new Target[] {new StampedTarget(size), new SynchronizedTarget(size)}) {
+				report(target, threads, run(target, threads, size, WRITE_PERCENT));
+			}
+		}
+
+		System.out.println();
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			for (Target target : new Target[] {new StampedTarget(size), new ShardedTarget(size, threads)}) {
+				report(target, threads, run(target, threads, size, INGEST_WRITE_PERCENT));
+			}
+		}
+
+		System.out.println();
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			for (DurableRBTree.SyncPolicy policy : DurableRBTree.SyncPolicy.values()) {
+				DurableTarget target = new DurableTarget(size, policy);
+				try {
+					report(target, threads, run(target, threads, size, INGEST_WRITE_PERCENT));
+				} finally {
+					target.close();
+				}
+			}
+		}
+	}
+
+	private static void report(Target target, int threads, long[] counts) {
+		System.out.printf("%-14s %8d %16.0f %16.0f\n", target.name, threads,
+				counts[0] * 1000.0 / MEASURED_MILLIS, counts[1] * 1000.0 / MEASURED_MILLIS);
+	}
+
+	// runs the mix on the given number of threads, returns {reads, writes} measured
+	private static long[] run(final Target target, int threads, final int size, final int writePercent) throws InterruptedException {
+		final AtomicBoolean measuring = new AtomicBoolean(false);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong writes = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			final long seed = 0x9E3779B97F4A7C15L * (t + 1);
+			new Thread() {
+				public void run() {
+					long random = seed;
+					long myReads = 0;
+					long myWrites = 0;
+					long found = 0;
+					boolean counted = false;
+
+					while (running.get()) {
+						if (!counted && measuring.get()) {
+							// the warmup is over, count from here
+							myReads = 0;
+							myWrites = 0;
+							counted = true;
+						}
+
+						// xorshift - no shared state between threads
+						random ^= random << 13;
+						random ^= random >>> 7;
+						random ^= random << 17;
+						int key = (int)((random >>> 33) % (2L * size));
+						int choice = (int)((random >>> 1) % 100);
+
+						if (choice < writePercent) {
+							if ((choice & 1) == 0) {
+								target.insert(key, "value");
+							} else {
+								target.delete(key);
+							}
+							myWrites++;
+						} else {
+							if (target.search(key) != null) {
+								found++;
+							}
+							myReads++;
+						}
+					}
+
+					reads.addAndGet(myReads);
+					writes.addAndGet(myWrites);
+					sink += found;
+					done.countDown();
+				}
+			}.start();
+		}
+
+		Thread.sleep(WARMUP_MILLIS);
+		measuring.set(true);
+		Thread.sleep(MEASURED_MILLIS);
+		running.set(false);
+		done.await();
+
+		return new long[] {reads.get(), writes.get()};
+	}
+
+	/**
+	 * Helper classes
+	 */
+
+	// a tree under test, filled with every other key of 0..2*size
+	private static abstract class Target {
+		protected final String name;
+
+		public Target(String name) {
+			this.name = name;
+		}
+
+		public abstract String search(int k);
+
+		public abstract int insert(int k, String v);
+
+		public abstract int delete(int k);
+
+		protected static RBTree filledTree(int size) {
+			int[] keys = new int[size];
+			String[] values = new String[size];
+			for (int ix = 0; ix < size; ix++) {
+				keys[ix] = 2 * ix;
+				values[ix] = Integer.toString(keys[ix]);
+			}
+			return RBTree.fromSortedArrays(keys, values);
+		}
+	}
+
+	private static class StampedTarget extends Target {
+		private final ConcurrentRBTree tree;
+
+		public StampedTarget(int size) {
+			super("stamped");
+			this.tree = new ConcurrentRBTree(filledTree(size));
+		}
+
+		public String search(int k) {
+			return this.tree.search(k);
+		}
+
+		public int insert(int k, String v) {
+			return this.tree.insert(k, v);
+		}
+
+		public int delete(int k) {
+			return this.tree.delete(k);
+		}
+	}
+
+	private static class SynchronizedTarget extends Target {
+		private final RBTree tree;
+
+		public SynchronizedTarget(int size) {
+			super("synchronized");
+			this.tree = filledTree(size);
+		}
+
+		public synchronized String search(int k) {
+			return this.tree.search(k);
+		}
+
+		public synchronized int insert(int k, String v) {
+			return this.tree.insert(k, v);
+		}
+
+		public synchronized int delete(int k) {
+			return this.tree.delete(k);
+		}
+	}
+
+	private static class ShardedTarget extends Target {
+		private final ShardedRBTree tree;
+
+		// as many shards of equal key ranges as threads
+		public ShardedTarget(int size, int shards) {
+			super("sharded");
+			this.tree = new ShardedRBTree(shards, 2 * size);
+			for (int ix = 0; ix < size; ix++) {
+				this.tree.insert(2 * ix, Integer.toString(2 * ix));
+			}
+		}
+
+		public String search(int k) {
+			return this.tree.search(k);
+		}
+
+		public int insert(int k, String v) {
+			return this.tree.insert(k, v);
+		}
+
+		public int delete(int k) {
+			return this.tree.delete(k);
+		}
+	}
+
+	// a logged tree, in temporary files, which starts from a snapshot
+	private static class DurableTarget extends Target {
+		private final DurableRBTree tree;
+		private final File logFile;
+		private final File snapshotFile;
+
+		public DurableTarget(int size, DurableRBTree.SyncPolicy policy) throws IOException {
+			super(policy.name().toLowerCase().replace('_', '-'));
+			this.logFile = File.createTempFile("benchmark", ".log");
+			this.snapshotFile = File.createTempFile("benchmark", ".snapshot");
+			MappedSnapshot.write(filledTree(size), this.snapshotFile);
+			this.tree = DurableRBTree.open(this.logFile, this.snapshotFile, policy);
+		}
+
+		public String search(int k) {
+			return this.tree.search(k);
+		}
+
+		public int insert(int k, String v) {
+			return this.tree.insert(k, v);
+		}
+
+		public int delete(int k) {
+			return this.tree.delete(k);
+		}
+
+		public void close() throws IOException {
+			this.tree.close();
+			this.logFile.delete();
+			this.snapshotFile.delete();
+		}
+	}
+}
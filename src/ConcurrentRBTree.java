@@ -0,0 +1,296 @@
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ *
+ * ConcurrentRBTree
+ *
+ * A thread safe RBTree. Writes (insert, delete, applyBatch) take a write
+ * lock, and so do not overlap with anything else.
+ *
+ * search, min, max, size and empty are optimistic: they read the tree
+ * without locking and then validate that no write started or ended
+ * meanwhile. Only when validation fails (or the read ran into a tree which
+ * was being changed under it) they are retried under a read lock. With rare
+ * writes, readers don't contend on any shared state and scale with cores.
+ *
+ * The rest of the read operations hold a read lock throughout.
+ *
+ */
+
+public class ConcurrentRBTree {
+	// the height of a red black tree of up to 2^31 nodes is at most 2*31+1,
+	// so an optimistic descent that takes longer ran into a rotation:
+	private static final int MAX_OPTIMISTIC_STEPS = 64;
+	// returned by an optimistic search which gave up (compared by identity):
+	private static final String RETRY = new String("retry");
+
+	private final RBTree tree;
+	private final StampedLock lock = new StampedLock();
+
+	public ConcurrentRBTree() {
+		this(new RBTree());
+	}
+
+	// wraps the given tree, which mustn't be used directly anymore
+	public ConcurrentRBTree(RBTree tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the value of an item with key k if it exists in the tree
+	 * otherwise, returns null
+	 *
+	 * in O(log(n)), optimistic
+	 */
+	public String search(int k) {
+		long stamp = this.lock.tryOptimisticRead();
+		if (stamp != 0) {
+			String value = optimisticSearch(k);
+			if (value != RETRY && this.lock.validate(stamp)) {
+				return value;
+			}
+		}
+
+		stamp = this.lock.readLock();
+		try {
+			return this.tree.search(k);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the value of the item with the smallest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(1), optimistic
+	 */
+	public String min() {
+		long stamp = this.lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				String value = this.tree.min();
+				if (this.lock.validate(stamp)) {
+					return value;
+				}
+			} catch (RuntimeException e) {
+				// a write changed the min under us
+			}
+		}
+
+		stamp = this.lock.readLock();
+		try {
+			return this.tree.min();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the value of the item with the largest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(1), optimistic
+	 */
+	public String max() {
+		long stamp = this.lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				String value = this.tree.max();
+				if (this.lock.validate(stamp)) {
+					return value;
+				}
+			} catch (RuntimeException e) {
+				// a write changed the max under us
+			}
+		}
+
+		stamp = this.lock.readLock();
+		try {
+			return this.tree.max();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 *
+	 * in O(1), optimistic
+	 */
+	public int size() {
+		long stamp = this.lock.tryOptimisticRead();
+		int size = this.tree.size();
+		if (stamp != 0 && this.lock.validate(stamp)) {
+			return size;
+		}
+
+		stamp = this.lock.readLock();
+		try {
+			return this.tree.size();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 *
+	 * in O(1), optimistic
+	 */
+	public boolean empty() {
+		return this.size() == 0;
+	}
+
+	/**
+	 * public int insert(int k, String v)
+	 *
+	 * as RBTree.insert, under the write lock
+	 */
+	public int insert(int k, String v) {
+		long stamp = this.lock.writeLock();
+		try {
+			return this.tree.insert(k, v);
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * as RBTree.delete, under the write lock
+	 */
+	public int delete(int k) {
+		long stamp = this.lock.writeLock();
+		try {
+			return this.tree.delete(k);
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public int[] applyBatch(RBTree.Batch batch)
+	 *
+	 * as RBTree.applyBatch, under the write lock - readers see either none or
+	 * all of the batch
+	 */
+	public int[] applyBatch(RBTree.Batch batch) {
+		long stamp = this.lock.writeLock();
+		try {
+			return this.tree.applyBatch(batch);
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * as RBTree.keysToArray, under the read lock
+	 */
+	public int[] keysToArray() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.tree.keysToArray();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String[] valuesToArray()
+	 *
+	 * as RBTree.valuesToArray, under the read lock
+	 */
+	public String[] valuesToArray() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.tree.valuesToArray();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int scan(int lo, boolean loInclusive, int hi, boolean hiInclusive,
+	 *                 int limit, RBTree.EntryVisitor visitor)
+	 *
+	 * as RBTree.scan, under the read lock - the visitor mustn't write to this
+	 * tree
+	 */
+	public int scan(int lo, boolean loInclusive, int hi, boolean hiInclusive, int limit, RBTree.EntryVisitor visitor) {
+		long stamp = this.lock.readLock();
+		try {
+			return this.tree.scan(lo, loInclusive, hi, hiInclusive, limit, visitor);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int select(int i)
+	 *
+	 * as RBTree.select, under the read lock
+	 */
+	public int select(int i) {
+		long stamp = this.lock.readLock();
+		try {
+			return this.tree.select(i);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int rank(int k)
+	 *
+	 * as RBTree.rank, under the read lock
+	 */
+	public int rank(int k) {
+		long stamp = this.lock.readLock();
+		try {
+			return this.tree.rank(k);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Private methods
+	 */
+
+	/**
+	 * searches without any lock. the result is only meaningful if the lock
+	 * validates afterwards. a write in progress may send the descent around
+	 * in circles or off a node which just lost its child, so it gives up
+	 * (returning RETRY) after more steps than any valid tree needs.
+	 *
+	 * O(log(n))
+	 */
+	private String optimisticSearch(int k) {
+		RBTree.RBNode node = this.tree.getRoot();
+		for (int steps = 0; node != null && steps <= MAX_OPTIMISTIC_STEPS; steps++) {
+			int key = node.getKey();
+			if (k == key) {
+				return node.getValue();
+			}
+			node = (k < key) ? node.getLeft() : node.getRight();
+		}
+		if (node != null) {
+			return RETRY;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,613 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * DurableRBTree
+ *
+ * A thread safe RBTree whose inserts and deletes are appended to a write
+ * ahead log, and which is rebuilt after a restart by replaying the log -
+ * on top of a snapshot (see MappedSnapshot), if there's one.
+ *
+ * Log records (big endian):
+ *   insert  1 (byte), key, value length (-1 for null), value UTF-8 bytes, crc
+ *   delete  2 (byte), key, crc
+ * where crc is the CRC32 of the record's other bytes. Only writes which
+ * changed the tree are logged. Replay stops at the first record which is
+ * cut short or fails its crc - the tail of a crash - and the log is
+ * truncated there.
+ *
+ * A write changes the tree and appends its record to an in-memory buffer,
+ * under the tree's lock, so the log is in the order of the changes. What
+ * happens next depends on the SyncPolicy. With GROUP_COMMIT, the writer
+ * waits until its record is on disk: the first waiting writer becomes the
+ * leader, writes the whole buffer and forces it to disk, and all the
+ * writers whose records were in the buffer return together - one fsync
+ * for many writes.
+ *
+ * As with any FileChannel, interrupting a thread while it writes the log
+ * closes the log, and the writes after that fail.
+ *
+ * Replaying a log on top of a snapshot taken after some of its records is
+ * safe: the logged writes of a key alternate between inserts and deletes,
+ * so a write which fails on replay is always followed by one that brings
+ * the key back in step.
+ *
+ */
+
+public class DurableRBTree implements Closeable {
+	private static final byte INSERT = 1;
+	private static final byte DELETE = 2;
+	// the value length of a null value:
+	private static final int NULL_LENGTH = -1;
+
+	// the fsync period of SyncPolicy.INTERVAL:
+	private static final long SYNC_INTERVAL_MILLIS = 10;
+	// the buffered bytes at which SyncPolicy.NONE writes them out:
+	private static final int NONE_FLUSH_BYTES = 1 << 16;
+	// the bytes read at a time when the log is replayed:
+	private static final int REPLAY_CHUNK_BYTES = 1 << 20;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * when a write returns, relative to its record reaching the disk
+	 */
+	public enum SyncPolicy {
+		// after the record is forced to disk, with other writers' records
+		GROUP_COMMIT,
+		// right away - a background thread forces the log every SYNC_INTERVAL_MILLIS
+		INTERVAL,
+		// right away - the log is written in big chunks and never forced
+		// until close, so a crash of the machine may lose any write
+		NONE;
+	}
+
+	private final RBTree tree;
+	private final File snapshotFile;
+	private final SyncPolicy policy;
+	private final FileChannel channel;
+	private final Thread syncer;
+
+	// guarded by this - the records not written yet, and the log position
+	// at the end of the last appended record:
+	private LogBuffer pending = new LogBuffer();
+	private long appended;
+
+	// guarded by flushMonitor - the leader's buffer, how far the log is
+	// written and forced, and whether a leader is at work:
+	private final Object flushMonitor = new Object();
+	private LogBuffer spare = new LogBuffer();
+	private volatile long written;
+	private long synced;
+	private boolean flushing;
+	private IOException failure;
+
+	// set under this, read by the syncer without it:
+	private volatile boolean closed;
+
+	private DurableRBTree(RBTree tree, File snapshotFile, FileChannel channel, long logLength, SyncPolicy policy) {
+		this.tree = tree;
+		this.snapshotFile = snapshotFile;
+		this.channel = channel;
+		this.policy = policy;
+		this.appended = logLength;
+		this.written = logLength;
+		this.synced = logLength;
+
+		if (policy == SyncPolicy.INTERVAL) {
+			this.syncer = new Thread("DurableRBTree syncer") {
+				public void run() {
+					syncPeriodically();
+				}
+			};
+			this.syncer.setDaemon(true);
+			this.syncer.start();
+		} else {
+			this.syncer = null;
+		}
+	}
+
+	/**
+	 * public static DurableRBTree open(File logFile, File snapshotFile, SyncPolicy policy)
+	 *
+	 * opens a tree: loads the snapshot, if snapshotFile isn't null and
+	 * exists, and replays the log on top of it, if the log exists.
+	 * checkpoint() needs a snapshot file.
+	 *
+	 * in O(n + log length)
+	 */
+	public static DurableRBTree open(File logFile, File snapshotFile, SyncPolicy policy) throws IOException {
+		RBTree tree;
+		if (snapshotFile != null && snapshotFile.exists()) {
+			MappedSnapshot snapshot = MappedSnapshot.open(snapshotFile);
+			try {
+				tree = snapshot.thaw();
+			} finally {
+				snapshot.close();
+			}
+		} else {
+			tree = new RBTree();
+		}
+
+		FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long length = replay(channel, tree);
+			channel.truncate(length);
+			channel.position(length);
+			return new DurableRBTree(tree, snapshotFile, channel, length, policy);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * public int insert(int k, String v)
+	 *
+	 * as RBTree.insert, logged. throws UncheckedIOException if the log can't
+	 * be written - the tree may have the write even though the log doesn't.
+	 */
+	public int insert(int k, String v) {
+		long end;
+		int result;
+		synchronized (this) {
+			this.checkOpen();
+			result = this.tree.insert(k, v);
+			if (result == -1) {
+				return result;
+			}
+			end = this.append(INSERT, k, v);
+		}
+		this.afterAppend(end);
+		return result;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * as RBTree.delete, logged - see insert
+	 */
+	public int delete(int k) {
+		long end;
+		int result;
+		synchronized (this) {
+			this.checkOpen();
+			result = this.tree.delete(k);
+			if (result == -1) {
+				return result;
+			}
+			end = this.append(DELETE, k, null);
+		}
+		this.afterAppend(end);
+		return result;
+	}
+
+	/**
+	 * the read operations of the tree, under its lock - see RBTree
+	 */
+
+	public synchronized String search(int k) {
+		return this.tree.search(k);
+	}
+
+	public synchronized String min() {
+		return this.tree.min();
+	}
+
+	public synchronized String max() {
+		return this.tree.max();
+	}
+
+	public synchronized int size() {
+		return this.tree.size();
+	}
+
+	public synchronized boolean empty() {
+		return this.tree.empty();
+	}
+
+	public synchronized int[] keysToArray() {
+		return this.tree.keysToArray();
+	}
+
+	public synchronized String[] valuesToArray() {
+		return this.tree.valuesToArray();
+	}
+
+	/**
+	 * public void sync()
+	 *
+	 * returns once every write made so far is forced to disk
+	 */
+	public void sync() throws IOException {
+		long end;
+		synchronized (this) {
+			end = this.appended;
+		}
+		this.flush(end, true);
+	}
+
+	/**
+	 * public void checkpoint()
+	 *
+	 * writes a snapshot of the tree and empties the log, so the next open
+	 * doesn't replay what the snapshot has. writes wait meanwhile. throws
+	 * IllegalStateException if the tree was opened without a snapshot file.
+	 *
+	 * in O(n)
+	 */
+	public void checkpoint() throws IOException {
+		if (this.snapshotFile == null) {
+			throw new IllegalStateException("no snapshot file to checkpoint to");
+		}
+
+		// becomes the leader, so nothing else writes to the log
+		synchronized (this.flushMonitor) {
+			while (this.flushing) {
+				try {
+					this.flushMonitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting for the log");
+				}
+			}
+			this.flushing = true;
+		}
+
+		long end = -1;
+		try {
+			synchronized (this) {
+				this.checkOpen();
+				MappedSnapshot.write(this.tree, this.snapshotFile);
+
+				// the snapshot has every write, pending or not, so the log
+				// starts over. a crash before the truncation replays the log
+				// on top of the snapshot, which is safe.
+				try {
+					this.channel.truncate(0);
+					this.channel.position(0);
+					this.channel.force(true);
+				} catch (IOException e) {
+					synchronized (this.flushMonitor) {
+						this.failure = e;
+					}
+					throw e;
+				}
+				this.pending.length = 0;
+				end = this.appended;
+			}
+		} finally {
+			synchronized (this.flushMonitor) {
+				// log positions keep growing, so waiting writers see theirs as done
+				if (end >= 0) {
+					this.written = end;
+					this.synced = end;
+				}
+				this.flushing = false;
+				this.flushMonitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * forces the log to disk and closes it. using a closed tree throws
+	 * IllegalStateException.
+	 */
+	public void close() throws IOException {
+		long end;
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			end = this.appended;
+		}
+
+		if (this.syncer != null) {
+			LockSupport.unpark(this.syncer);
+			try {
+				this.syncer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			this.flush(end, true);
+		} finally {
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Private methods
+	 */
+
+	private void checkOpen() {
+		if (this.closed) {
+			throw new IllegalStateException("the tree is closed");
+		}
+	}
+
+	// appends a record to the pending buffer, returns the log position at its end - O(length of v)
+	private long append(byte type, int k, String v) {
+		int start = this.pending.length;
+		this.pending.putByte(type);
+		this.pending.putInt(k);
+		if (type == INSERT) {
+			if (v == null) {
+				this.pending.putInt(NULL_LENGTH);
+			} else {
+				byte[] bytes = v.getBytes(UTF8);
+				this.pending.putInt(bytes.length);
+				this.pending.put(bytes, bytes.length);
+			}
+		}
+		this.pending.putInt(this.pending.crc(start));
+
+		this.appended += this.pending.length - start;
+		return this.appended;
+	}
+
+	// waits as the sync policy says, after a record was appended
+	private void afterAppend(long end) {
+		try {
+			if (this.policy == SyncPolicy.GROUP_COMMIT) {
+				this.flush(end, true);
+			} else if (this.policy == SyncPolicy.NONE && end - this.written >= NONE_FLUSH_BYTES) {
+				this.flush(end, false);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * returns once the log is written (and forced, if force is set) up to
+	 * the given position. one thread at a time - the leader - writes
+	 * everything pending, the others wait for it, and return if it covered
+	 * their records.
+	 */
+	private void flush(long end, boolean force) throws IOException {
+		synchronized (this.flushMonitor) {
+			while (true) {
+				if (this.failure != null) {
+					throw new IOException("the log failed earlier", this.failure);
+				}
+				if ((force ? this.synced : this.written) >= end) {
+					return;
+				}
+				if (!this.flushing) {
+					break;
+				}
+				try {
+					this.flushMonitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting for the log");
+				}
+			}
+			this.flushing = true;
+		}
+
+		// the leader swaps the buffers, so writers go on appending meanwhile
+		LogBuffer batch;
+		long batchEnd;
+		synchronized (this) {
+			batch = this.pending;
+			this.pending = this.spare;
+			batchEnd = this.appended;
+		}
+
+		IOException error = null;
+		try {
+			ByteBuffer bytes = ByteBuffer.wrap(batch.bytes, 0, batch.length);
+			while (bytes.hasRemaining()) {
+				this.channel.write(bytes);
+			}
+			if (force) {
+				this.channel.force(false);
+			}
+		} catch (IOException e) {
+			error = e;
+		}
+
+		synchronized (this.flushMonitor) {
+			batch.length = 0;
+			this.spare = batch;
+			this.written = batchEnd;
+			if (force && error == null) {
+				this.synced = batchEnd;
+			}
+			if (error != null) {
+				this.failure = error;
+			}
+			this.flushing = false;
+			this.flushMonitor.notifyAll();
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	// the loop of the INTERVAL policy's background thread. it parks rather
+	// than sleeps, because an interrupt would close the channel under it.
+	private void syncPeriodically() {
+		while (!this.closed) {
+			LockSupport.parkNanos(SYNC_INTERVAL_MILLIS * 1000000L);
+			try {
+				this.sync();
+			} catch (IOException e) {
+				// failure is set, and writers will see it
+				return;
+			}
+		}
+	}
+
+	/**
+	 * applies the records of the log to the tree, returns the length of
+	 * the valid part of the log. the log is read in chunks of
+	 * REPLAY_CHUNK_BYTES (or of its longest record), so a log of any length
+	 * is replayed to its end.
+	 *
+	 * O(log length * log(n))
+	 */
+	private static long replay(FileChannel channel, RBTree tree) throws IOException {
+		return replay(channel, tree, REPLAY_CHUNK_BYTES);
+	}
+
+	// replay, reading chunkBytes at a time - package private for the tests
+	static long replay(FileChannel channel, RBTree tree, int chunkBytes) throws IOException {
+		LogReader reader = new LogReader(channel, chunkBytes);
+		CRC32 crc = new CRC32();
+		long valid = 0;
+		while (reader.require(9)) {
+			// the record's length, from its type and value length:
+			byte type = reader.buffer.get(reader.buffer.position());
+			int valueLength = NULL_LENGTH;
+			long length = 9;
+			if (type == INSERT) {
+				if (!reader.require(13)) {
+					break;
+				}
+				valueLength = reader.buffer.getInt(reader.buffer.position() + 5);
+				if (valueLength < NULL_LENGTH) {
+					break;
+				}
+				length = 13 + Math.max(valueLength, 0);
+			} else if (type != DELETE) {
+				break;
+			}
+			if (!reader.require(length)) {
+				break;
+			}
+
+			// the whole record is in the buffer now:
+			ByteBuffer buffer = reader.buffer;
+			int start = buffer.position();
+			int crcOffset = start + (int)length - 4;
+			crc.reset();
+			crc.update(buffer.array(), start, crcOffset - start);
+			if (buffer.getInt(crcOffset) != (int)crc.getValue()) {
+				break;
+			}
+
+			int key = buffer.getInt(start + 1);
+			if (type == INSERT) {
+				String value = (valueLength == NULL_LENGTH) ? null : new String(buffer.array(), start + 9, valueLength, UTF8);
+				tree.insert(key, value);
+			} else {
+				tree.delete(key);
+			}
+			buffer.position(start + (int)length);
+			valid = reader.position();
+		}
+		return valid;
+	}
+
+	/**
+	 * Helper classes
+	 */
+
+	// reads a log from its start, a chunk at a time. the buffer holds the
+	// unread bytes from its position to its limit.
+	private static class LogReader {
+		private final FileChannel channel;
+		private ByteBuffer buffer;
+		// the log position of the buffer's first byte:
+		private long bufferStart;
+
+		public LogReader(FileChannel channel, int chunkBytes) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocate(chunkBytes);
+			this.buffer.limit(0);
+		}
+
+		// the log position of the next unread byte
+		public long position() {
+			return this.bufferStart + this.buffer.position();
+		}
+
+		// makes count unread bytes available in the buffer, growing it if
+		// they don't fit. returns false if the log ends before them - and then
+		// allocates nothing, so a torn length can't ask for a huge buffer.
+		public boolean require(long count) throws IOException {
+			if (this.buffer.remaining() >= count) {
+				return true;
+			}
+			if (count > this.channel.size() - this.position() || count > Integer.MAX_VALUE) {
+				return false;
+			}
+
+			this.bufferStart += this.buffer.position();
+			this.buffer.compact();
+			if (this.buffer.capacity() < count) {
+				ByteBuffer bigger = ByteBuffer.allocate((int)count);
+				this.buffer.flip();
+				bigger.put(this.buffer);
+				this.buffer = bigger;
+			}
+			while (this.buffer.position() < count) {
+				if (this.channel.read(this.buffer, this.bufferStart + this.buffer.position()) < 0) {
+					break;
+				}
+			}
+			this.buffer.flip();
+			return this.buffer.remaining() >= count;
+		}
+	}
+
+	// a growable byte buffer of log records
+	private static class LogBuffer {
+		private static final int INITIAL_LENGTH = 1 << 12;
+
+		private byte[] bytes = new byte[INITIAL_LENGTH];
+		private int length;
+		private final CRC32 crc = new CRC32();
+
+		public void putByte(byte value) {
+			this.ensure(1);
+			this.bytes[this.length++] = value;
+		}
+
+		public void putInt(int value) {
+			this.ensure(4);
+			this.bytes[this.length++] = (byte)(value >>> 24);
+			this.bytes[this.length++] = (byte)(value >>> 16);
+			this.bytes[this.length++] = (byte)(value >>> 8);
+			this.bytes[this.length++] = (byte)value;
+		}
+
+		public void put(byte[] source, int count) {
+			this.ensure(count);
+			System.arraycopy(source, 0, this.bytes, this.length, count);
+			this.length += count;
+		}
+
+		// the CRC32 of the bytes from start to the end
+		public int crc(int start) {
+			this.crc.reset();
+			this.crc.update(this.bytes, start, this.length - start);
+			return (int)this.crc.getValue();
+		}
+
+		private void ensure(int count) {
+			if (this.length + count > this.bytes.length) {
+				this.bytes = Arrays.copyOf(this.bytes, Math.max(2 * this.bytes.length, this.length + count));
+			}
+		}
+	}
+}
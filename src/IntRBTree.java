@@ -0,0 +1,731 @@
+import java.util.Arrays;
+
+/**
+ *
+ * IntRBTree
+ *
+ * GENERATED from templates/PrimitiveRBTree.template by TreeGenerator, as are
+ * the other primitive key trees - change the template, not this file.
+ *
+ * A Red Black Tree with the same contract as RBTree (non-negative, distinct
+ * integer keys and String values, color change counts returned from insert
+ * and delete), whose nodes are not objects: a node is an int index into a
+ * few parallel arrays - keys, values, left/right/parent indices and packed
+ * color bits. The arrays grow in chunks, and slots of deleted nodes are
+ * reused, so a tree of n nodes costs a handful of large arrays instead of n
+ * objects.
+ *
+ * The values may be kept in a ValueArena instead of a String array: a node
+ * then holds an int handle of its value's UTF-8 bytes, and search, min, max
+ * and valuesToArray decode a new String on every call - trading some time
+ * for not holding a String object per node.
+ *
+ * The balancing algorithms are those of RBTree, step by step, so both trees
+ * return the same number of color changes for the same operations.
+ *
+ */
+
+public class IntRBTree {
+	// the "null" node index:
+	private static final int NIL = -1;
+	// the arrays never grow by less than this many nodes:
+	private static final int CHUNK_SIZE = 1024;
+
+	private int[] keys;
+	// the values, or their handles in the arena if there's one:
+	private String[] values;
+	private int[] valueHandles;
+	private final ValueArena arena;
+	private int[] left;
+	private int[] right;
+	private int[] parent;
+	// bit i is set iff node i is red:
+	private long[] redBits;
+
+	// the number of slots ever used, all slots below it are nodes or free:
+	private int used;
+	// the head of the free slots list, linked through the left array:
+	private int freeHead;
+
+	private int root;
+	private int min;
+	private int max;
+	private int size;
+
+	public IntRBTree() {
+		this(CHUNK_SIZE);
+	}
+
+	// creates an empty tree with room for the given number of nodes
+	public IntRBTree(int initialCapacity) {
+		this(initialCapacity, null);
+	}
+
+	// creates an empty tree which keeps its values in the given arena
+	public IntRBTree(ValueArena arena) {
+		this(CHUNK_SIZE, arena);
+	}
+
+	/**
+	 * public IntRBTree(int initialCapacity, ValueArena arena)
+	 *
+	 * creates an empty tree with room for the given number of nodes, which
+	 * keeps its values in the given arena - or in a String array, for null.
+	 * an arena may be shared by trees.
+	 */
+	public IntRBTree(int initialCapacity, ValueArena arena) {
+		int capacity = Math.max(1, initialCapacity);
+		this.arena = arena;
+		this.keys = new int[capacity];
+		if (arena == null) {
+			this.values = new String[capacity];
+		} else {
+			this.valueHandles = new int[capacity];
+		}
+		this.left = new int[capacity];
+		this.right = new int[capacity];
+		this.parent = new int[capacity];
+		this.redBits = new long[(capacity + 63) >>> 6];
+
+		this.freeHead = NIL;
+		this.root = NIL;
+		this.min = NIL;
+		this.max = NIL;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 *
+	 * in O(1)
+	 */
+	public boolean empty() {
+		return this.root == NIL;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the value of an item with key k if it exists in the tree
+	 * otherwise, returns null
+	 *
+	 * in O(log(n))
+	 */
+	public String search(int k) {
+		int node = searchNode(k);
+		if (node != NIL) {
+			return value(node);
+		}
+		return null;
+	}
+
+	/**
+	 * public int insert(int k, String v)
+	 *
+	 * inserts an item with key k and value v to the red black tree. returns
+	 * the number of color switches, or 0 if no color switches were necessary.
+	 * returns -1 if an item with key k already exists in the tree.
+	 *
+	 * in O(log(n)), amortized O(1) for growing the arrays
+	 */
+	public int insert(int k, String v) {
+		// edge case - inserts new node to root when the tree is empty
+		if (this.empty()) {
+			int node = allocate(k, v);
+			this.root = node;
+			this.min = node;
+			this.max = node;
+			this.size++;
+			return setBlack(node);
+		}
+
+		// finds the place for insertion, node with suitable null child
+		int leaf = searchLeaf(k);
+		if (leaf == NIL) {
+			return -1;
+		}
+
+		int node = allocate(k, v);
+		this.parent[node] = leaf;
+		if (k < this.keys[leaf]) {
+			this.left[leaf] = node;
+		} else {
+			this.right[leaf] = node;
+		}
+
+		// fixes tree if necessary - colors, size, min/max, root
+		return insertFixup(node);
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the tree, if it is there. returns the
+	 * number of color switches, or 0 if no color switches were needed. returns
+	 * -1 if an item with key k was not found in the tree.
+	 *
+	 * worst case - O(log n)
+	 */
+	public int delete(int k) {
+		int nodeToDelete = searchNode(k);
+		if (nodeToDelete == NIL) {
+			return -1;
+		}
+
+		if (this.left[nodeToDelete] == NIL || this.right[nodeToDelete] == NIL) {
+			// nodeToDelete has at most one child, physically delete it:
+			return deleteNode(nodeToDelete);
+		}
+
+		// nodeToDelete has two children, replace it with its successor:
+		int successor = findSuccessor(nodeToDelete);
+
+		// We're going to delete the successor, but what if it's the max?
+		boolean updateMax = (successor == this.max);
+
+		this.keys[nodeToDelete] = this.keys[successor];
+		moveValue(successor, nodeToDelete);
+
+		int colorChanges = deleteNode(successor);
+		if (updateMax) {
+			this.max = nodeToDelete;
+		}
+
+		return colorChanges;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the value of the item with the smallest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(1)
+	 */
+	public String min() {
+		if (this.min != NIL) {
+			return value(this.min);
+		}
+		return null;
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the value of the item with the largest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(1)
+	 */
+	public String max() {
+		if (this.max != NIL) {
+			return value(this.max);
+		}
+		return null;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty
+	 * array if the tree is empty.
+	 *
+	 * O(n) - walking the successors from the min visits every edge twice
+	 */
+	public int[] keysToArray() {
+		int[] result = new int[this.size];
+		int node = this.min;
+		for (int ix = 0; ix < result.length; ix++) {
+			result[ix] = this.keys[node];
+			node = findSuccessor(node);
+		}
+		return result;
+	}
+
+	/**
+	 * public String[] valuesToArray()
+	 *
+	 * Returns an array which contains all values in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 *
+	 * O(n) - walking the successors from the min visits every edge twice
+	 */
+	public String[] valuesToArray() {
+		String[] result = new String[this.size];
+		int node = this.min;
+		for (int ix = 0; ix < result.length; ix++) {
+			result[ix] = value(node);
+			node = findSuccessor(node);
+		}
+		return result;
+	}
+
+	/**
+	 * public int export(int from, int length, int[] keys, int keysOffset,
+	 *                   String[] values, int valuesOffset)
+	 *
+	 * copies the keys and values of the items at positions from..from+length-1
+	 * in key order (the same positions as in keysToArray()) into the given
+	 * arrays, starting at the given offsets - in a single walk. either array
+	 * may be null, if only keys or only values are needed. a window past the
+	 * last item is cut short. returns the number of items copied.
+	 *
+	 * throws IndexOutOfBoundsException if from or length is negative, or the
+	 * window doesn't fit in an array.
+	 *
+	 * O(from + length) - the nodes keep no subtree sizes, so the walk starts
+	 * at the min - without any allocation
+	 */
+	public int export(int from, int length, int[] keys, int keysOffset, String[] values, int valuesOffset) {
+		if (from < 0 || length < 0) {
+			throw new IndexOutOfBoundsException("from = " + from + ", length = " + length);
+		}
+		int count = Math.max(0, Math.min(length, this.size - from));
+		if (keys != null && (keysOffset < 0 || keysOffset > keys.length - count)) {
+			throw new IndexOutOfBoundsException("keysOffset = " + keysOffset + ", count = " + count);
+		}
+		if (values != null && (valuesOffset < 0 || valuesOffset > values.length - count)) {
+			throw new IndexOutOfBoundsException("valuesOffset = " + valuesOffset + ", count = " + count);
+		}
+
+		int node = (count == 0) ? NIL : this.min;
+		for (int ix = 0; ix < from && node != NIL; ix++) {
+			node = findSuccessor(node);
+		}
+		for (int ix = 0; ix < count; ix++) {
+			if (keys != null) {
+				keys[keysOffset + ix] = this.keys[node];
+			}
+			if (values != null) {
+				values[valuesOffset + ix] = value(node);
+			}
+			node = findSuccessor(node);
+		}
+
+		return count;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Private methods
+	 */
+
+	// returns the value of a node, decoded if it's in the arena
+	private String value(int node) {
+		return (this.arena == null) ? this.values[node] : this.arena.get(this.valueHandles[node]);
+	}
+
+	// moves the value of one node to another, whose value is dropped - O(1)
+	private void moveValue(int from, int to) {
+		if (this.arena == null) {
+			this.values[to] = this.values[from];
+		} else {
+			this.arena.release(this.valueHandles[to]);
+			this.valueHandles[to] = this.valueHandles[from];
+			// the handle belongs to "to" now, the release of "from" mustn't drop it
+			this.valueHandles[from] = ValueArena.NULL_HANDLE;
+		}
+	}
+
+	// returns true iff node is red - O(1)
+	private boolean isRed(int node) {
+		return (this.redBits[node >>> 6] & (1L << node)) != 0;
+	}
+
+	// returns true iff node is black, null nodes are black - O(1)
+	private boolean isBlack(int node) {
+		return node == NIL || !isRed(node);
+	}
+
+	// makes node red and returns 1 if color changed, 0 otherwise - O(1)
+	private int setRed(int node) {
+		if (isRed(node)) {
+			return 0;
+		}
+		this.redBits[node >>> 6] |= (1L << node);
+		return 1;
+	}
+
+	// makes node black and returns 1 if color changed, 0 otherwise - O(1)
+	private int setBlack(int node) {
+		if (!isRed(node)) {
+			return 0;
+		}
+		this.redBits[node >>> 6] &= ~(1L << node);
+		return 1;
+	}
+
+	// sets node to the given color (true for red) - O(1)
+	private int setColor(int node, boolean red) {
+		return red ? setRed(node) : setBlack(node);
+	}
+
+	/**
+	 * returns a new red node with no relations, reusing a free slot if there
+	 * is one
+	 *
+	 * O(1), or O(n) when the arrays grow - amortized O(1)
+	 */
+	private int allocate(int key, String value) {
+		int node;
+		if (this.freeHead != NIL) {
+			node = this.freeHead;
+			this.freeHead = this.left[node];
+		} else {
+			if (this.used == this.keys.length) {
+				grow();
+			}
+			node = this.used++;
+		}
+
+		this.keys[node] = key;
+		if (this.arena == null) {
+			this.values[node] = value;
+		} else {
+			this.valueHandles[node] = this.arena.add(value);
+		}
+		this.left[node] = NIL;
+		this.right[node] = NIL;
+		this.parent[node] = NIL;
+		setRed(node);
+		return node;
+	}
+
+	// returns the slot of a deleted node to the free list - O(1)
+	private void release(int node) {
+		if (this.arena == null) {
+			this.values[node] = null;
+		} else {
+			this.arena.release(this.valueHandles[node]);
+			this.valueHandles[node] = ValueArena.NULL_HANDLE;
+		}
+		this.parent[node] = NIL;
+		this.right[node] = NIL;
+		this.left[node] = this.freeHead;
+		this.freeHead = node;
+	}
+
+	// grows all arrays by at least a chunk, and by half their length - O(n)
+	private void grow() {
+		int capacity = this.keys.length;
+		int newCapacity = capacity + Math.max(CHUNK_SIZE, capacity >>> 1);
+		if (newCapacity < 0) {
+			newCapacity = Integer.MAX_VALUE - 8;
+		}
+
+		this.keys = Arrays.copyOf(this.keys, newCapacity);
+		if (this.arena == null) {
+			this.values = Arrays.copyOf(this.values, newCapacity);
+		} else {
+			this.valueHandles = Arrays.copyOf(this.valueHandles, newCapacity);
+		}
+		this.left = Arrays.copyOf(this.left, newCapacity);
+		this.right = Arrays.copyOf(this.right, newCapacity);
+		this.parent = Arrays.copyOf(this.parent, newCapacity);
+		this.redBits = Arrays.copyOf(this.redBits, (newCapacity + 63) >>> 6);
+	}
+
+	// returns the node with matching key if exists, else NIL - O(log(n))
+	private int searchNode(int key) {
+		int node = this.root;
+		while (node != NIL) {
+			int nodeKey = this.keys[node];
+			if (key == nodeKey) {
+				return node;
+			}
+			node = (key < nodeKey) ? this.left[node] : this.right[node];
+		}
+		return NIL;
+	}
+
+	// returns node for insertion of key; if key already exists returns NIL - O(log(n))
+	private int searchLeaf(int key) {
+		int node = this.root;
+		while (true) {
+			int nodeKey = this.keys[node];
+			if (key == nodeKey) {
+				return NIL;
+			}
+			int next = (key < nodeKey) ? this.left[node] : this.right[node];
+			if (next == NIL) {
+				return node;
+			}
+			node = next;
+		}
+	}
+
+	// sets y as x's parent's child instead of x - O(1)
+	private void transplant(int x, int y) {
+		int xParent = this.parent[x];
+		this.parent[y] = xParent;
+		if (xParent == NIL) {
+			this.root = y;
+		} else if (this.left[xParent] == x) {
+			this.left[xParent] = y;
+		} else {
+			this.right[xParent] = y;
+		}
+	}
+
+	// rotate a given node and its right child to the left - O(1)
+	private void rotateLeft(int x) {
+		int y = this.right[x];
+
+		transplant(x, y);
+		int middle = this.left[y];
+		this.right[x] = middle;
+		if (middle != NIL) {
+			this.parent[middle] = x;
+		}
+		this.left[y] = x;
+		this.parent[x] = y;
+	}
+
+	// rotate a given node and its left child to the right - O(1)
+	private void rotateRight(int x) {
+		int y = this.left[x];
+
+		transplant(x, y);
+		int middle = this.right[y];
+		this.left[x] = middle;
+		if (middle != NIL) {
+			this.parent[middle] = x;
+		}
+		this.right[y] = x;
+		this.parent[x] = y;
+	}
+
+	// returns node's successor, or NIL - worst case O(log(n))
+	private int findSuccessor(int node) {
+		if (this.right[node] != NIL) {
+			int rightSubtreeMin = this.right[node];
+			while (this.left[rightSubtreeMin] != NIL) {
+				rightSubtreeMin = this.left[rightSubtreeMin];
+			}
+			return rightSubtreeMin;
+		}
+
+		int ancestor = this.parent[node];
+		while (ancestor != NIL && this.keys[ancestor] < this.keys[node]) {
+			ancestor = this.parent[ancestor];
+		}
+		return ancestor;
+	}
+
+	// returns node's predecessor, or NIL - worst case O(log(n))
+	private int findPredecessor(int node) {
+		if (this.left[node] != NIL) {
+			int pred = this.left[node];
+			while (this.right[pred] != NIL) {
+				pred = this.right[pred];
+			}
+			return pred;
+		}
+
+		int ancestor = this.parent[node];
+		while (ancestor != NIL && this.keys[ancestor] > this.keys[node]) {
+			ancestor = this.parent[ancestor];
+		}
+		return ancestor;
+	}
+
+	/**
+	 * fixes tree after insertion of node, returns number of color changes
+	 *
+	 * worst case in O(log(n)) - the max number of loops is the tree height
+	 */
+	private int insertFixup(int node) {
+		this.size++;
+
+		if (this.keys[node] < this.keys[this.min]) {
+			this.min = node;
+		}
+		if (this.keys[this.max] < this.keys[node]) {
+			this.max = node;
+		}
+
+		int colorChanges = 0;
+		while (isRed(this.parent[node])) {
+			int nodeParent = this.parent[node];
+			// always exists, cause otherwise parent is a black root
+			int granny = this.parent[nodeParent];
+			boolean parentIsLeft = (nodeParent == this.left[granny]);
+			int uncle = parentIsLeft ? this.right[granny] : this.left[granny];
+
+			// case 1: red uncle - recolor and continue from granny
+			if (!isBlack(uncle)) {
+				colorChanges += setBlack(nodeParent);
+				colorChanges += setBlack(uncle);
+				if (this.root == granny) {
+					break;
+				}
+				colorChanges += setRed(granny);
+				node = granny;
+				continue;
+			}
+
+			if (parentIsLeft) {
+				// case 2: node is a right child
+				if (node == this.right[nodeParent]) {
+					node = nodeParent;
+					rotateLeft(node);
+					nodeParent = this.parent[node];
+					granny = this.parent[nodeParent];
+				}
+				// case 3: node is a left child
+				colorChanges += setBlack(nodeParent);
+				colorChanges += setRed(granny);
+				rotateRight(granny);
+			} else {
+				// mirror case 2: node is a left child
+				if (node == this.left[nodeParent]) {
+					node = nodeParent;
+					rotateRight(node);
+					nodeParent = this.parent[node];
+					granny = this.parent[nodeParent];
+				}
+				// mirror case 3: node is a right child
+				colorChanges += setBlack(nodeParent);
+				colorChanges += setRed(granny);
+				rotateLeft(granny);
+			}
+			break;
+		}
+		return colorChanges;
+	}
+
+	/**
+	 * physically deletes a node with at most one child, updates min and max
+	 * and fixes the "double blackness" if it arises
+	 *
+	 * returns the number of color changes - O(log(n))
+	 */
+	private int deleteNode(int nodeToDelete) {
+		this.size -= 1;
+
+		if (nodeToDelete == this.min) {
+			this.min = findSuccessor(nodeToDelete);
+		}
+		if (nodeToDelete == this.max) {
+			this.max = findPredecessor(nodeToDelete);
+		}
+
+		int colorChanges = 0;
+		int child = (this.left[nodeToDelete] != NIL) ? this.left[nodeToDelete] : this.right[nodeToDelete];
+
+		if (child == NIL) {
+			if (this.parent[nodeToDelete] == NIL) {
+				// the last node in the tree
+				this.root = NIL;
+			} else {
+				// a black leaf is fixed while still in place, and only then removed
+				if (!isRed(nodeToDelete)) {
+					colorChanges += fixTreeAfterDeletion(nodeToDelete);
+				}
+
+				int nodeParent = this.parent[nodeToDelete];
+				if (this.left[nodeParent] == nodeToDelete) {
+					this.left[nodeParent] = NIL;
+				} else {
+					this.right[nodeParent] = NIL;
+				}
+			}
+		} else {
+			// nodeToDelete has only one child, replace it with its child.
+			transplant(nodeToDelete, child);
+
+			if (!isRed(nodeToDelete)) {
+				if (isRed(child)) {
+					colorChanges += setBlack(child);
+				} else {
+					colorChanges += fixTreeAfterDeletion(child);
+				}
+			}
+		}
+
+		release(nodeToDelete);
+		return colorChanges;
+	}
+
+	/**
+	 * fixes the tree after doubleBlackNode became "double black"
+	 *
+	 * returns the number of color changes - O(log(n)) loops at most
+	 */
+	private int fixTreeAfterDeletion(int doubleBlackNode) {
+		int colorChanges = 0;
+
+		while (true) {
+			if (doubleBlackNode == this.root) {
+				return colorChanges;
+			}
+
+			if (isRed(doubleBlackNode)) {
+				return colorChanges + setBlack(doubleBlackNode);
+			}
+
+			int nodeParent = this.parent[doubleBlackNode];
+			boolean isLeft = (doubleBlackNode == this.left[nodeParent]);
+			int sibling = isLeft ? this.right[nodeParent] : this.left[nodeParent];
+
+			if (isRed(sibling)) {
+				// case 1: the sibling is red
+				if (isLeft) {
+					rotateLeft(nodeParent);
+				} else {
+					rotateRight(nodeParent);
+				}
+				colorChanges += setRed(nodeParent);
+				colorChanges += setBlack(sibling);
+				continue;
+			}
+
+			// the sibling is black
+			int proximalNephew = isLeft ? this.left[sibling] : this.right[sibling];
+			int distalNephew = isLeft ? this.right[sibling] : this.left[sibling];
+
+			if (isBlack(proximalNephew) && isBlack(distalNephew)) {
+				// case 2: both nephews are black, move the double blackness up
+				colorChanges += setRed(sibling);
+				doubleBlackNode = nodeParent;
+				continue;
+			}
+
+			if (isBlack(distalNephew)) {
+				// case 3: the distal nephew is black, the proximal one is red
+				if (isLeft) {
+					rotateRight(sibling);
+				} else {
+					rotateLeft(sibling);
+				}
+				colorChanges += setBlack(proximalNephew);
+				colorChanges += setRed(sibling);
+
+				distalNephew = sibling;
+				sibling = proximalNephew;
+			}
+
+			// case 4: the distal nephew is red
+			boolean parentIsRed = isRed(nodeParent);
+			if (isLeft) {
+				rotateLeft(nodeParent);
+			} else {
+				rotateRight(nodeParent);
+			}
+			colorChanges += setColor(sibling, parentIsRed);
+			colorChanges += setBlack(nodeParent);
+			colorChanges += setBlack(distalNephew);
+
+			return colorChanges;
+		}
+	}
+}
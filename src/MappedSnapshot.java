@@ -0,0 +1,486 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * MappedSnapshot
+ *
+ * A read-only RBTree saved in a binary file, which is memory mapped and
+ * queried in place: opening it reads nothing but the header, and every
+ * query is a binary search over the mapped keys, so there are no nodes to
+ * build and the operating system pages the file in as it's used.
+ *
+ * The file layout (big endian ints):
+ *   header   magic, version, size, min key, max key, value bytes
+ *   keys     size ints, strictly increasing
+ *   offsets  size + 1 ints: value i is the UTF-8 bytes from offsets[i] to
+ *            offsets[i + 1] of the value section. a null value has the top
+ *            bit of its offset set.
+ *   values   the value bytes
+ *
+ * A single mapping is limited to 2GB, and so is the file. write() writes
+ * a temporary file and moves it in place, so a crash never leaves a half
+ * written snapshot behind.
+ *
+ */
+
+public class MappedSnapshot implements Closeable {
+	private static final int MAGIC = 0x52425453;
+	private static final int VERSION = 1;
+
+	// header layout, in bytes:
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SIZE_OFFSET = 8;
+	private static final int MIN_KEY_OFFSET = 12;
+	private static final int MAX_KEY_OFFSET = 16;
+	private static final int VALUE_BYTES_OFFSET = 20;
+	private static final int HEADER_SIZE = 24;
+
+	// set in the offset of a null value:
+	private static final int NULL_FLAG = 0x80000000;
+
+	// the buffer of write():
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final FileChannel channel;
+	private ByteBuffer buffer;
+	private final int size;
+	private final int offsetsStart;
+	private final int valuesStart;
+
+	private MappedSnapshot(FileChannel channel, ByteBuffer buffer) throws IOException {
+		this.channel = channel;
+		this.buffer = buffer;
+
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+			throw new IOException("not a snapshot file");
+		}
+		if (buffer.getInt(VERSION_OFFSET) != VERSION) {
+			throw new IOException("unsupported snapshot version " + buffer.getInt(VERSION_OFFSET));
+		}
+
+		this.size = buffer.getInt(SIZE_OFFSET);
+		long offsetsStart = HEADER_SIZE + 4L * this.size;
+		long valuesStart = offsetsStart + 4L * (this.size + 1);
+		if (this.size < 0 || valuesStart + buffer.getInt(VALUE_BYTES_OFFSET) != buffer.capacity()) {
+			throw new IOException("snapshot file is truncated or corrupt");
+		}
+		this.offsetsStart = (int)offsetsStart;
+		this.valuesStart = (int)valuesStart;
+	}
+
+	/**
+	 * public static void write(RBTree tree, File file)
+	 *
+	 * writes the items of the tree to a snapshot file, replacing it if it
+	 * exists. throws IOException if the snapshot would be bigger than 2GB.
+	 *
+	 * in O(n)
+	 */
+	public static void write(RBTree tree, File file) throws IOException {
+		int[] keys = tree.keysToArray();
+		String[] values = tree.valuesToArray();
+		int size = keys.length;
+
+		Path target = file.toPath();
+		Path temporary = new File(file.getPath() + ".tmp").toPath();
+		long valuesStart = HEADER_SIZE + 4L * size + 4L * (size + 1);
+
+		// deleted unless it was moved in place, so a failed write leaves nothing behind:
+		boolean moved = false;
+		try {
+			FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				ChannelWriter writer = new ChannelWriter(channel);
+
+				// the values go first, right at their place, to find the offsets
+				channel.position(valuesStart);
+				int[] offsets = new int[size + 1];
+				long offset = 0;
+				for (int ix = 0; ix < size; ix++) {
+					offsets[ix] = (int)offset;
+					if (values[ix] == null) {
+						offsets[ix] |= NULL_FLAG;
+						continue;
+					}
+					byte[] bytes = values[ix].getBytes(UTF8);
+					offset += bytes.length;
+					if (valuesStart + offset > Integer.MAX_VALUE) {
+						throw new IOException("a snapshot of the tree would be bigger than 2GB");
+					}
+					writer.put(bytes);
+				}
+				offsets[size] = (int)offset;
+				writer.flush();
+
+				// then the header, the keys and the offsets, from the start
+				channel.position(0);
+				writer.putInt(MAGIC);
+				writer.putInt(VERSION);
+				writer.putInt(size);
+				writer.putInt((size == 0) ? 0 : keys[0]);
+				writer.putInt((size == 0) ? 0 : keys[size - 1]);
+				writer.putInt((int)offset);
+				for (int key : keys) {
+					writer.putInt(key);
+				}
+				for (int valueOffset : offsets) {
+					writer.putInt(valueOffset);
+				}
+				writer.flush();
+
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+
+			Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			if (!moved) {
+				temporary.toFile().delete();
+			}
+		}
+	}
+
+	/**
+	 * public static MappedSnapshot open(File file)
+	 *
+	 * maps a snapshot file, throws IOException if it isn't one
+	 *
+	 * in O(1) - nothing but the header is read
+	 */
+	public static MappedSnapshot open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("snapshot file is bigger than 2GB");
+			}
+			return new MappedSnapshot(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the snapshot is empty
+	 *
+	 * in O(1)
+	 */
+	public boolean empty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of items in the snapshot.
+	 *
+	 * in O(1)
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the value of an item with key k if it exists in the snapshot
+	 * otherwise, returns null
+	 *
+	 * in O(log(n)), a binary search
+	 */
+	public String search(int k) {
+		int ix = this.indexOf(k);
+		return (ix < 0) ? null : this.valueAt(ix);
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the value of the item with the smallest key, or null if the
+	 * snapshot is empty
+	 *
+	 * in O(1)
+	 */
+	public String min() {
+		return this.empty() ? null : this.valueAt(0);
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the value of the item with the largest key, or null if the
+	 * snapshot is empty
+	 *
+	 * in O(1)
+	 */
+	public String max() {
+		return this.empty() ? null : this.valueAt(this.size - 1);
+	}
+
+	/**
+	 * public int minKey()
+	 *
+	 * returns the smallest key, from the header - or -1 if the snapshot is
+	 * empty
+	 *
+	 * in O(1)
+	 */
+	public int minKey() {
+		return this.empty() ? -1 : this.buffer().getInt(MIN_KEY_OFFSET);
+	}
+
+	/**
+	 * public int maxKey()
+	 *
+	 * returns the largest key, from the header - or -1 if the snapshot is
+	 * empty
+	 *
+	 * in O(1)
+	 */
+	public int maxKey() {
+		return this.empty() ? -1 : this.buffer().getInt(MAX_KEY_OFFSET);
+	}
+
+	/**
+	 * public int select(int i)
+	 *
+	 * returns the i-th smallest key (0-based), or -1 if i is out of range
+	 *
+	 * in O(1)
+	 */
+	public int select(int i) {
+		if (i < 0 || i >= this.size) {
+			return -1;
+		}
+		return this.keyAt(i);
+	}
+
+	/**
+	 * public int rank(int k)
+	 *
+	 * returns the number of keys smaller than k
+	 *
+	 * in O(log(n))
+	 */
+	public int rank(int k) {
+		int ix = this.indexOf(k);
+		return (ix < 0) ? -(ix + 1) : ix;
+	}
+
+	/**
+	 * public int countInRange(int lo, int hi)
+	 *
+	 * returns the number of keys from lo to hi, inclusive
+	 *
+	 * in O(log(n))
+	 */
+	public int countInRange(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		int ix = this.indexOf(hi);
+		int upTo = (ix < 0) ? -(ix + 1) : ix + 1;
+		return Math.max(0, upTo - this.rank(lo));
+	}
+
+	/**
+	 * public int scan(int lo, boolean loInclusive, int hi, boolean hiInclusive,
+	 *                 int limit, RBTree.EntryVisitor visitor)
+	 *
+	 * passes the items with keys between lo and hi to the visitor in
+	 * ascending key order, as RBTree.scan does - returns the number of items
+	 * visited
+	 *
+	 * O(log(n)) to find the first item, and O(1) per item after it
+	 */
+	public int scan(int lo, boolean loInclusive, int hi, boolean hiInclusive, int limit, RBTree.EntryVisitor visitor) {
+		int ix = this.indexOf(lo);
+		if (ix < 0) {
+			ix = -(ix + 1);
+		} else if (!loInclusive) {
+			ix++;
+		}
+
+		int visited = 0;
+		for (; ix < this.size && visited < limit; ix++) {
+			int key = this.keyAt(ix);
+			if (key > hi || (key == hi && !hiInclusive)) {
+				break;
+			}
+			visited++;
+			if (!visitor.visit(key, this.valueAt(ix))) {
+				break;
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the snapshot
+	 *
+	 * in O(n)
+	 */
+	public int[] keysToArray() {
+		int[] keys = new int[this.size];
+		IntBuffer ints = this.buffer().asIntBuffer();
+		ints.position(HEADER_SIZE / 4);
+		ints.get(keys);
+		return keys;
+	}
+
+	/**
+	 * public String[] valuesToArray()
+	 *
+	 * Returns an array which contains all values in the snapshot, sorted by
+	 * their respective keys
+	 *
+	 * in O(n)
+	 */
+	public String[] valuesToArray() {
+		String[] values = new String[this.size];
+		for (int ix = 0; ix < this.size; ix++) {
+			values[ix] = this.valueAt(ix);
+		}
+		return values;
+	}
+
+	/**
+	 * public RBTree thaw()
+	 *
+	 * returns a new, mutable RBTree of the items, built straight from the
+	 * sorted keys by RBTree.fromSortedArrays
+	 *
+	 * in O(n)
+	 */
+	public RBTree thaw() {
+		return RBTree.fromSortedArrays(this.keysToArray(), this.valuesToArray());
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * closes the file. the mapping goes away when it's garbage collected,
+	 * and using a closed snapshot throws IllegalStateException.
+	 */
+	public void close() throws IOException {
+		this.buffer = null;
+		this.channel.close();
+	}
+
+	/**
+	 * Private methods
+	 */
+
+	// returns the mapping, if it wasn't closed - O(1)
+	private ByteBuffer buffer() {
+		ByteBuffer buffer = this.buffer;
+		if (buffer == null) {
+			throw new IllegalStateException("the snapshot is closed");
+		}
+		return buffer;
+	}
+
+	// returns the index of key k, or -(insertion point) - 1 like Arrays.binarySearch - O(log(n))
+	private int indexOf(int k) {
+		ByteBuffer buffer = this.buffer();
+		int low = 0;
+		int high = this.size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int key = buffer.getInt(HEADER_SIZE + 4 * middle);
+			if (key < k) {
+				low = middle + 1;
+			} else if (key > k) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private int keyAt(int ix) {
+		return this.buffer().getInt(HEADER_SIZE + 4 * ix);
+	}
+
+	// decodes the value at index ix - O(length of the value)
+	private String valueAt(int ix) {
+		ByteBuffer buffer = this.buffer();
+		int offset = buffer.getInt(this.offsetsStart + 4 * ix);
+		if ((offset & NULL_FLAG) != 0) {
+			return null;
+		}
+		int end = buffer.getInt(this.offsetsStart + 4 * (ix + 1)) & ~NULL_FLAG;
+
+		// absolute gets only, so concurrent readers don't share a position
+		byte[] bytes = new byte[end - offset];
+		for (int jx = 0; jx < bytes.length; jx++) {
+			bytes[jx] = buffer.get(this.valuesStart + offset + jx);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Helper classes
+	 */
+
+	// writes to a channel, at its position, through a buffer
+	private static class ChannelWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+		public ChannelWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public void putInt(int value) throws IOException {
+			if (this.buffer.remaining() < 4) {
+				this.flush();
+			}
+			this.buffer.putInt(value);
+		}
+
+		public void put(byte[] bytes) throws IOException {
+			if (this.buffer.remaining() < bytes.length) {
+				this.flush();
+			}
+			if (bytes.length > this.buffer.capacity()) {
+				this.writeFully(ByteBuffer.wrap(bytes));
+			} else {
+				this.buffer.put(bytes);
+			}
+		}
+
+		public void flush() throws IOException {
+			this.buffer.flip();
+			this.writeFully(this.buffer);
+			this.buffer.clear();
+		}
+
+		private void writeFully(ByteBuffer source) throws IOException {
+			while (source.hasRemaining()) {
+				this.channel.write(source);
+			}
+		}
+	}
+}
@@ -0,0 +1,844 @@
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ *
+ * OffHeapRBTree
+ *
+ * A Red Black Tree with the same contract as RBTree (non-negative, distinct
+ * integer keys and String values, color change counts returned from insert
+ * and delete), whose nodes live outside the Java heap, so the garbage
+ * collector never has to trace them.
+ *
+ * A node is a fixed-size record in a chunk of native memory (a direct
+ * ByteBuffer), addressed by an int node id: its key, its color, the ids of
+ * its relations and its value. A value whose UTF-8 encoding is short enough
+ * is stored inline in the record; a longer one is kept as a String in a
+ * small on-heap overflow table, referenced from the record.
+ *
+ * The tree must be closed when it's no longer needed. Closing frees all the
+ * chunks at once, without waiting for the garbage collector, and using a
+ * closed tree throws IllegalStateException.
+ *
+ * The balancing algorithms are those of RBTree (and IntRBTree), step by step,
+ * so all of them return the same number of color changes.
+ *
+ */
+
+public class OffHeapRBTree implements Closeable {
+	// the "null" node id:
+	private static final int NIL = -1;
+
+	// node record layout, in bytes:
+	private static final int KEY = 0;
+	private static final int LEFT = 4;
+	private static final int RIGHT = 8;
+	private static final int PARENT = 12;
+	private static final int COLOR = 16;
+	private static final int VALUE_LENGTH = 20;
+	private static final int VALUE_BYTES = 24;
+	private static final int RECORD_SIZE = 48;
+	private static final int INLINE_VALUE_BYTES = RECORD_SIZE - VALUE_BYTES;
+
+	// value length markers, for values which aren't inline:
+	private static final int NULL_VALUE = -1;
+	private static final int OVERFLOW_VALUE = -2;
+
+	private static final byte BLACK = 0;
+	private static final byte RED = 1;
+
+	// every chunk holds 2^CHUNK_SHIFT nodes (3MB of records):
+	private static final int CHUNK_SHIFT = 16;
+	private static final int CHUNK_NODES = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_NODES - 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// frees a direct buffer now - Unsafe.invokeCleaner(buffer) since Java 9,
+	// or the buffer's cleaner() and its clean() on Java 8. null if neither is
+	// accessible, then the chunks are freed when they're collected:
+	private static final Object CLEANER_TARGET;
+	private static final Method CLEANER_METHOD;
+
+	static {
+		Object target = null;
+		Method method = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			target = theUnsafe.get(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			try {
+				method = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			} catch (ReflectiveOperationException | RuntimeException e2) {
+				method = null;
+			}
+		}
+		CLEANER_TARGET = target;
+		CLEANER_METHOD = method;
+	}
+
+	private ByteBuffer[] chunks;
+	private int chunkCount;
+	// the number of node ids ever used:
+	private int used;
+	// the head of the free node list, linked through LEFT:
+	private int freeHead;
+
+	// values too long to be inline, and the free slots of this table:
+	private String[] overflowValues;
+	private int[] freeOverflowSlots;
+	private int freeOverflowCount;
+	private int overflowUsed;
+
+	private int root;
+	private int min;
+	private int max;
+	private int size;
+	private boolean closed;
+
+	public OffHeapRBTree() {
+		this.chunks = new ByteBuffer[4];
+		this.overflowValues = new String[16];
+		this.freeOverflowSlots = new int[16];
+		this.freeHead = NIL;
+		this.root = NIL;
+		this.min = NIL;
+		this.max = NIL;
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * frees the native memory of the tree right away (on JVMs which don't
+	 * let it be freed explicitly, it's freed when the chunks are collected);
+	 * the tree can't be used anymore
+	 *
+	 * in O(number of chunks)
+	 */
+	public void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+
+		for (int ix = 0; ix < this.chunkCount; ix++) {
+			free(this.chunks[ix]);
+		}
+		Arrays.fill(this.chunks, null);
+		this.chunks = null;
+		this.chunkCount = 0;
+		this.overflowValues = null;
+		this.root = NIL;
+		this.min = NIL;
+		this.max = NIL;
+		this.size = 0;
+	}
+
+	/**
+	 * public long nativeBytes()
+	 *
+	 * returns the number of bytes of native memory held by the tree
+	 *
+	 * in O(1)
+	 */
+	public long nativeBytes() {
+		return (long)this.chunkCount * CHUNK_NODES * RECORD_SIZE;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 *
+	 * in O(1)
+	 */
+	public boolean empty() {
+		ensureOpen();
+		return this.root == NIL;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the value of an item with key k if it exists in the tree
+	 * otherwise, returns null
+	 *
+	 * in O(log(n))
+	 */
+	public String search(int k) {
+		ensureOpen();
+		int node = searchNode(k);
+		if (node != NIL) {
+			return value(node);
+		}
+		return null;
+	}
+
+	/**
+	 * public int insert(int k, String v)
+	 *
+	 * inserts an item with key k and value v to the red black tree. returns
+	 * the number of color switches, or 0 if no color switches were necessary.
+	 * returns -1 if an item with key k already exists in the tree.
+	 *
+	 * in O(log(n))
+	 */
+	public int insert(int k, String v) {
+		ensureOpen();
+
+		// edge case - inserts new node to root when the tree is empty
+		if (this.root == NIL) {
+			int node = allocate(k, v);
+			this.root = node;
+			this.min = node;
+			this.max = node;
+			this.size++;
+			return setColor(node, BLACK);
+		}
+
+		// finds the place for insertion, node with suitable null child
+		int leaf = searchLeaf(k);
+		if (leaf == NIL) {
+			return -1;
+		}
+
+		int node = allocate(k, v);
+		setParent(node, leaf);
+		if (k < key(leaf)) {
+			setLeft(leaf, node);
+		} else {
+			setRight(leaf, node);
+		}
+
+		// fixes tree if necessary - colors, size, min/max, root
+		return insertFixup(node);
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the tree, if it is there. returns the
+	 * number of color switches, or 0 if no color switches were needed. returns
+	 * -1 if an item with key k was not found in the tree.
+	 *
+	 * worst case - O(log n)
+	 */
+	public int delete(int k) {
+		ensureOpen();
+
+		int nodeToDelete = searchNode(k);
+		if (nodeToDelete == NIL) {
+			return -1;
+		}
+
+		if (left(nodeToDelete) == NIL || right(nodeToDelete) == NIL) {
+			// nodeToDelete has at most one child, physically delete it:
+			return deleteNode(nodeToDelete);
+		}
+
+		// nodeToDelete has two children, replace it with its successor:
+		int successor = findSuccessor(nodeToDelete);
+
+		// We're going to delete the successor, but what if it's the max?
+		boolean updateMax = (successor == this.max);
+
+		moveEntry(successor, nodeToDelete);
+
+		int colorChanges = deleteNode(successor);
+		if (updateMax) {
+			this.max = nodeToDelete;
+		}
+
+		return colorChanges;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the value of the item with the smallest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(1)
+	 */
+	public String min() {
+		ensureOpen();
+		if (this.min != NIL) {
+			return value(this.min);
+		}
+		return null;
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the value of the item with the largest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(1)
+	 */
+	public String max() {
+		ensureOpen();
+		if (this.max != NIL) {
+			return value(this.max);
+		}
+		return null;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty
+	 * array if the tree is empty.
+	 *
+	 * O(n) - walking the successors from the min visits every edge twice
+	 */
+	public int[] keysToArray() {
+		ensureOpen();
+		int[] result = new int[this.size];
+		int node = this.min;
+		for (int ix = 0; ix < result.length; ix++) {
+			result[ix] = key(node);
+			node = findSuccessor(node);
+		}
+		return result;
+	}
+
+	/**
+	 * public String[] valuesToArray()
+	 *
+	 * Returns an array which contains all values in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 *
+	 * O(n) - walking the successors from the min visits every edge twice
+	 */
+	public String[] valuesToArray() {
+		ensureOpen();
+		String[] result = new String[this.size];
+		int node = this.min;
+		for (int ix = 0; ix < result.length; ix++) {
+			result[ix] = value(node);
+			node = findSuccessor(node);
+		}
+		return result;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		ensureOpen();
+		return this.size;
+	}
+
+	/**
+	 * Private methods
+	 */
+
+	private void ensureOpen() {
+		if (this.closed) {
+			throw new IllegalStateException("the tree is closed");
+		}
+	}
+
+	// frees the native memory of a direct buffer, which mustn't be used again - O(1)
+	private static void free(ByteBuffer buffer) {
+		if (CLEANER_METHOD == null) {
+			return;
+		}
+		try {
+			if (CLEANER_TARGET != null) {
+				CLEANER_METHOD.invoke(CLEANER_TARGET, buffer);
+			} else {
+				Object cleaner = CLEANER_METHOD.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (ReflectiveOperationException e) {
+			// the buffer is left to the garbage collector
+		}
+	}
+
+	// record accessors - O(1)
+
+	private ByteBuffer chunk(int node) {
+		return this.chunks[node >>> CHUNK_SHIFT];
+	}
+
+	private static int offset(int node, int field) {
+		return (node & CHUNK_MASK) * RECORD_SIZE + field;
+	}
+
+	private int key(int node) {
+		return chunk(node).getInt(offset(node, KEY));
+	}
+
+	private int left(int node) {
+		return chunk(node).getInt(offset(node, LEFT));
+	}
+
+	private void setLeft(int node, int child) {
+		chunk(node).putInt(offset(node, LEFT), child);
+	}
+
+	private int right(int node) {
+		return chunk(node).getInt(offset(node, RIGHT));
+	}
+
+	private void setRight(int node, int child) {
+		chunk(node).putInt(offset(node, RIGHT), child);
+	}
+
+	private int parent(int node) {
+		return chunk(node).getInt(offset(node, PARENT));
+	}
+
+	private void setParent(int node, int parent) {
+		chunk(node).putInt(offset(node, PARENT), parent);
+	}
+
+	private boolean isRed(int node) {
+		return node != NIL && chunk(node).get(offset(node, COLOR)) == RED;
+	}
+
+	// sets the given color and returns 1 if color changed, 0 otherwise
+	private int setColor(int node, byte color) {
+		ByteBuffer chunk = chunk(node);
+		int offset = offset(node, COLOR);
+		if (chunk.get(offset) == color) {
+			return 0;
+		}
+		chunk.put(offset, color);
+		return 1;
+	}
+
+	// decodes the value of a node
+	private String value(int node) {
+		ByteBuffer chunk = chunk(node);
+		int length = chunk.getInt(offset(node, VALUE_LENGTH));
+		if (length == NULL_VALUE) {
+			return null;
+		}
+		if (length == OVERFLOW_VALUE) {
+			return this.overflowValues[chunk.getInt(offset(node, VALUE_BYTES))];
+		}
+
+		byte[] bytes = new byte[length];
+		int start = offset(node, VALUE_BYTES);
+		for (int ix = 0; ix < length; ix++) {
+			bytes[ix] = chunk.get(start + ix);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	// stores the value of a node, inline if it's short enough
+	private void setValue(int node, String value) {
+		ByteBuffer chunk = chunk(node);
+		if (value == null) {
+			chunk.putInt(offset(node, VALUE_LENGTH), NULL_VALUE);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(UTF8);
+		if (bytes.length <= INLINE_VALUE_BYTES) {
+			chunk.putInt(offset(node, VALUE_LENGTH), bytes.length);
+			int start = offset(node, VALUE_BYTES);
+			for (int ix = 0; ix < bytes.length; ix++) {
+				chunk.put(start + ix, bytes[ix]);
+			}
+		} else {
+			chunk.putInt(offset(node, VALUE_LENGTH), OVERFLOW_VALUE);
+			chunk.putInt(offset(node, VALUE_BYTES), allocateOverflow(value));
+		}
+	}
+
+	// releases the overflow slot of a node's value, if it has one
+	private void clearValue(int node) {
+		ByteBuffer chunk = chunk(node);
+		if (chunk.getInt(offset(node, VALUE_LENGTH)) == OVERFLOW_VALUE) {
+			int slot = chunk.getInt(offset(node, VALUE_BYTES));
+			this.overflowValues[slot] = null;
+			if (this.freeOverflowCount == this.freeOverflowSlots.length) {
+				this.freeOverflowSlots = Arrays.copyOf(this.freeOverflowSlots, 2 * this.freeOverflowCount);
+			}
+			this.freeOverflowSlots[this.freeOverflowCount++] = slot;
+		}
+		chunk.putInt(offset(node, VALUE_LENGTH), NULL_VALUE);
+	}
+
+	// moves the key and value of one node to another, whose value is dropped
+	private void moveEntry(int from, int to) {
+		clearValue(to);
+
+		ByteBuffer fromChunk = chunk(from);
+		ByteBuffer toChunk = chunk(to);
+		toChunk.putInt(offset(to, KEY), fromChunk.getInt(offset(from, KEY)));
+		for (int ix = VALUE_LENGTH; ix < RECORD_SIZE; ix++) {
+			toChunk.put(offset(to, ix), fromChunk.get(offset(from, ix)));
+		}
+
+		// the overflow slot, if any, now belongs to "to"
+		fromChunk.putInt(offset(from, VALUE_LENGTH), NULL_VALUE);
+	}
+
+	// returns a slot of the overflow table holding value - amortized O(1)
+	private int allocateOverflow(String value) {
+		int slot;
+		if (this.freeOverflowCount > 0) {
+			slot = this.freeOverflowSlots[--this.freeOverflowCount];
+		} else {
+			if (this.overflowUsed == this.overflowValues.length) {
+				this.overflowValues = Arrays.copyOf(this.overflowValues, 2 * this.overflowUsed);
+			}
+			slot = this.overflowUsed++;
+		}
+		this.overflowValues[slot] = value;
+		return slot;
+	}
+
+	// returns a new red node with no relations - O(1), amortized for new chunks
+	private int allocate(int key, String value) {
+		int node;
+		if (this.freeHead != NIL) {
+			node = this.freeHead;
+			this.freeHead = left(node);
+		} else {
+			if ((this.used >>> CHUNK_SHIFT) == this.chunkCount) {
+				addChunk();
+			}
+			node = this.used++;
+		}
+
+		ByteBuffer chunk = chunk(node);
+		chunk.putInt(offset(node, KEY), key);
+		chunk.putInt(offset(node, LEFT), NIL);
+		chunk.putInt(offset(node, RIGHT), NIL);
+		chunk.putInt(offset(node, PARENT), NIL);
+		chunk.put(offset(node, COLOR), RED);
+		setValue(node, value);
+		return node;
+	}
+
+	// returns the record of a deleted node to the free list - O(1)
+	private void release(int node) {
+		clearValue(node);
+		setLeft(node, this.freeHead);
+		this.freeHead = node;
+	}
+
+	// allocates another chunk of native memory
+	private void addChunk() {
+		if (this.chunkCount == this.chunks.length) {
+			this.chunks = Arrays.copyOf(this.chunks, 2 * this.chunkCount);
+		}
+		this.chunks[this.chunkCount++] = ByteBuffer.allocateDirect(CHUNK_NODES * RECORD_SIZE)
+				.order(ByteOrder.nativeOrder());
+	}
+
+	// returns the node with matching key if exists, else NIL - O(log(n))
+	private int searchNode(int key) {
+		int node = this.root;
+		while (node != NIL) {
+			int nodeKey = key(node);
+			if (key == nodeKey) {
+				return node;
+			}
+			node = (key < nodeKey) ? left(node) : right(node);
+		}
+		return NIL;
+	}
+
+	// returns node for insertion of key; if key already exists returns NIL - O(log(n))
+	private int searchLeaf(int key) {
+		int node = this.root;
+		while (true) {
+			int nodeKey = key(node);
+			if (key == nodeKey) {
+				return NIL;
+			}
+			int next = (key < nodeKey) ? left(node) : right(node);
+			if (next == NIL) {
+				return node;
+			}
+			node = next;
+		}
+	}
+
+	// sets y as x's parent's child instead of x - O(1)
+	private void transplant(int x, int y) {
+		int xParent = parent(x);
+		setParent(y, xParent);
+		if (xParent == NIL) {
+			this.root = y;
+		} else if (left(xParent) == x) {
+			setLeft(xParent, y);
+		} else {
+			setRight(xParent, y);
+		}
+	}
+
+	// rotate a given node and its right child to the left - O(1)
+	private void rotateLeft(int x) {
+		int y = right(x);
+
+		transplant(x, y);
+		int middle = left(y);
+		setRight(x, middle);
+		if (middle != NIL) {
+			setParent(middle, x);
+		}
+		setLeft(y, x);
+		setParent(x, y);
+	}
+
+	// rotate a given node and its left child to the right - O(1)
+	private void rotateRight(int x) {
+		int y = left(x);
+
+		transplant(x, y);
+		int middle = right(y);
+		setLeft(x, middle);
+		if (middle != NIL) {
+			setParent(middle, x);
+		}
+		setRight(y, x);
+		setParent(x, y);
+	}
+
+	// returns node's successor, or NIL - worst case O(log(n))
+	private int findSuccessor(int node) {
+		if (right(node) != NIL) {
+			int rightSubtreeMin = right(node);
+			while (left(rightSubtreeMin) != NIL) {
+				rightSubtreeMin = left(rightSubtreeMin);
+			}
+			return rightSubtreeMin;
+		}
+
+		int nodeKey = key(node);
+		int ancestor = parent(node);
+		while (ancestor != NIL && key(ancestor) < nodeKey) {
+			ancestor = parent(ancestor);
+		}
+		return ancestor;
+	}
+
+	// returns node's predecessor, or NIL - worst case O(log(n))
+	private int findPredecessor(int node) {
+		if (left(node) != NIL) {
+			int pred = left(node);
+			while (right(pred) != NIL) {
+				pred = right(pred);
+			}
+			return pred;
+		}
+
+		int nodeKey = key(node);
+		int ancestor = parent(node);
+		while (ancestor != NIL && key(ancestor) > nodeKey) {
+			ancestor = parent(ancestor);
+		}
+		return ancestor;
+	}
+
+	/**
+	 * fixes tree after insertion of node, returns number of color changes
+	 *
+	 * worst case in O(log(n)) - the max number of loops is the tree height
+	 */
+	private int insertFixup(int node) {
+		this.size++;
+
+		if (key(node) < key(this.min)) {
+			this.min = node;
+		}
+		if (key(this.max) < key(node)) {
+			this.max = node;
+		}
+
+		int colorChanges = 0;
+		while (isRed(parent(node))) {
+			int nodeParent = parent(node);
+			// always exists, cause otherwise parent is a black root
+			int granny = parent(nodeParent);
+			boolean parentIsLeft = (nodeParent == left(granny));
+			int uncle = parentIsLeft ? right(granny) : left(granny);
+
+			// case 1: red uncle - recolor and continue from granny
+			if (isRed(uncle)) {
+				colorChanges += setColor(nodeParent, BLACK);
+				colorChanges += setColor(uncle, BLACK);
+				if (this.root == granny) {
+					break;
+				}
+				colorChanges += setColor(granny, RED);
+				node = granny;
+				continue;
+			}
+
+			if (parentIsLeft) {
+				// case 2: node is a right child
+				if (node == right(nodeParent)) {
+					node = nodeParent;
+					rotateLeft(node);
+					nodeParent = parent(node);
+					granny = parent(nodeParent);
+				}
+				// case 3: node is a left child
+				colorChanges += setColor(nodeParent, BLACK);
+				colorChanges += setColor(granny, RED);
+				rotateRight(granny);
+			} else {
+				// mirror case 2: node is a left child
+				if (node == left(nodeParent)) {
+					node = nodeParent;
+					rotateRight(node);
+					nodeParent = parent(node);
+					granny = parent(nodeParent);
+				}
+				// mirror case 3: node is a right child
+				colorChanges += setColor(nodeParent, BLACK);
+				colorChanges += setColor(granny, RED);
+				rotateLeft(granny);
+			}
+			break;
+		}
+		return colorChanges;
+	}
+
+	/**
+	 * physically deletes a node with at most one child, updates min and max
+	 * and fixes the "double blackness" if it arises
+	 *
+	 * returns the number of color changes - O(log(n))
+	 */
+	private int deleteNode(int nodeToDelete) {
+		this.size -= 1;
+
+		if (nodeToDelete == this.min) {
+			this.min = findSuccessor(nodeToDelete);
+		}
+		if (nodeToDelete == this.max) {
+			this.max = findPredecessor(nodeToDelete);
+		}
+
+		int colorChanges = 0;
+		int child = (left(nodeToDelete) != NIL) ? left(nodeToDelete) : right(nodeToDelete);
+
+		if (child == NIL) {
+			if (parent(nodeToDelete) == NIL) {
+				// the last node in the tree
+				this.root = NIL;
+			} else {
+				// a black leaf is fixed while still in place, and only then removed
+				if (!isRed(nodeToDelete)) {
+					colorChanges += fixTreeAfterDeletion(nodeToDelete);
+				}
+
+				int nodeParent = parent(nodeToDelete);
+				if (left(nodeParent) == nodeToDelete) {
+					setLeft(nodeParent, NIL);
+				} else {
+					setRight(nodeParent, NIL);
+				}
+			}
+		} else {
+			// nodeToDelete has only one child, replace it with its child.
+			transplant(nodeToDelete, child);
+
+			if (!isRed(nodeToDelete)) {
+				if (isRed(child)) {
+					colorChanges += setColor(child, BLACK);
+				} else {
+					colorChanges += fixTreeAfterDeletion(child);
+				}
+			}
+		}
+
+		release(nodeToDelete);
+		return colorChanges;
+	}
+
+	/**
+	 * fixes the tree after doubleBlackNode became "double black"
+	 *
+	 * returns the number of color changes - O(log(n)) loops at most
+	 */
+	private int fixTreeAfterDeletion(int doubleBlackNode) {
+		int colorChanges = 0;
+
+		while (true) {
+			if (doubleBlackNode == this.root) {
+				return colorChanges;
+			}
+
+			if (isRed(doubleBlackNode)) {
+				return colorChanges + setColor(doubleBlackNode, BLACK);
+			}
+
+			int nodeParent = parent(doubleBlackNode);
+			boolean isLeft = (doubleBlackNode == left(nodeParent));
+			int sibling = isLeft ? right(nodeParent) : left(nodeParent);
+
+			if (isRed(sibling)) {
+				// case 1: the sibling is red
+				if (isLeft) {
+					rotateLeft(nodeParent);
+				} else {
+					rotateRight(nodeParent);
+				}
+				colorChanges += setColor(nodeParent, RED);
+				colorChanges += setColor(sibling, BLACK);
+				continue;
+			}
+
+			// the sibling is black
+			int proximalNephew = isLeft ? left(sibling) : right(sibling);
+			int distalNephew = isLeft ? right(sibling) : left(sibling);
+
+			if (!isRed(proximalNephew) && !isRed(distalNephew)) {
+				// case 2: both nephews are black, move the double blackness up
+				colorChanges += setColor(sibling, RED);
+				doubleBlackNode = nodeParent;
+				continue;
+			}
+
+			if (!isRed(distalNephew)) {
+				// case 3: the distal nephew is black, the proximal one is red
+				if (isLeft) {
+					rotateRight(sibling);
+				} else {
+					rotateLeft(sibling);
+				}
+				colorChanges += setColor(proximalNephew, BLACK);
+				colorChanges += setColor(sibling, RED);
+
+				distalNephew = sibling;
+				sibling = proximalNephew;
+			}
+
+			// case 4: the distal nephew is red
+			byte parentColor = isRed(nodeParent) ? RED : BLACK;
+			if (isLeft) {
+				rotateLeft(nodeParent);
+			} else {
+				rotateRight(nodeParent);
+			}
+			colorChanges += setColor(sibling, parentColor);
+			colorChanges += setColor(nodeParent, BLACK);
+			colorChanges += setColor(distalNephew, BLACK);
+
+			return colorChanges;
+		}
+	}
+}
@@ -0,0 +1,1138 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ *
+ * PagedRBTree
+ *
+ * A Red Black Tree with the same contract as RBTree (non-negative, distinct
+ * integer keys and String values, color change counts returned from insert
+ * and delete), whose nodes live in a file, so the tree may be much bigger
+ * than the memory it's given.
+ *
+ * As in OffHeapRBTree, a node is a fixed-size record addressed by an int
+ * node id: its key, its color, the ids of its relations and its value. The
+ * records are packed into fixed-size pages of the file, and the pages are
+ * read through a buffer pool of a fixed number of frames. When the pool is
+ * full, a frame is chosen by the clock algorithm (an approximation of LRU:
+ * a frame used since the hand last passed it gets a second chance), and its
+ * page is written back first if it was changed.
+ *
+ * A value whose UTF-8 encoding is short enough is stored inline in the
+ * record; a longer one is stored in a chain of overflow records, which come
+ * from the same free list as the nodes.
+ *
+ * File layout (big endian): page 0 is a header - MAGIC, VERSION, the root,
+ * min and max node ids, the size, the number of record ids ever used and
+ * the head of the free record list. Record i is in page 1 + i / 64. The
+ * file is consistent after flush() or close() only; a tree which wasn't
+ * closed can't be reopened safely.
+ *
+ * The tree counts page hits, misses and write backs, so the pool can be
+ * sized by the hit ratio and the I/O per operation of a real workload. A
+ * run of accesses to the same page counts as one access.
+ *
+ * The balancing algorithms are those of RBTree (and OffHeapRBTree), step by
+ * step, so all of them return the same number of color changes. The tree
+ * isn't thread safe.
+ *
+ */
+
+public class PagedRBTree implements Closeable {
+	// the "null" node id:
+	private static final int NIL = -1;
+
+	private static final int MAGIC = 0x52425047;
+	private static final int VERSION = 1;
+
+	// header layout, in bytes:
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int ROOT_OFFSET = 8;
+	private static final int MIN_OFFSET = 12;
+	private static final int MAX_OFFSET = 16;
+	private static final int SIZE_OFFSET = 20;
+	private static final int USED_OFFSET = 24;
+	private static final int FREE_HEAD_OFFSET = 28;
+	private static final int HEADER_SIZE = 32;
+
+	// node record layout, in bytes:
+	private static final int KEY = 0;
+	private static final int LEFT = 4;
+	private static final int RIGHT = 8;
+	private static final int PARENT = 12;
+	private static final int COLOR = 16;
+	private static final int VALUE_LENGTH = 20;
+	private static final int VALUE_BYTES = 24;
+	private static final int RECORD_SHIFT = 6;
+	private static final int RECORD_SIZE = 1 << RECORD_SHIFT;
+	private static final int INLINE_VALUE_BYTES = RECORD_SIZE - VALUE_BYTES;
+
+	// overflow and free record layout - the next record in the chain or list:
+	private static final int NEXT = 0;
+	private static final int OVERFLOW_BYTES = 4;
+	private static final int OVERFLOW_CAPACITY = RECORD_SIZE - OVERFLOW_BYTES;
+
+	// the value length of a null value:
+	private static final int NULL_VALUE = -1;
+
+	private static final byte BLACK = 0;
+	private static final byte RED = 1;
+
+	// every page holds 2^PAGE_RECORDS_SHIFT records:
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_RECORDS_SHIFT = PAGE_SHIFT - RECORD_SHIFT;
+	private static final int PAGE_RECORDS_MASK = (1 << PAGE_RECORDS_SHIFT) - 1;
+
+	// the frameOfPage of a page which isn't in the pool, and vice versa:
+	private static final int NO_FRAME = -1;
+	private static final int NO_PAGE = -1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final FileChannel channel;
+
+	// the buffer pool - a page buffer per frame, and which page it holds:
+	private final ByteBuffer[] frames;
+	private final int[] pageOfFrame;
+	private final boolean[] dirty;
+	private final boolean[] referenced;
+	// the frame of every page of the file, or NO_FRAME:
+	private int[] frameOfPage;
+	// the clock hand, the next frame to consider for eviction:
+	private int hand;
+	// the page accessed last, which is surely in the pool:
+	private int lastPage = NO_PAGE;
+	private int lastFrame;
+
+	// the statistics:
+	private long hits;
+	private long misses;
+	private long pageWrites;
+	private long operations;
+
+	// for moving an entry between records:
+	private final byte[] scratch = new byte[RECORD_SIZE];
+
+	// the number of record ids ever used:
+	private int used;
+	// the head of the free record list, linked through NEXT:
+	private int freeHead;
+
+	private int root;
+	private int min;
+	private int max;
+	private int size;
+	private boolean closed;
+
+	private PagedRBTree(FileChannel channel, int poolPages) throws IOException {
+		this.channel = channel;
+		this.frames = new ByteBuffer[poolPages];
+		this.pageOfFrame = new int[poolPages];
+		this.dirty = new boolean[poolPages];
+		this.referenced = new boolean[poolPages];
+		for (int frame = 0; frame < poolPages; frame++) {
+			this.frames[frame] = ByteBuffer.allocate(PAGE_SIZE);
+		}
+		Arrays.fill(this.pageOfFrame, NO_PAGE);
+
+		if (channel.size() == 0) {
+			this.freeHead = NIL;
+			this.root = NIL;
+			this.min = NIL;
+			this.max = NIL;
+		} else {
+			readHeader();
+		}
+
+		this.frameOfPage = new int[pageCount(this.used)];
+		Arrays.fill(this.frameOfPage, NO_FRAME);
+	}
+
+	/**
+	 * public static PagedRBTree open(File file, int poolPages)
+	 *
+	 * opens the tree stored in file, or a new empty tree if the file doesn't
+	 * exist or is empty, with a buffer pool of poolPages pages (of 4KB).
+	 * throws IOException if the file isn't a tree file, and
+	 * IllegalArgumentException if poolPages < 1
+	 *
+	 * in O(poolPages + pages of the file)
+	 */
+	public static PagedRBTree open(File file, int poolPages) throws IOException {
+		if (poolPages < 1) {
+			throw new IllegalArgumentException("the pool needs at least one page");
+		}
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			return new PagedRBTree(channel, poolPages);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * public void flush()
+	 *
+	 * writes the changed pages and the header to the file and forces them to
+	 * disk; the pages stay in the pool
+	 *
+	 * in O(poolPages)
+	 */
+	public void flush() throws IOException {
+		ensureOpen();
+		for (int frame = 0; frame < this.frames.length; frame++) {
+			if (this.dirty[frame]) {
+				writeBack(frame);
+			}
+		}
+		writeHeader();
+		this.channel.force(false);
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * flushes the tree and closes its file; the tree can't be used anymore
+	 *
+	 * in O(poolPages)
+	 */
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+
+		try {
+			flush();
+		} finally {
+			this.closed = true;
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 *
+	 * in O(1)
+	 */
+	public boolean empty() {
+		ensureOpen();
+		return this.root == NIL;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the value of an item with key k if it exists in the tree
+	 * otherwise, returns null. throws UncheckedIOException if a page can't
+	 * be read or written back, as all the operations which access pages.
+	 *
+	 * in O(log(n)) page accesses
+	 */
+	public String search(int k) {
+		ensureOpen();
+		this.operations++;
+		int node = searchNode(k);
+		if (node != NIL) {
+			return value(node);
+		}
+		return null;
+	}
+
+	/**
+	 * public int insert(int k, String v)
+	 *
+	 * inserts an item with key k and value v to the red black tree. returns
+	 * the number of color switches, or 0 if no color switches were necessary.
+	 * returns -1 if an item with key k already exists in the tree.
+	 *
+	 * in O(log(n)) page accesses
+	 */
+	public int insert(int k, String v) {
+		ensureOpen();
+		this.operations++;
+
+		// edge case - inserts new node to root when the tree is empty
+		if (this.root == NIL) {
+			int node = allocate(k, v);
+			this.root = node;
+			this.min = node;
+			this.max = node;
+			this.size++;
+			return setColor(node, BLACK);
+		}
+
+		// finds the place for insertion, node with suitable null child
+		int leaf = searchLeaf(k);
+		if (leaf == NIL) {
+			return -1;
+		}
+
+		int node = allocate(k, v);
+		setParent(node, leaf);
+		if (k < key(leaf)) {
+			setLeft(leaf, node);
+		} else {
+			setRight(leaf, node);
+		}
+
+		// fixes tree if necessary - colors, size, min/max, root
+		return insertFixup(node);
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the tree, if it is there. returns the
+	 * number of color switches, or 0 if no color switches were needed. returns
+	 * -1 if an item with key k was not found in the tree.
+	 *
+	 * worst case - O(log n) page accesses
+	 */
+	public int delete(int k) {
+		ensureOpen();
+		this.operations++;
+
+		int nodeToDelete = searchNode(k);
+		if (nodeToDelete == NIL) {
+			return -1;
+		}
+
+		if (left(nodeToDelete) == NIL || right(nodeToDelete) == NIL) {
+			// nodeToDelete has at most one child, physically delete it:
+			return deleteNode(nodeToDelete);
+		}
+
+		// nodeToDelete has two children, replace it with its successor:
+		int successor = findSuccessor(nodeToDelete);
+
+		// We're going to delete the successor, but what if it's the max?
+		boolean updateMax = (successor == this.max);
+
+		moveEntry(successor, nodeToDelete);
+
+		int colorChanges = deleteNode(successor);
+		if (updateMax) {
+			this.max = nodeToDelete;
+		}
+
+		return colorChanges;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the value of the item with the smallest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(1) page accesses
+	 */
+	public String min() {
+		ensureOpen();
+		this.operations++;
+		if (this.min != NIL) {
+			return value(this.min);
+		}
+		return null;
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the value of the item with the largest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(1) page accesses
+	 */
+	public String max() {
+		ensureOpen();
+		this.operations++;
+		if (this.max != NIL) {
+			return value(this.max);
+		}
+		return null;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty
+	 * array if the tree is empty.
+	 *
+	 * O(n) - walking the successors from the min visits every edge twice
+	 */
+	public int[] keysToArray() {
+		ensureOpen();
+		int[] result = new int[this.size];
+		int node = this.min;
+		for (int ix = 0; ix < result.length; ix++) {
+			result[ix] = key(node);
+			node = findSuccessor(node);
+		}
+		return result;
+	}
+
+	/**
+	 * public String[] valuesToArray()
+	 *
+	 * Returns an array which contains all values in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 *
+	 * O(n) - walking the successors from the min visits every edge twice
+	 */
+	public String[] valuesToArray() {
+		ensureOpen();
+		String[] result = new String[this.size];
+		int node = this.min;
+		for (int ix = 0; ix < result.length; ix++) {
+			result[ix] = value(node);
+			node = findSuccessor(node);
+		}
+		return result;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		ensureOpen();
+		return this.size;
+	}
+
+	/**
+	 * public int poolPages()
+	 *
+	 * returns the number of pages the buffer pool holds
+	 *
+	 * in O(1)
+	 */
+	public int poolPages() {
+		return this.frames.length;
+	}
+
+	/**
+	 * public long filePages()
+	 *
+	 * returns the number of pages of the tree's file, header included
+	 *
+	 * in O(1)
+	 */
+	public long filePages() {
+		return pageCount(this.used);
+	}
+
+	/**
+	 * the statistics since the tree was opened or resetStatistics() was
+	 * called: page accesses which found the page in the pool (hits) and which
+	 * had to read it (misses), pages written back, and operations - search,
+	 * insert, delete, min and max. hitRatio() is 1 before any access.
+	 */
+
+	public long hits() {
+		return this.hits;
+	}
+
+	public long misses() {
+		return this.misses;
+	}
+
+	public long pageWrites() {
+		return this.pageWrites;
+	}
+
+	public long operations() {
+		return this.operations;
+	}
+
+	public double hitRatio() {
+		long accesses = this.hits + this.misses;
+		return (accesses == 0) ? 1.0 : (double)this.hits / accesses;
+	}
+
+	// the pages read and written back per operation
+	public double ioPerOperation() {
+		return (this.operations == 0) ? 0.0 : (double)(this.misses + this.pageWrites) / this.operations;
+	}
+
+	public void resetStatistics() {
+		this.hits = 0;
+		this.misses = 0;
+		this.pageWrites = 0;
+		this.operations = 0;
+	}
+
+	/**
+	 * Private methods
+	 */
+
+	private void ensureOpen() {
+		if (this.closed) {
+			throw new IllegalStateException("the tree is closed");
+		}
+	}
+
+	// the number of pages of a file with the given number of records - O(1)
+	private static int pageCount(int records) {
+		return 1 + ((records + PAGE_RECORDS_MASK) >>> PAGE_RECORDS_SHIFT);
+	}
+
+	private void readHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, 0);
+		if (header.position() < HEADER_SIZE || header.getInt(MAGIC_OFFSET) != MAGIC) {
+			throw new IOException("not a paged tree file");
+		}
+		if (header.getInt(VERSION_OFFSET) != VERSION) {
+			throw new IOException("unsupported paged tree version " + header.getInt(VERSION_OFFSET));
+		}
+
+		this.root = header.getInt(ROOT_OFFSET);
+		this.min = header.getInt(MIN_OFFSET);
+		this.max = header.getInt(MAX_OFFSET);
+		this.size = header.getInt(SIZE_OFFSET);
+		this.used = header.getInt(USED_OFFSET);
+		this.freeHead = header.getInt(FREE_HEAD_OFFSET);
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC_OFFSET, MAGIC);
+		header.putInt(VERSION_OFFSET, VERSION);
+		header.putInt(ROOT_OFFSET, this.root);
+		header.putInt(MIN_OFFSET, this.min);
+		header.putInt(MAX_OFFSET, this.max);
+		header.putInt(SIZE_OFFSET, this.size);
+		header.putInt(USED_OFFSET, this.used);
+		header.putInt(FREE_HEAD_OFFSET, this.freeHead);
+		writeFully(header, 0);
+	}
+
+	// reads into buffer from position, until it's full or the file ends
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = this.channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				break;
+			}
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	// the buffer pool
+
+	/**
+	 * returns the frame holding page, reading the page into the pool if it
+	 * isn't there. the frame stays valid until the next call, which may
+	 * evict it - so no buffer is kept across page accesses.
+	 *
+	 * O(1), amortized over the clock hand's turns
+	 */
+	private int frameFor(int page) {
+		if (page == this.lastPage) {
+			return this.lastFrame;
+		}
+
+		int frame = this.frameOfPage[page];
+		if (frame != NO_FRAME) {
+			this.hits++;
+			this.referenced[frame] = true;
+		} else {
+			this.misses++;
+			frame = evict();
+			load(page, frame);
+		}
+
+		this.lastPage = page;
+		this.lastFrame = frame;
+		return frame;
+	}
+
+	// returns a free frame, writing back the page of the frame it empties
+	private int evict() {
+		while (true) {
+			int frame = this.hand;
+			this.hand = (frame + 1 == this.frames.length) ? 0 : frame + 1;
+
+			int page = this.pageOfFrame[frame];
+			if (page == NO_PAGE) {
+				return frame;
+			}
+			if (this.referenced[frame]) {
+				// a second chance
+				this.referenced[frame] = false;
+				continue;
+			}
+
+			if (this.dirty[frame]) {
+				writeBack(frame);
+			}
+			this.frameOfPage[page] = NO_FRAME;
+			this.pageOfFrame[frame] = NO_PAGE;
+			if (page == this.lastPage) {
+				this.lastPage = NO_PAGE;
+			}
+			return frame;
+		}
+	}
+
+	// reads a page into a free frame, a page past the end of the file is zeros
+	private void load(int page, int frame) {
+		ByteBuffer buffer = this.frames[frame];
+		buffer.clear();
+		try {
+			readFully(buffer, (long)page << PAGE_SHIFT);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		while (buffer.hasRemaining()) {
+			buffer.put((byte)0);
+		}
+
+		this.pageOfFrame[frame] = page;
+		this.frameOfPage[page] = frame;
+		this.referenced[frame] = true;
+		this.dirty[frame] = false;
+	}
+
+	private void writeBack(int frame) {
+		ByteBuffer buffer = this.frames[frame];
+		buffer.clear();
+		try {
+			writeFully(buffer, (long)this.pageOfFrame[frame] << PAGE_SHIFT);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.dirty[frame] = false;
+		this.pageWrites++;
+	}
+
+	// record accessors - O(1) page accesses
+
+	private static int page(int node) {
+		return 1 + (node >>> PAGE_RECORDS_SHIFT);
+	}
+
+	private static int offset(int node, int field) {
+		return ((node & PAGE_RECORDS_MASK) << RECORD_SHIFT) + field;
+	}
+
+	// the page buffer of a record, for reading
+	private ByteBuffer read(int node) {
+		return this.frames[frameFor(page(node))];
+	}
+
+	// the page buffer of a record, for writing
+	private ByteBuffer write(int node) {
+		int frame = frameFor(page(node));
+		this.dirty[frame] = true;
+		return this.frames[frame];
+	}
+
+	private int key(int node) {
+		return read(node).getInt(offset(node, KEY));
+	}
+
+	private int left(int node) {
+		return read(node).getInt(offset(node, LEFT));
+	}
+
+	private void setLeft(int node, int child) {
+		write(node).putInt(offset(node, LEFT), child);
+	}
+
+	private int right(int node) {
+		return read(node).getInt(offset(node, RIGHT));
+	}
+
+	private void setRight(int node, int child) {
+		write(node).putInt(offset(node, RIGHT), child);
+	}
+
+	private int parent(int node) {
+		return read(node).getInt(offset(node, PARENT));
+	}
+
+	private void setParent(int node, int parent) {
+		write(node).putInt(offset(node, PARENT), parent);
+	}
+
+	private boolean isRed(int node) {
+		return node != NIL && read(node).get(offset(node, COLOR)) == RED;
+	}
+
+	// sets the given color and returns 1 if color changed, 0 otherwise
+	private int setColor(int node, byte color) {
+		int offset = offset(node, COLOR);
+		if (read(node).get(offset) == color) {
+			return 0;
+		}
+		write(node).put(offset, color);
+		return 1;
+	}
+
+	// decodes the value of a node, following its overflow chain if it has one
+	private String value(int node) {
+		ByteBuffer page = read(node);
+		int length = page.getInt(offset(node, VALUE_LENGTH));
+		if (length == NULL_VALUE) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		if (length <= INLINE_VALUE_BYTES) {
+			int start = offset(node, VALUE_BYTES);
+			for (int ix = 0; ix < length; ix++) {
+				bytes[ix] = page.get(start + ix);
+			}
+		} else {
+			int record = page.getInt(offset(node, VALUE_BYTES));
+			for (int done = 0; done < length; done += OVERFLOW_CAPACITY) {
+				page = read(record);
+				int start = offset(record, OVERFLOW_BYTES);
+				int count = Math.min(OVERFLOW_CAPACITY, length - done);
+				for (int ix = 0; ix < count; ix++) {
+					bytes[done + ix] = page.get(start + ix);
+				}
+				record = page.getInt(offset(record, NEXT));
+			}
+		}
+		return new String(bytes, UTF8);
+	}
+
+	// stores the value of a node, inline if it's short enough
+	private void setValue(int node, String value) {
+		if (value == null) {
+			write(node).putInt(offset(node, VALUE_LENGTH), NULL_VALUE);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(UTF8);
+		if (bytes.length <= INLINE_VALUE_BYTES) {
+			ByteBuffer page = write(node);
+			page.putInt(offset(node, VALUE_LENGTH), bytes.length);
+			int start = offset(node, VALUE_BYTES);
+			for (int ix = 0; ix < bytes.length; ix++) {
+				page.put(start + ix, bytes[ix]);
+			}
+		} else {
+			// the chain is allocated first, it may evict the node's page
+			int first = storeOverflow(bytes);
+			ByteBuffer page = write(node);
+			page.putInt(offset(node, VALUE_LENGTH), bytes.length);
+			page.putInt(offset(node, VALUE_BYTES), first);
+		}
+	}
+
+	// stores bytes in a new chain of overflow records, returns its first record
+	private int storeOverflow(byte[] bytes) {
+		int next = NIL;
+		// from the last part to the first, so every record knows its next one
+		for (int done = (bytes.length - 1) / OVERFLOW_CAPACITY * OVERFLOW_CAPACITY; done >= 0; done -= OVERFLOW_CAPACITY) {
+			int record = allocateRecord();
+			ByteBuffer page = write(record);
+			page.putInt(offset(record, NEXT), next);
+			int start = offset(record, OVERFLOW_BYTES);
+			int count = Math.min(OVERFLOW_CAPACITY, bytes.length - done);
+			for (int ix = 0; ix < count; ix++) {
+				page.put(start + ix, bytes[done + ix]);
+			}
+			next = record;
+		}
+		return next;
+	}
+
+	// releases the overflow chain of a node's value, if it has one
+	private void clearValue(int node) {
+		ByteBuffer page = read(node);
+		int length = page.getInt(offset(node, VALUE_LENGTH));
+		if (length > INLINE_VALUE_BYTES) {
+			int record = page.getInt(offset(node, VALUE_BYTES));
+			while (record != NIL) {
+				int next = read(record).getInt(offset(record, NEXT));
+				releaseRecord(record);
+				record = next;
+			}
+		}
+		write(node).putInt(offset(node, VALUE_LENGTH), NULL_VALUE);
+	}
+
+	// moves the key and value of one node to another, whose value is dropped
+	private void moveEntry(int from, int to) {
+		clearValue(to);
+
+		ByteBuffer fromPage = read(from);
+		int key = fromPage.getInt(offset(from, KEY));
+		for (int ix = VALUE_LENGTH; ix < RECORD_SIZE; ix++) {
+			this.scratch[ix] = fromPage.get(offset(from, ix));
+		}
+
+		ByteBuffer toPage = write(to);
+		toPage.putInt(offset(to, KEY), key);
+		for (int ix = VALUE_LENGTH; ix < RECORD_SIZE; ix++) {
+			toPage.put(offset(to, ix), this.scratch[ix]);
+		}
+
+		// the overflow chain, if any, now belongs to "to"
+		write(from).putInt(offset(from, VALUE_LENGTH), NULL_VALUE);
+	}
+
+	// returns an unused record id - O(1), amortized for a bigger page table
+	private int allocateRecord() {
+		if (this.freeHead != NIL) {
+			int record = this.freeHead;
+			this.freeHead = read(record).getInt(offset(record, NEXT));
+			return record;
+		}
+
+		int record = this.used++;
+		if (page(record) >= this.frameOfPage.length) {
+			int pages = this.frameOfPage.length;
+			this.frameOfPage = Arrays.copyOf(this.frameOfPage, 2 * pages);
+			Arrays.fill(this.frameOfPage, pages, 2 * pages, NO_FRAME);
+		}
+		return record;
+	}
+
+	// returns a record to the free list - O(1)
+	private void releaseRecord(int record) {
+		write(record).putInt(offset(record, NEXT), this.freeHead);
+		this.freeHead = record;
+	}
+
+	// returns a new red node with no relations - O(1) page accesses
+	private int allocate(int key, String value) {
+		int node = allocateRecord();
+
+		ByteBuffer page = write(node);
+		page.putInt(offset(node, KEY), key);
+		page.putInt(offset(node, LEFT), NIL);
+		page.putInt(offset(node, RIGHT), NIL);
+		page.putInt(offset(node, PARENT), NIL);
+		page.put(offset(node, COLOR), RED);
+		setValue(node, value);
+		return node;
+	}
+
+	// returns the record of a deleted node, and its value's, to the free list
+	private void release(int node) {
+		clearValue(node);
+		releaseRecord(node);
+	}
+
+	// returns the node with matching key if exists, else NIL - O(log(n))
+	private int searchNode(int key) {
+		int node = this.root;
+		while (node != NIL) {
+			int nodeKey = key(node);
+			if (key == nodeKey) {
+				return node;
+			}
+			node = (key < nodeKey) ? left(node) : right(node);
+		}
+		return NIL;
+	}
+
+	// returns node for insertion of key; if key already exists returns NIL - O(log(n))
+	private int searchLeaf(int key) {
+		int node = this.root;
+		while (true) {
+			int nodeKey = key(node);
+			if (key == nodeKey) {
+				return NIL;
+			}
+			int next = (key < nodeKey) ? left(node) : right(node);
+			if (next == NIL) {
+				return node;
+			}
+			node = next;
+		}
+	}
+
+	// sets y as x's parent's child instead of x - O(1)
+	private void transplant(int x, int y) {
+		int xParent = parent(x);
+		setParent(y, xParent);
+		if (xParent == NIL) {
+			this.root = y;
+		} else if (left(xParent) == x) {
+			setLeft(xParent, y);
+		} else {
+			setRight(xParent, y);
+		}
+	}
+
+	// rotate a given node and its right child to the left - O(1)
+	private void rotateLeft(int x) {
+		int y = right(x);
+
+		transplant(x, y);
+		int middle = left(y);
+		setRight(x, middle);
+		if (middle != NIL) {
+			setParent(middle, x);
+		}
+		setLeft(y, x);
+		setParent(x, y);
+	}
+
+	// rotate a given node and its left child to the right - O(1)
+	private void rotateRight(int x) {
+		int y = left(x);
+
+		transplant(x, y);
+		int middle = right(y);
+		setLeft(x, middle);
+		if (middle != NIL) {
+			setParent(middle, x);
+		}
+		setRight(y, x);
+		setParent(x, y);
+	}
+
+	// returns node's successor, or NIL - worst case O(log(n))
+	private int findSuccessor(int node) {
+		if (right(node) != NIL) {
+			int rightSubtreeMin = right(node);
+			while (left(rightSubtreeMin) != NIL) {
+				rightSubtreeMin = left(rightSubtreeMin);
+			}
+			return rightSubtreeMin;
+		}
+
+		int nodeKey = key(node);
+		int ancestor = parent(node);
+		while (ancestor != NIL && key(ancestor) < nodeKey) {
+			ancestor = parent(ancestor);
+		}
+		return ancestor;
+	}
+
+	// returns node's predecessor, or NIL - worst case O(log(n))
+	private int findPredecessor(int node) {
+		if (left(node) != NIL) {
+			int pred = left(node);
+			while (right(pred) != NIL) {
+				pred = right(pred);
+			}
+			return pred;
+		}
+
+		int nodeKey = key(node);
+		int ancestor = parent(node);
+		while (ancestor != NIL && key(ancestor) > nodeKey) {
+			ancestor = parent(ancestor);
+		}
+		return ancestor;
+	}
+
+	/**
+	 * fixes tree after insertion of node, returns number of color changes
+	 *
+	 * worst case in O(log(n)) - the max number of loops is the tree height
+	 */
+	private int insertFixup(int node) {
+		this.size++;
+
+		if (key(node) < key(this.min)) {
+			this.min = node;
+		}
+		if (key(this.max) < key(node)) {
+			this.max = node;
+		}
+
+		int colorChanges = 0;
+		while (isRed(parent(node))) {
+			int nodeParent = parent(node);
+			// always exists, cause otherwise parent is a black root
+			int granny = parent(nodeParent);
+			boolean parentIsLeft = (nodeParent == left(granny));
+			int uncle = parentIsLeft ? right(granny) : left(granny);
+
+			// case 1: red uncle - recolor and continue from granny
+			if (isRed(uncle)) {
+				colorChanges += setColor(nodeParent, BLACK);
+				colorChanges += setColor(uncle, BLACK);
+				if (this.root == granny) {
+					break;
+				}
+				colorChanges += setColor(granny, RED);
+				node = granny;
+				continue;
+			}
+
+			if (parentIsLeft) {
+				// case 2: node is a right child
+				if (node == right(nodeParent)) {
+					node = nodeParent;
+					rotateLeft(node);
+					nodeParent = parent(node);
+					granny = parent(nodeParent);
+				}
+				// case 3: node is a left child
+				colorChanges += setColor(nodeParent, BLACK);
+				colorChanges += setColor(granny, RED);
+				rotateRight(granny);
+			} else {
+				// mirror case 2: node is a left child
+				if (node == left(nodeParent)) {
+					node = nodeParent;
+					rotateRight(node);
+					nodeParent = parent(node);
+					granny = parent(nodeParent);
+				}
+				// mirror case 3: node is a right child
+				colorChanges += setColor(nodeParent, BLACK);
+				colorChanges += setColor(granny, RED);
+				rotateLeft(granny);
+			}
+			break;
+		}
+		return colorChanges;
+	}
+
+	/**
+	 * physically deletes a node with at most one child, updates min and max
+	 * and fixes the "double blackness" if it arises
+	 *
+	 * returns the number of color changes - O(log(n))
+	 */
+	private int deleteNode(int nodeToDelete) {
+		this.size -= 1;
+
+		if (nodeToDelete == this.min) {
+			this.min = findSuccessor(nodeToDelete);
+		}
+		if (nodeToDelete == this.max) {
+			this.max = findPredecessor(nodeToDelete);
+		}
+
+		int colorChanges = 0;
+		int child = (left(nodeToDelete) != NIL) ? left(nodeToDelete) : right(nodeToDelete);
+
+		if (child == NIL) {
+			if (parent(nodeToDelete) == NIL) {
+				// the last node in the tree
+				this.root = NIL;
+			} else {
+				// a black leaf is fixed while still in place, and only then removed
+				if (!isRed(nodeToDelete)) {
+					colorChanges += fixTreeAfterDeletion(nodeToDelete);
+				}
+
+				int nodeParent = parent(nodeToDelete);
+				if (left(nodeParent) == nodeToDelete) {
+					setLeft(nodeParent, NIL);
+				} else {
+					setRight(nodeParent, NIL);
+				}
+			}
+		} else {
+			// nodeToDelete has only one child, replace it with its child.
+			transplant(nodeToDelete, child);
+
+			if (!isRed(nodeToDelete)) {
+				if (isRed(child)) {
+					colorChanges += setColor(child, BLACK);
+				} else {
+					colorChanges += fixTreeAfterDeletion(child);
+				}
+			}
+		}
+
+		release(nodeToDelete);
+		return colorChanges;
+	}
+
+	/**
+	 * fixes the tree after doubleBlackNode became "double black"
+	 *
+	 * returns the number of color changes - O(log(n)) loops at most
+	 */
+	private int fixTreeAfterDeletion(int doubleBlackNode) {
+		int colorChanges = 0;
+
+		while (true) {
+			if (doubleBlackNode == this.root) {
+				return colorChanges;
+			}
+
+			if (isRed(doubleBlackNode)) {
+				return colorChanges + setColor(doubleBlackNode, BLACK);
+			}
+
+			int nodeParent = parent(doubleBlackNode);
+			boolean isLeft = (doubleBlackNode == left(nodeParent));
+			int sibling = isLeft ? right(nodeParent) : left(nodeParent);
+
+			if (isRed(sibling)) {
+				// case 1: the sibling is red
+				if (isLeft) {
+					rotateLeft(nodeParent);
+				} else {
+					rotateRight(nodeParent);
+				}
+				colorChanges += setColor(nodeParent, RED);
+				colorChanges += setColor(sibling, BLACK);
+				continue;
+			}
+
+			// the sibling is black
+			int proximalNephew = isLeft ? left(sibling) : right(sibling);
+			int distalNephew = isLeft ? right(sibling) : left(sibling);
+
+			if (!isRed(proximalNephew) && !isRed(distalNephew)) {
+				// case 2: both nephews are black, move the double blackness up
+				colorChanges += setColor(sibling, RED);
+				doubleBlackNode = nodeParent;
+				continue;
+			}
+
+			if (!isRed(distalNephew)) {
+				// case 3: the distal nephew is black, the proximal one is red
+				if (isLeft) {
+					rotateRight(sibling);
+				} else {
+					rotateLeft(sibling);
+				}
+				colorChanges += setColor(proximalNephew, BLACK);
+				colorChanges += setColor(sibling, RED);
+
+				distalNephew = sibling;
+				sibling = proximalNephew;
+			}
+
+			// case 4: the distal nephew is red
+			byte parentColor = isRed(nodeParent) ? RED : BLACK;
+			if (isLeft) {
+				rotateLeft(nodeParent);
+			} else {
+				rotateRight(nodeParent);
+			}
+			colorChanges += setColor(sibling, parentColor);
+			colorChanges += setColor(nodeParent, BLACK);
+			colorChanges += setColor(distalNephew, BLACK);
+
+			return colorChanges;
+		}
+	}
+}
@@ -0,0 +1,453 @@
+/**
+ *
+ * PersistentRBTree
+ *
+ * A Red Black Tree with non-negative, distinct integer keys and String
+ * values, whose nodes are never changed once created. An insert or a delete
+ * copies only the nodes on the path it walks (and the few around it which
+ * the rebalancing touches) - O(log(n)) new nodes - and shares every other
+ * subtree with the previous version.
+ *
+ * Every write publishes a new Snapshot, an immutable version of the tree.
+ * snapshot() is O(1), and a snapshot can be read from any number of threads,
+ * without any locking, while writes go on - it never changes.
+ *
+ * Writes are serialized with each other. The balancing is the functional
+ * one of Okasaki (insert) and Kahrs (delete), which doesn't map to RBTree's
+ * color switches, so insert and delete only tell success (0) from failure
+ * (-1).
+ *
+ */
+
+public class PersistentRBTree {
+	// the maximal height of a valid tree of up to 2^31 nodes, for the iteration stacks:
+	private static final int MAX_HEIGHT = 64;
+
+	private static final Snapshot EMPTY = new Snapshot(null, 0);
+
+	// the current version, replaced by every successful write:
+	private volatile Snapshot current = EMPTY;
+
+	/**
+	 * public Snapshot snapshot()
+	 *
+	 * returns the current version of the tree, which later writes don't change
+	 *
+	 * in O(1)
+	 */
+	public Snapshot snapshot() {
+		return this.current;
+	}
+
+	/**
+	 * public synchronized int insert(int k, String v)
+	 *
+	 * inserts an item with key k and value v, returns 0 - or -1 if an item
+	 * with key k already exists in the tree
+	 *
+	 * in O(log(n)), creating O(log(n)) nodes
+	 */
+	public synchronized int insert(int k, String v) {
+		Snapshot version = this.current;
+		if (version.findNode(k) != null) {
+			return -1;
+		}
+
+		Node root = insert(version.root, k, v);
+		this.current = new Snapshot(blacken(root), version.size + 1);
+		return 0;
+	}
+
+	/**
+	 * public synchronized int delete(int k)
+	 *
+	 * deletes the item with key k, returns 0 - or -1 if there's no such item
+	 *
+	 * in O(log(n)), creating O(log(n)) nodes
+	 */
+	public synchronized int delete(int k) {
+		Snapshot version = this.current;
+		if (version.findNode(k) == null) {
+			return -1;
+		}
+
+		Node root = delete(version.root, k);
+		this.current = new Snapshot(blacken(root), version.size - 1);
+		return 0;
+	}
+
+	/**
+	 * the read operations of the current version - see Snapshot
+	 */
+
+	public boolean empty() {
+		return this.current.empty();
+	}
+
+	public String search(int k) {
+		return this.current.search(k);
+	}
+
+	public String min() {
+		return this.current.min();
+	}
+
+	public String max() {
+		return this.current.max();
+	}
+
+	public int[] keysToArray() {
+		return this.current.keysToArray();
+	}
+
+	public String[] valuesToArray() {
+		return this.current.valuesToArray();
+	}
+
+	public int size() {
+		return this.current.size();
+	}
+
+	/**
+	 * public static class Snapshot
+	 *
+	 * an immutable version of the tree
+	 */
+	public static class Snapshot {
+		private final Node root;
+		private final int size;
+		private final Node min;
+		private final Node max;
+
+		// O(log(n)) - finding the min and max
+		private Snapshot(Node root, int size) {
+			this.root = root;
+			this.size = size;
+
+			Node node = root;
+			while (node != null && node.left != null) {
+				node = node.left;
+			}
+			this.min = node;
+
+			node = root;
+			while (node != null && node.right != null) {
+				node = node.right;
+			}
+			this.max = node;
+		}
+
+		// returns true iff the version is empty - O(1)
+		public boolean empty() {
+			return this.root == null;
+		}
+
+		// returns the value of key k, or null if there's none - O(log(n))
+		public String search(int k) {
+			Node node = this.findNode(k);
+			return (node == null) ? null : node.value;
+		}
+
+		// returns the value of the smallest key, or null if empty - O(1)
+		public String min() {
+			return (this.min == null) ? null : this.min.value;
+		}
+
+		// returns the value of the largest key, or null if empty - O(1)
+		public String max() {
+			return (this.max == null) ? null : this.max.value;
+		}
+
+		// returns the number of items - O(1)
+		public int size() {
+			return this.size;
+		}
+
+		// returns the sorted keys - O(n)
+		public int[] keysToArray() {
+			final int[] result = new int[this.size];
+			this.forEach(new RBTree.EntryVisitor() {
+				private int ix = 0;
+
+				public boolean visit(int key, String value) {
+					result[this.ix++] = key;
+					return true;
+				}
+			});
+			return result;
+		}
+
+		// returns the values, sorted by their keys - O(n)
+		public String[] valuesToArray() {
+			final String[] result = new String[this.size];
+			this.forEach(new RBTree.EntryVisitor() {
+				private int ix = 0;
+
+				public boolean visit(int key, String value) {
+					result[this.ix++] = value;
+					return true;
+				}
+			});
+			return result;
+		}
+
+		/**
+		 * passes the items to the visitor in ascending key order, until the
+		 * visitor returns false; returns the number of items visited
+		 *
+		 * O(n), without recursion - the path to the current node is kept in an
+		 * array, which is the only allocation
+		 */
+		public int forEach(RBTree.EntryVisitor visitor) {
+			Node[] path = new Node[MAX_HEIGHT];
+			int depth = 0;
+			int visited = 0;
+			Node node = this.root;
+
+			while (node != null || depth > 0) {
+				// go down to the leftmost node, remembering the way back
+				while (node != null) {
+					path[depth++] = node;
+					node = node.left;
+				}
+
+				node = path[--depth];
+				visited++;
+				if (!visitor.visit(node.key, node.value)) {
+					break;
+				}
+				node = node.right;
+			}
+
+			return visited;
+		}
+
+		// returns the node of key k, or null - O(log(n))
+		private Node findNode(int k) {
+			Node node = this.root;
+			while (node != null) {
+				if (k == node.key) {
+					return node;
+				}
+				node = (k < node.key) ? node.left : node.right;
+			}
+			return null;
+		}
+
+		/**
+		 * returns true iff the version is a valid red black tree: a black root,
+		 * no red node with a red child, the same number of black nodes on
+		 * every path, keys in order. used by the tester - O(n)
+		 */
+		boolean isValid() {
+			return (this.root == null || !this.root.red) &&
+					blackHeight(this.root, Long.MIN_VALUE, Long.MAX_VALUE) >= 0 &&
+					count(this.root) == this.size;
+		}
+
+		// returns the black height of a valid subtree, -1 for an invalid one
+		private static int blackHeight(Node node, long lo, long hi) {
+			if (node == null) {
+				return 1;
+			}
+			if (node.key <= lo || node.key >= hi) {
+				return -1;
+			}
+			if (node.red && (isRed(node.left) || isRed(node.right))) {
+				return -1;
+			}
+
+			int left = blackHeight(node.left, lo, node.key);
+			int right = blackHeight(node.right, node.key, hi);
+			if (left < 0 || left != right) {
+				return -1;
+			}
+			return left + (node.red ? 0 : 1);
+		}
+
+		private static int count(Node node) {
+			return (node == null) ? 0 : 1 + count(node.left) + count(node.right);
+		}
+	}
+
+	/**
+	 * Private methods
+	 *
+	 * all of them build new nodes instead of changing existing ones. the
+	 * recursion depth is the tree height, O(log(n)).
+	 */
+
+	// Okasaki's insert: a red leaf, rebalancing on the way up
+	private static Node insert(Node node, int k, String v) {
+		if (node == null) {
+			return new Node(true, null, k, v, null);
+		}
+
+		if (k < node.key) {
+			Node left = insert(node.left, k, v);
+			return node.red ? node.withLeft(left) : balance(left, node, node.right);
+		} else {
+			Node right = insert(node.right, k, v);
+			return node.red ? node.withRight(right) : balance(node.left, node, right);
+		}
+	}
+
+	// Kahrs' delete, k must be in the subtree
+	private static Node delete(Node node, int k) {
+		if (k < node.key) {
+			if (isBlackNode(node.left)) {
+				return balanceLeft(delete(node.left, k), node, node.right);
+			}
+			return new Node(true, delete(node.left, k), node.key, node.value, node.right);
+		}
+		if (k > node.key) {
+			if (isBlackNode(node.right)) {
+				return balanceRight(node.left, node, delete(node.right, k));
+			}
+			return new Node(true, node.left, node.key, node.value, delete(node.right, k));
+		}
+		return append(node.left, node.right);
+	}
+
+	/**
+	 * builds a black node of (left, item, right), fixing a red node with a
+	 * red child below it - Okasaki's four cases, plus Kahrs' case of two red
+	 * children
+	 */
+	private static Node balance(Node left, Node item, Node right) {
+		if (isRed(left) && isRed(right)) {
+			return new Node(true, left.recolor(false), item.key, item.value, right.recolor(false));
+		}
+		if (isRed(left)) {
+			if (isRed(left.left)) {
+				return new Node(true, left.left.recolor(false), left.key, left.value,
+						new Node(false, left.right, item.key, item.value, right));
+			}
+			if (isRed(left.right)) {
+				Node middle = left.right;
+				return new Node(true, new Node(false, left.left, left.key, left.value, middle.left),
+						middle.key, middle.value, new Node(false, middle.right, item.key, item.value, right));
+			}
+		}
+		if (isRed(right)) {
+			if (isRed(right.right)) {
+				return new Node(true, new Node(false, left, item.key, item.value, right.left),
+						right.key, right.value, right.right.recolor(false));
+			}
+			if (isRed(right.left)) {
+				Node middle = right.left;
+				return new Node(true, new Node(false, left, item.key, item.value, middle.left),
+						middle.key, middle.value, new Node(false, middle.right, right.key, right.value, right.right));
+			}
+		}
+		return new Node(false, left, item.key, item.value, right);
+	}
+
+	// rebalances after the left subtree lost one black height
+	private static Node balanceLeft(Node left, Node item, Node right) {
+		if (isRed(left)) {
+			return new Node(true, left.recolor(false), item.key, item.value, right);
+		}
+		if (isBlackNode(right)) {
+			return balance(left, item, right.recolor(true));
+		}
+		// right is red, with a black left child
+		Node middle = right.left;
+		return new Node(true, new Node(false, left, item.key, item.value, middle.left),
+				middle.key, middle.value, balance(middle.right, right, right.right.recolor(true)));
+	}
+
+	// rebalances after the right subtree lost one black height
+	private static Node balanceRight(Node left, Node item, Node right) {
+		if (isRed(right)) {
+			return new Node(true, left, item.key, item.value, right.recolor(false));
+		}
+		if (isBlackNode(left)) {
+			return balance(left.recolor(true), item, right);
+		}
+		// left is red, with a black right child
+		Node middle = left.right;
+		return new Node(true, balance(left.left.recolor(true), left, middle.left),
+				middle.key, middle.value, new Node(false, middle.right, item.key, item.value, right));
+	}
+
+	// joins two subtrees of the same black height, all of left's keys are smaller
+	private static Node append(Node left, Node right) {
+		if (left == null) {
+			return right;
+		}
+		if (right == null) {
+			return left;
+		}
+
+		if (left.red && right.red) {
+			Node middle = append(left.right, right.left);
+			if (isRed(middle)) {
+				return new Node(true, new Node(true, left.left, left.key, left.value, middle.left),
+						middle.key, middle.value, new Node(true, middle.right, right.key, right.value, right.right));
+			}
+			return new Node(true, left.left, left.key, left.value,
+					new Node(true, middle, right.key, right.value, right.right));
+		}
+		if (!left.red && !right.red) {
+			Node middle = append(left.right, right.left);
+			if (isRed(middle)) {
+				return new Node(true, new Node(false, left.left, left.key, left.value, middle.left),
+						middle.key, middle.value, new Node(false, middle.right, right.key, right.value, right.right));
+			}
+			return balanceLeft(left.left, left, new Node(false, middle, right.key, right.value, right.right));
+		}
+		if (right.red) {
+			return new Node(true, append(left, right.left), right.key, right.value, right.right);
+		}
+		return new Node(true, left.left, left.key, left.value, append(left.right, right));
+	}
+
+	// returns a black version of a (root) node
+	private static Node blacken(Node node) {
+		return (node == null) ? null : node.recolor(false);
+	}
+
+	private static boolean isRed(Node node) {
+		return node != null && node.red;
+	}
+
+	// true for real black nodes only - not for null
+	private static boolean isBlackNode(Node node) {
+		return node != null && !node.red;
+	}
+
+	/**
+	 * Helper classes
+	 */
+
+	// an immutable node
+	private static class Node {
+		private final boolean red;
+		private final Node left;
+		private final int key;
+		private final String value;
+		private final Node right;
+
+		public Node(boolean red, Node left, int key, String value, Node right) {
+			this.red = red;
+			this.left = left;
+			this.key = key;
+			this.value = value;
+			this.right = right;
+		}
+
+		// returns this node in the given color, copying it only if needed - O(1)
+		public Node recolor(boolean red) {
+			return (this.red == red) ? this : new Node(red, this.left, this.key, this.value, this.right);
+		}
+
+		public Node withLeft(Node left) {
+			return new Node(this.red, left, this.key, this.value, this.right);
+		}
+
+		public Node withRight(Node right) {
+			return new Node(this.red, this.left, this.key, this.value, right);
+		}
+	}
+}
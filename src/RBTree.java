@@ -1,4 +1,19 @@
 
+import java.nio.IntBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  *
  * RBTree
@@ -9,11 +24,21 @@
  */
 
 public class RBTree {
+	// set operations on fewer nodes than this don't fork any more tasks:
+	private static final int SEQUENTIAL_SET_OPERATION_SIZE = 1 << 12;
 	
 	private RBNode root;
 	private RBNode min;
 	private RBNode max;
 	private int size;
+	// true iff the nodes keep in-order links to their successor/predecessor:
+	private final boolean threaded;
+	// the number of times nodes were removed from the tree, fingers placed
+	// before the last removal may point at removed nodes:
+	private long removals;
+	// the metrics the operations are recorded in, or null for none - volatile,
+	// so metrics set while other threads read the tree reach them too:
+	private volatile TreeMetrics metrics;
 
 	/**
 	 * public class RBNode
@@ -30,6 +55,11 @@ public class RBTree {
 		private RBNode parent;
 		private RBNode leftChild;
 		private RBNode rightChild;
+		// the number of nodes in the subtree rooted at this node:
+		private int subtreeSize = 1;
+		// the in-order successor and predecessor, in a threaded tree only:
+		private RBNode next;
+		private RBNode prev;
 		
 		// empty constructor - creates a red node with no other properties
 		// parents and children are null by default
@@ -128,6 +158,21 @@ public class RBTree {
 			this.value = value;
 		}
 		
+		// getter for the number of nodes in the RBNode's subtree - O(1)
+		public int getSubtreeSize() {
+			return this.subtreeSize;
+		}
+		
+		// getter for the in-order successor, null unless the tree is threaded - O(1)
+		public RBNode getNext() {
+			return this.next;
+		}
+		
+		// getter for the in-order predecessor, null unless the tree is threaded - O(1)
+		public RBNode getPrev() {
+			return this.prev;
+		}
+		
 		// getter for RBNode parent - O(1)
 		public RBNode getParent() {
 			return this.parent;
@@ -167,6 +212,70 @@ public class RBTree {
 		}
 	}
 
+	/**
+	 * public RBTree()
+	 *
+	 * creates an empty tree
+	 */
+	public RBTree() {
+		this(false);
+	}
+
+	/**
+	 * public RBTree(boolean threaded)
+	 *
+	 * creates an empty tree. in a threaded tree every node also links to its
+	 * in-order successor and predecessor, so finding them (when deleting,
+	 * scanning or iterating) is O(1) instead of O(log(n)), for two more
+	 * references per node.
+	 */
+	public RBTree(boolean threaded) {
+		this.threaded = threaded;
+	}
+
+	/**
+	 * public boolean isThreaded()
+	 *
+	 * returns true if and only if the nodes link to their in-order neighbors
+	 *
+	 * in O(1)
+	 */
+	public boolean isThreaded() {
+		return this.threaded;
+	}
+
+	/**
+	 * public void setMetrics(TreeMetrics metrics)
+	 *
+	 * starts recording the operations of the tree in metrics, which may be
+	 * shared with other trees - or stops recording, if metrics is null. with
+	 * no metrics, an operation pays a null check for them and nothing more.
+	 * 
+	 * every search, insert and delete is recorded - by key, with a finger,
+	 * in a batch, or by a poll. split, join, the set operations and the bulk
+	 * builders make new trees, which record nothing unless they're given
+	 * metrics of their own.
+	 * 
+	 * may be called while other threads use the tree: every operation reads
+	 * the metrics once, and records in those till it returns.
+	 * 
+	 * in O(1)
+	 */
+	public void setMetrics(TreeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * public TreeMetrics getMetrics()
+	 *
+	 * returns the metrics the tree records its operations in, or null
+	 *
+	 * in O(1)
+	 */
+	public TreeMetrics getMetrics() {
+		return this.metrics;
+	}
+
 	/**
 	 * public RBNode getRoot()
 	 *
@@ -198,11 +307,17 @@ public class RBTree {
 	 * returns the value of an item with key k if it exists in the tree
 	 * otherwise, returns null
 	 * 
-	 * in O(log(n)), because of the recursive inner method searchNode(k)
+	 * in O(log(n)), because of the inner method searchNode(k)
 	 */
 	public String search(int k) {
-		if (searchNode(k) != null) {
-			return searchNode(k).value;
+		TreeMetrics metrics = this.metrics;
+		if (metrics != null) {
+			return measuredSearch(k, metrics);
+		}
+		
+		RBNode node = searchNode(k);
+		if (node != null) {
+			return node.value;
 		}
 		return null;
 	}
@@ -218,33 +333,14 @@ public class RBTree {
 	 * in O(log(n)), because of the inner method insertFixup(node)
 	 */
 	public int insert(int k, String v) {
-		RBNode myNode = new RBNode(k, v);
-		
-		// edge case - inserts new RBNode to root when RBTree is empty
-		if (this.empty()) {
-			this.root = myNode;
-			this.min = myNode;
-			this.max = myNode;
-			size++;
-			return myNode.setColor(RBNode.Color.BLACK);
-		}
-		
-		// finds the place for insertion, RBNode with suitable null child
-		RBNode myLeaf = searchLeaf(k);
-		
-		// inserts new RBNode
-		if (myLeaf != null) {
-			myNode.parent = myLeaf;
-			if (myNode.key < myLeaf.key) {
-				myLeaf.leftChild = myNode;
-			} else {
-				myLeaf.rightChild = myNode;
-			}
-
-			// fixes tree if necessary - colors, size, min/max, root
-			return insertFixup(myNode);
+		TreeMetrics metrics = this.metrics;
+		if (metrics != null) {
+			long start = System.nanoTime();
+			int colorChanges = insertKey(k, v, metrics);
+			metrics.recordInsert(System.nanoTime() - start);
+			return colorChanges;
 		}
-		return -1;
+		return insertKey(k, v, null);
 	}
 
 	/**
@@ -258,32 +354,297 @@ public class RBTree {
 	 * worst case - O(log n), because of the inner methods deleteNode(node), findSuccessor(node)
 	 */
 	public int delete(int k) {
-		RBNode nodeToDelete = this.searchNode(k);
-		if (nodeToDelete == null) {
-			return -1;
+		TreeMetrics metrics = this.metrics;
+		if (metrics != null) {
+			long start = System.nanoTime();
+			int colorChanges = deleteKey(k, metrics);
+			metrics.recordDelete(System.nanoTime() - start);
+			return colorChanges;
 		}
+		return deleteKey(k, null);
+	}
+
+	/**
+	 * public int[] applyBatch(Batch batch)
+	 *
+	 * applies all the operations of a batch of inserts and deletes, and
+	 * returns their results (color switches or -1, as insert and delete
+	 * return), in the order they were added to the batch.
+	 * 
+	 * the operations are applied in ascending key order, and operations on the
+	 * same key in the order they were added, so the final tree is the one
+	 * applying them one by one would give. each result is exactly that of the
+	 * corresponding single call, made in this order.
+	 * 
+	 * instead of starting every operation at the root, the sweep starts at the
+	 * node the previous operation ended at, climbs only until the subtree
+	 * which may hold the key and descends from there - so a shared path
+	 * prefix is traversed once per batch rather than once per operation.
+	 * 
+	 * O(m*log(m)) for sorting m operations, and O(log(n)) per operation at
+	 * worst, less when the keys are close to each other
+	 */
+	public int[] applyBatch(Batch batch) {
+		int count = batch.count;
+		int[] results = new int[count];
 		
-		if (nodeToDelete.getLeft() == null || nodeToDelete.getRight() == null) {
-			// nodeToDelete has at most one child, physically delete it:
-			return this.deleteNode(nodeToDelete);
+		// sort (key, index) pairs packed into longs - ordered by key, and
+		// by the order of addition for equal keys
+		long[] order = new long[count];
+		for (int ix = 0; ix < count; ix++) {
+			order[ix] = ((long)batch.keys[ix] << 32) | ix;
 		}
-		else  {
-			// nodeToDelete has two children, replace it with its successor:
-			RBNode successor = this.findSuccessor(nodeToDelete);
+		Arrays.sort(order);
+		
+		// the node the previous operation ended at, always in the tree:
+		RBNode finger = null;
+		TreeMetrics metrics = this.metrics;
+		for (int ix = 0; ix < count; ix++) {
+			int op = (int)order[ix];
+			int key = batch.keys[op];
+			long startTime = (metrics != null) ? System.nanoTime() : 0;
 			
-			// We're going to delete the successor, but what if it's the max?
-			boolean updateMax = (successor == this.max);
+			if (this.empty()) {
+				results[op] = batch.isInsert[op] ? this.insertKey(key, batch.values[op], metrics) : -1;
+				finger = this.root;
+				recordBatchOperation(metrics, batch.isInsert[op], startTime);
+				continue;
+			}
 			
-			nodeToDelete.setKey(successor.getKey());
-			nodeToDelete.setValue(successor.getValue());
+			RBNode start = (finger == null) ? this.root : climbTowards(finger, key);
+			RBNode node = this.searchFrom(start, key);
 			
-			int colorChanges = this.deleteNode(successor);
-			if (updateMax) {
-				this.max = nodeToDelete;
+			if (batch.isInsert[op]) {
+				if (node.key == key) {
+					results[op] = -1;
+					finger = node;
+				} else {
+					RBNode myNode = new RBNode(key, batch.values[op]);
+					results[op] = attachLeaf(node, myNode, metrics);
+					finger = myNode;
+				}
+			} else {
+				if (node.key != key) {
+					results[op] = -1;
+					finger = node;
+				} else {
+					// the predecessor survives the deletion, and is below the next keys
+					finger = this.findPredecessor(node);
+					results[op] = this.deleteFoundNode(node, metrics);
+				}
 			}
-			
+			recordBatchOperation(metrics, batch.isInsert[op], startTime);
+		}
+		
+		return results;
+	}
+
+	/**
+	 * public Finger finger()
+	 *
+	 * returns a new finger of the tree, for search, insert and delete with a
+	 * finger. the finger isn't placed anywhere yet, so its first use starts
+	 * at the root.
+	 * 
+	 * in O(1)
+	 */
+	public Finger finger() {
+		return new Finger(this);
+	}
+
+	/**
+	 * public String search(int k, Finger finger)
+	 *
+	 * as search(k), starting from the finger instead of the root; leaves the
+	 * finger at the node the search ended at. throws IllegalArgumentException
+	 * if the finger belongs to another tree.
+	 * 
+	 * O(log(d)) amortized when the finger's key is d positions away from k,
+	 * O(log(n)) at worst
+	 */
+	public String search(int k, Finger finger) {
+		TreeMetrics metrics = this.metrics;
+		if (metrics != null) {
+			long start = System.nanoTime();
+			String value = fingerSearch(k, finger);
+			metrics.recordSearch(System.nanoTime() - start);
+			return value;
+		}
+		return fingerSearch(k, finger);
+	}
+
+	/**
+	 * public int insert(int k, String v, Finger finger)
+	 *
+	 * as insert(k, v), searching for the place of k from the finger instead
+	 * of the root; leaves the finger at k's node. throws
+	 * IllegalArgumentException if the finger belongs to another tree.
+	 * 
+	 * O(log(d)) amortized when the finger's key is d positions away from k
+	 * (the fixup is amortized O(1)), O(log(n)) at worst
+	 */
+	public int insert(int k, String v, Finger finger) {
+		TreeMetrics metrics = this.metrics;
+		if (metrics != null) {
+			long start = System.nanoTime();
+			int colorChanges = fingerInsert(k, v, finger, metrics);
+			metrics.recordInsert(System.nanoTime() - start);
+			return colorChanges;
+		}
+		return fingerInsert(k, v, finger, null);
+	}
+
+	/**
+	 * public int delete(int k, Finger finger)
+	 *
+	 * as delete(k), searching for k from the finger instead of the root;
+	 * leaves the finger at k's predecessor (or at the new min, if k was the
+	 * min), so deletes in either direction stay close to it. throws
+	 * IllegalArgumentException if the finger belongs to another tree.
+	 * 
+	 * O(log(d)) amortized when the finger's key is d positions away from k,
+	 * O(log(n)) at worst
+	 */
+	public int delete(int k, Finger finger) {
+		TreeMetrics metrics = this.metrics;
+		if (metrics != null) {
+			long start = System.nanoTime();
+			int colorChanges = fingerDelete(k, finger, metrics);
+			metrics.recordDelete(System.nanoTime() - start);
+			return colorChanges;
+		}
+		return fingerDelete(k, finger, null);
+	}
+	
+	// search with a finger, without recording it in the metrics - O(log(n))
+	private String fingerSearch(int k, Finger finger) {
+		RBNode start = this.fingerStart(finger, k);
+		if (start == null) {
+			return null;
+		}
+		
+		RBNode node = this.searchFrom(start, k);
+		finger.place(node, this.removals);
+		return (node.key == k) ? node.value : null;
+	}
+	
+	// insert with a finger, recording only its fixup in metrics (if not null) - O(log(n))
+	private int fingerInsert(int k, String v, Finger finger, TreeMetrics metrics) {
+		RBNode start = this.fingerStart(finger, k);
+		if (start == null) {
+			int colorChanges = this.insertKey(k, v, metrics);
+			finger.place(this.root, this.removals);
 			return colorChanges;
 		}
+		
+		RBNode node = this.searchFrom(start, k);
+		if (node.key == k) {
+			finger.place(node, this.removals);
+			return -1;
+		}
+		
+		RBNode myNode = new RBNode(k, v);
+		int colorChanges = attachLeaf(node, myNode, metrics);
+		finger.place(myNode, this.removals);
+		return colorChanges;
+	}
+	
+	// delete with a finger, recording only its fixup in metrics (if not null) - O(log(n))
+	private int fingerDelete(int k, Finger finger, TreeMetrics metrics) {
+		RBNode start = this.fingerStart(finger, k);
+		if (start == null) {
+			return -1;
+		}
+		
+		RBNode node = this.searchFrom(start, k);
+		if (node.key != k) {
+			finger.place(node, this.removals);
+			return -1;
+		}
+		
+		// the predecessor survives the deletion
+		RBNode predecessor = this.findPredecessor(node);
+		int colorChanges = this.deleteFoundNode(node, metrics);
+		finger.place((predecessor != null) ? predecessor : this.min, this.removals);
+		return colorChanges;
+	}
+
+	/**
+	 * public Map.Entry<Integer, String> pollFirst()
+	 *
+	 * removes the item with the smallest key and returns it, or returns null
+	 * if the tree is empty
+	 * 
+	 * amortized O(1) - the min is cached, has no left child, and its
+	 * successor is its right child or its parent; the fixup is amortized O(1)
+	 */
+	public Map.Entry<Integer, String> pollFirst() {
+		RBNode first = this.min;
+		if (first == null) {
+			return null;
+		}
+		
+		this.removeNode(first, this.metrics);
+		return entryOf(first);
+	}
+
+	/**
+	 * public Map.Entry<Integer, String> pollLast()
+	 *
+	 * removes the item with the largest key and returns it, or returns null
+	 * if the tree is empty
+	 * 
+	 * amortized O(1), as pollFirst()
+	 */
+	public Map.Entry<Integer, String> pollLast() {
+		RBNode last = this.max;
+		if (last == null) {
+			return null;
+		}
+		
+		this.removeNode(last, this.metrics);
+		return entryOf(last);
+	}
+
+	/**
+	 * public int pollFirst(int n, int[] keys, int keysOffset, String[] values,
+	 *                      int valuesOffset)
+	 *
+	 * removes the n items with the smallest keys (or all of them, if there
+	 * are fewer), copying their keys and values in key order into the given
+	 * arrays, starting at the given offsets. either array may be null, as in
+	 * export. returns the number of items removed.
+	 * 
+	 * throws IndexOutOfBoundsException if n is negative, or the items don't
+	 * fit in an array.
+	 * 
+	 * amortized O(1) per item, without any allocation
+	 */
+	public int pollFirst(int n, int[] keys, int keysOffset, String[] values, int valuesOffset) {
+		if (n < 0) {
+			throw new IndexOutOfBoundsException("n = " + n);
+		}
+		int count = Math.min(n, this.size);
+		if (keys != null && (keysOffset < 0 || keysOffset > keys.length - count)) {
+			throw new IndexOutOfBoundsException("keysOffset = " + keysOffset + ", count = " + count);
+		}
+		if (values != null && (valuesOffset < 0 || valuesOffset > values.length - count)) {
+			throw new IndexOutOfBoundsException("valuesOffset = " + valuesOffset + ", count = " + count);
+		}
+		
+		TreeMetrics metrics = this.metrics;
+		for (int ix = 0; ix < count; ix++) {
+			RBNode first = this.min;
+			if (keys != null) {
+				keys[keysOffset + ix] = first.key;
+			}
+			if (values != null) {
+				values[valuesOffset + ix] = first.value;
+			}
+			this.removeNode(first, metrics);
+		}
+		
+		return count;
 	}
 
 	/**
@@ -322,20 +683,12 @@ public class RBTree {
 	 * Returns a sorted array which contains all keys in the tree, or an empty
 	 * array if the tree is empty.
 	 * 
-	 * worst case - O(n) (inorder traversal is O(n), collecting all keys into
-	 * a list is O(n), copying the list into a result array is O(n))
+	 * worst case - O(n) (a single inorder walk along the successors, straight
+	 * into an array of the known size)
 	 */
 	public int[] keysToArray() {
-		List keys = new List();
-		
-		this.collectKeysInorder(this.getRoot(), keys);
-		
-		int[] result = new int[keys.length()];
-		for (int ix = 0; ix < result.length; ix++)
-		{
-			result[ix] = (int)keys.getItem(ix);
-		}
-		
+		int[] result = new int[this.size];
+		this.export(0, this.size, result, 0, null, 0);
 		return result;
 	}
 
@@ -345,75 +698,638 @@ public class RBTree {
 	 * Returns an array which contains all values in the tree, sorted by their
 	 * respective keys, or an empty array if the tree is empty.
 	 * 
-	 * worst case - O(n) (inorder traversal is O(n), collecting all values into
-	 * a list is O(n), copying the list into a result array is O(n))
+	 * worst case - O(n) (a single inorder walk along the successors, straight
+	 * into an array of the known size)
 	 */
 	public String[] valuesToArray() {
-		List values = new List();
-		
-		this.collectValuesInorder(this.getRoot(), values);
+		String[] result = new String[this.size];
+		this.export(0, this.size, null, 0, result, 0);
+		return result;
+	}
+
+	/**
+	 * public int export(int from, int length, int[] keys, int keysOffset,
+	 *                   String[] values, int valuesOffset)
+	 *
+	 * copies the keys and values of the items at positions from..from+length-1
+	 * in key order (the same positions as in keysToArray()) into the given
+	 * arrays, starting at the given offsets - in a single walk. either array
+	 * may be null, if only keys or only values are needed. a window past the
+	 * last item is cut short. returns the number of items copied.
+	 * 
+	 * throws IndexOutOfBoundsException if from or length is negative, or the
+	 * window doesn't fit in an array.
+	 * 
+	 * O(log(n)) to find the first item, and amortized O(1) per item after it,
+	 * without any allocation
+	 */
+	public int export(int from, int length, int[] keys, int keysOffset, String[] values, int valuesOffset) {
+		if (from < 0 || length < 0) {
+			throw new IndexOutOfBoundsException("from = " + from + ", length = " + length);
+		}
+		int count = Math.max(0, Math.min(length, this.size - from));
+		if (keys != null && (keysOffset < 0 || keysOffset > keys.length - count)) {
+			throw new IndexOutOfBoundsException("keysOffset = " + keysOffset + ", count = " + count);
+		}
+		if (values != null && (valuesOffset < 0 || valuesOffset > values.length - count)) {
+			throw new IndexOutOfBoundsException("valuesOffset = " + valuesOffset + ", count = " + count);
+		}
 		
-		String[] result = new String[values.length()];
-		for (int ix = 0; ix < result.length; ix++)
-		{
-			result[ix] = (String)values.getItem(ix);
+		RBNode node = (count == 0) ? null : this.selectNode(from);
+		for (int ix = 0; ix < count; ix++) {
+			if (keys != null) {
+				keys[keysOffset + ix] = node.key;
+			}
+			if (values != null) {
+				values[valuesOffset + ix] = node.value;
+			}
+			node = this.findSuccessor(node);
 		}
 		
-		return result;
+		return count;
 	}
 
 	/**
-	 * public int size()
-	 *
-	 * Returns the number of nodes in the tree.
+	 * public int exportKeys(int from, IntBuffer keys)
 	 *
-	 * precondition: none postcondition: none
+	 * puts the keys at positions from, from+1, ... in key order into the
+	 * buffer, until it's full or the tree has no more keys. returns the number
+	 * of keys put.
+	 * 
+	 * O(log(n)) to find the first key, and amortized O(1) per key after it,
+	 * without any allocation
 	 */
-	public int size() {
-		return this.size;
+	public int exportKeys(int from, IntBuffer keys) {
+		if (from < 0) {
+			throw new IndexOutOfBoundsException("from = " + from);
+		}
+		int count = Math.max(0, Math.min(keys.remaining(), this.size - from));
+		
+		RBNode node = (count == 0) ? null : this.selectNode(from);
+		for (int ix = 0; ix < count; ix++) {
+			keys.put(node.key);
+			node = this.findSuccessor(node);
+		}
+		
+		return count;
 	}
 
 	/**
-	 * If you wish to implement classes, other than RBTree and RBNode, do it in
-	 * this file, not in another file.
+	 * public int scan(int lo, boolean loInclusive, int hi, boolean hiInclusive,
+	 *                 int limit, EntryVisitor visitor)
+	 *
+	 * passes the items with keys between lo and hi (each bound inclusive or
+	 * exclusive) to the visitor, in ascending key order, until limit items
+	 * were visited or the visitor returns false. returns the number of items
+	 * visited. nothing is copied or collected on the way.
+	 * 
+	 * O(log(n)) to descend to the first item, and amortized O(1) per item
+	 * after it (each successor step is O(1) amortized)
 	 */
-	
+	public int scan(int lo, boolean loInclusive, int hi, boolean hiInclusive, int limit, EntryVisitor visitor) {
+		int visited = 0;
+		RBNode node = this.ceilingNode(lo, loInclusive);
+		
+		while (node != null && visited < limit &&
+				(node.key < hi || (hiInclusive && node.key == hi))) {
+			visited++;
+			if (!visitor.visit(node.key, node.value)) {
+				break;
+			}
+			node = this.findSuccessor(node);
+		}
+		
+		return visited;
+	}
+
 	/**
-	 * Private methods
+	 * public int scanDescending(int hi, boolean hiInclusive, int lo, boolean loInclusive,
+	 *                           int limit, EntryVisitor visitor)
+	 *
+	 * the same as scan, in descending key order - starting at hi
+	 * 
+	 * O(log(n)) to descend to the first item, and amortized O(1) per item
 	 */
-	
+	public int scanDescending(int hi, boolean hiInclusive, int lo, boolean loInclusive, int limit, EntryVisitor visitor) {
+		int visited = 0;
+		RBNode node = this.floorNode(hi, hiInclusive);
+		
+		while (node != null && visited < limit &&
+				(node.key > lo || (loInclusive && node.key == lo))) {
+			visited++;
+			if (!visitor.visit(node.key, node.value)) {
+				break;
+			}
+			node = this.findPredecessor(node);
+		}
+		
+		return visited;
+	}
+
 	/**
-	 * returns RBNode with matching key if exists, else returns null
+	 * public int floorKey(int k)
+	 *
+	 * returns the biggest key which is smaller than or equal to k, or -1 if
+	 * there's none
 	 * 
-	 * starts searching on root
+	 * in O(log(n)) - the single branch search(k) visits, without allocation
+	 */
+	public int floorKey(int k) {
+		return keyOf(this.floorNode(k, true));
+	}
+
+	/**
+	 * public int ceilingKey(int k)
 	 *
-	 * O(log(n)) because of the inner method searchNode(key, node)
+	 * returns the smallest key which is bigger than or equal to k, or -1 if
+	 * there's none
+	 * 
+	 * in O(log(n)), as floorKey
 	 */
-	private RBNode searchNode(int key) {
-		return searchNode(key, this.root);
+	public int ceilingKey(int k) {
+		return keyOf(this.ceilingNode(k, true));
 	}
-	
+
 	/**
-	 * returns RBNode with matching key if exists, else returns null
+	 * public int lowerKey(int k)
+	 *
+	 * returns the biggest key which is strictly smaller than k, or -1 if
+	 * there's none
 	 * 
-	 * starts searching on a given node
+	 * in O(log(n)), as floorKey
+	 */
+	public int lowerKey(int k) {
+		return keyOf(this.floorNode(k, false));
+	}
+
+	/**
+	 * public int higherKey(int k)
+	 *
+	 * returns the smallest key which is strictly bigger than k, or -1 if
+	 * there's none
 	 * 
-	 * in O(log(n)), because it visits nodes on one branch only,
-	 * the tree height is of course O(log(n))
+	 * in O(log(n)), as floorKey
+	 */
+	public int higherKey(int k) {
+		return keyOf(this.ceilingNode(k, false));
+	}
+
+	/**
+	 * public Map.Entry<Integer, String> floorEntry(int k)
+	 * public Map.Entry<Integer, String> ceilingEntry(int k)
+	 * public Map.Entry<Integer, String> lowerEntry(int k)
+	 * public Map.Entry<Integer, String> higherEntry(int k)
+	 *
+	 * the same as floorKey, ceilingKey, lowerKey and higherKey, returning the
+	 * item found (an immutable entry), or null if there's none
+	 * 
+	 * in O(log(n)), allocating only the entry of a hit
+	 */
+	public Map.Entry<Integer, String> floorEntry(int k) {
+		return entryOf(this.floorNode(k, true));
+	}
+
+	public Map.Entry<Integer, String> ceilingEntry(int k) {
+		return entryOf(this.ceilingNode(k, true));
+	}
+
+	public Map.Entry<Integer, String> lowerEntry(int k) {
+		return entryOf(this.floorNode(k, false));
+	}
+
+	public Map.Entry<Integer, String> higherEntry(int k) {
+		return entryOf(this.ceilingNode(k, false));
+	}
+
+	/**
+	 * public int select(int i)
+	 *
+	 * returns the i-th smallest key in the tree, counting from 0 (that is,
+	 * keysToArray()[i]), or -1 if i is not between 0 and size() - 1
+	 * 
+	 * in O(log(n)) - every node knows the size of its subtree, so a single
+	 * branch leads to the key
+	 */
+	public int select(int i) {
+		if (i < 0 || i >= this.size) {
+			return -1;
+		}
+		
+		return this.selectNode(i).key;
+	}
+
+	/**
+	 * public int rank(int k)
+	 *
+	 * returns the number of keys in the tree which are smaller than k - which
+	 * is also the index of k in keysToArray(), if it's in the tree
+	 * 
+	 * in O(log(n)) - the same single branch searchNode(k) visits
+	 */
+	public int rank(int k) {
+		return this.countBelow(k, false);
+	}
+
+	/**
+	 * public int countInRange(int lo, int hi)
+	 *
+	 * returns the number of keys k in the tree such that lo <= k <= hi
+	 * 
+	 * in O(log(n)) - two descents
+	 */
+	public int countInRange(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		return this.countBelow(hi, true) - this.countBelow(lo, false);
+	}
+
+	/**
+	 * public EntryIterator iterator()
+	 *
+	 * returns an iterator over the items, in ascending key order. the tree
+	 * must not be modified while iterating.
+	 * 
+	 * in O(1); iterating over all the items is O(n), each step is O(1) in a
+	 * threaded tree and amortized O(1) otherwise - without any recursion or
+	 * allocation
+	 */
+	public EntryIterator iterator() {
+		return new EntryIterator(this, this.min, true);
+	}
+
+	/**
+	 * public EntryIterator descendingIterator()
+	 *
+	 * returns an iterator over the items, in descending key order. the tree
+	 * must not be modified while iterating.
+	 * 
+	 * the same complexity as iterator()
+	 */
+	public EntryIterator descendingIterator() {
+		return new EntryIterator(this, this.max, false);
+	}
+
+	/**
+	 * public IntStream keyStream()
+	 *
+	 * returns a sequential stream of the keys, in ascending order - call
+	 * parallel() on it for a parallel one. the tree must not be modified
+	 * while the stream runs.
+	 * 
+	 * in O(1), O(n) for a whole traversal
+	 */
+	public IntStream keyStream() {
+		return StreamSupport.intStream(this.keySpliterator(), false);
+	}
+
+	/**
+	 * public Stream<Map.Entry<Integer, String>> entryStream()
+	 *
+	 * returns a sequential stream of the items, as immutable entries in
+	 * ascending key order - call parallel() on it for a parallel one. the
+	 * tree must not be modified while the stream runs.
+	 * 
+	 * in O(1), O(n) for a whole traversal
+	 */
+	public Stream<Map.Entry<Integer, String>> entryStream() {
+		return StreamSupport.stream(this.entrySpliterator(), false);
+	}
+
+	/**
+	 * public Spliterator.OfInt keySpliterator()
+	 *
+	 * returns a spliterator over the keys, in ascending order. it splits by
+	 * subtrees: a spliterator which starts with the subtree of a node hands
+	 * off that node's left subtree and keeps the node and its right subtree,
+	 * so both parts know their exact sizes.
+	 * 
+	 * in O(1)
+	 */
+	public Spliterator.OfInt keySpliterator() {
+		return new KeySpliterator(this, null, this.root);
+	}
+
+	/**
+	 * public Spliterator<Map.Entry<Integer, String>> entrySpliterator()
+	 *
+	 * returns a spliterator over the items, splitting like keySpliterator()
+	 * 
+	 * in O(1)
+	 */
+	public Spliterator<Map.Entry<Integer, String>> entrySpliterator() {
+		return new EntrySpliterator(this, null, this.root);
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 *
+	 * precondition: none postcondition: none
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * public static RBTree fromSortedArrays(int[] keys, String[] values)
+	 *
+	 * builds a tree holding the items (keys[i], values[i]). keys must be
+	 * strictly increasing, otherwise IllegalArgumentException is thrown.
+	 * 
+	 * the tree is built directly, without any searches or fixups: the middle
+	 * item becomes the root and both halves are built the same way, so all
+	 * the leaves are on the two deepest levels. the deepest level is colored
+	 * red if it isn't full and every other node is black, which keeps all the
+	 * invariants.
+	 * 
+	 * in O(n)
+	 */
+	public static RBTree fromSortedArrays(int[] keys, String[] values) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("got " + keys.length + " keys but " + values.length + " values");
+		}
+		for (int ix = 1; ix < keys.length; ix++) {
+			if (keys[ix - 1] >= keys[ix]) {
+				throw new IllegalArgumentException("keys are not strictly increasing at index " + ix);
+			}
+		}
+		
+		return buildFromSorted(keys, values, keys.length);
+	}
+
+	/**
+	 * public static RBTree fromArrays(int[] keys, String[] values)
+	 *
+	 * builds a tree holding the items (keys[i], values[i]), in any order. if
+	 * a key appears more than once, its first item is kept - just like
+	 * inserting the items one by one would do.
+	 * 
+	 * the items are sorted (in parallel, for large inputs) and then built
+	 * like fromSortedArrays does.
+	 * 
+	 * in O(n*log(n)) for the sort, O(n) for the rest
+	 */
+	public static RBTree fromArrays(int[] keys, String[] values) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("got " + keys.length + " keys but " + values.length + " values");
+		}
+		
+		// sort (key, index) pairs packed into longs - the key is in the high
+		// bits, so the pairs are ordered by key and then by original index
+		long[] pairs = new long[keys.length];
+		for (int ix = 0; ix < keys.length; ix++) {
+			pairs[ix] = ((long)keys[ix] << 32) | ix;
+		}
+		Arrays.parallelSort(pairs);
+		
+		// unpack, keeping only the first item of every key
+		int[] sortedKeys = new int[keys.length];
+		String[] sortedValues = new String[keys.length];
+		int count = 0;
+		for (int ix = 0; ix < pairs.length; ix++) {
+			int key = (int)(pairs[ix] >> 32);
+			if (count > 0 && sortedKeys[count - 1] == key) {
+				continue;
+			}
+			sortedKeys[count] = key;
+			sortedValues[count] = values[(int)pairs[ix]];
+			count++;
+		}
+		
+		return buildFromSorted(sortedKeys, sortedValues, count);
+	}
+
+	/**
+	 * public Split split(int k)
+	 *
+	 * cuts the tree at key k: returns a tree of the items with keys smaller
+	 * than k, a tree of the items with keys bigger than k, and the value of
+	 * k, if it's in the tree. the nodes move to the new trees (which are
+	 * threaded iff this one is), so this tree is left empty.
+	 * 
+	 * in O(log(n)), because of the inner method splitSubtree(...)
+	 */
+	public Split split(int k) {
+		RBTree less = new RBTree(this.threaded);
+		RBTree greater = new RBTree(this.threaded);
+		RBNode node = splitSubtree(this.root, blackHeight(this.root), k, less, greater, new int[2]);
+		
+		less.setBoundsFromRoot();
+		greater.setBoundsFromRoot();
+		
+		// the in-order links across k are the only ones that are cut
+		if (this.threaded) {
+			if (less.max != null) {
+				less.max.next = null;
+			}
+			if (greater.min != null) {
+				greater.min.prev = null;
+			}
+		}
+		
+		this.clear();
+		return new Split(less, node != null, (node == null) ? null : node.value, greater);
+	}
+
+	/**
+	 * public static RBTree join(RBTree left, int k, String v, RBTree right)
+	 *
+	 * returns a tree of the items of left, an item with key k and value v,
+	 * and the items of right. all of left's keys must be smaller than k and
+	 * all of right's bigger, and both must be threaded or not, otherwise
+	 * IllegalArgumentException is thrown. the nodes move to the new tree, so
+	 * left and right are left empty.
+	 * 
+	 * the shorter tree is hung, under the new item, on the inner side of the
+	 * taller one, where it meets a subtree of its own black height, and the
+	 * tree is then fixed like after an insertion.
+	 * 
+	 * in O(log(n)) - finding the black heights, the join itself costs their
+	 * difference
+	 */
+	public static RBTree join(RBTree left, int k, String v, RBTree right) {
+		if (left == right) {
+			throw new IllegalArgumentException("can't join a tree with itself");
+		}
+		if (left.threaded != right.threaded) {
+			throw new IllegalArgumentException("can't join a threaded tree with a tree that isn't");
+		}
+		if ((left.max != null && left.max.key >= k) || (right.min != null && right.min.key <= k)) {
+			throw new IllegalArgumentException("the left keys must be smaller than " + k + " and the right keys bigger");
+		}
+		
+		RBTree tree = new RBTree(left.threaded);
+		RBNode node = new RBNode(k, v);
+		tree.joinSubtrees(left.root, blackHeight(left.root), node, right.root, blackHeight(right.root));
+		
+		tree.size = left.size + 1 + right.size;
+		tree.min = (left.min != null) ? left.min : node;
+		tree.max = (right.max != null) ? right.max : node;
+		if (tree.threaded) {
+			linkNeighbors(left.max, node);
+			linkNeighbors(node, right.min);
+		}
+		
+		left.clear();
+		right.clear();
+		return tree;
+	}
+
+	/**
+	 * public static RBTree union(RBTree first, RBTree second)
+	 *
+	 * returns a tree of the items of both trees - of a key in both, first's
+	 * item is kept. the trees must both be threaded or not, otherwise
+	 * IllegalArgumentException is thrown. the nodes move to the new tree, so
+	 * first and second are left empty.
+	 * 
+	 * second's root splits first, the two halves are united with second's
+	 * subtrees recursively - in parallel, on the common fork/join pool - and
+	 * joined back with the root.
+	 * 
+	 * in O(m*log(n/m + 1)) work for sizes m <= n, and O(log(n)*log(m)) span.
+	 * a threaded tree is relinked afterwards, in O(n + m).
+	 */
+	public static RBTree union(RBTree first, RBTree second) {
+		return combine(Operation.UNION, first, second);
+	}
+
+	/**
+	 * public static RBTree intersection(RBTree first, RBTree second)
+	 *
+	 * returns a tree of first's items whose keys are in second too, with
+	 * the same preconditions and costs as union. both trees are left empty.
+	 */
+	public static RBTree intersection(RBTree first, RBTree second) {
+		return combine(Operation.INTERSECTION, first, second);
+	}
+
+	/**
+	 * public static RBTree difference(RBTree first, RBTree second)
+	 *
+	 * returns a tree of first's items whose keys aren't in second, with the
+	 * same preconditions and costs as union. both trees are left empty.
+	 */
+	public static RBTree difference(RBTree first, RBTree second) {
+		return combine(Operation.DIFFERENCE, first, second);
+	}
+
+	/**
+	 * If you wish to implement classes, other than RBTree and RBNode, do it in
+	 * this file, not in another file.
+	 */
+	
+	/**
+	 * Private methods
+	 */
+	
+	// insert, recording only its fixup in metrics (if not null) - O(log(n))
+	private int insertKey(int k, String v, TreeMetrics metrics) {
+		// edge case - inserts new RBNode to root when RBTree is empty
+		if (this.empty()) {
+			RBNode myNode = new RBNode(k, v);
+			this.root = myNode;
+			this.min = myNode;
+			this.max = myNode;
+			size++;
+			return myNode.setColor(RBNode.Color.BLACK);
+		}
+		
+		// finds the place for insertion, RBNode with suitable null child
+		RBNode myLeaf = searchLeaf(k);
+		
+		// inserts new RBNode - allocated only now, a duplicate key allocates nothing
+		if (myLeaf != null) {
+			return attachLeaf(myLeaf, new RBNode(k, v), metrics);
+		}
+		return -1;
+	}
+	
+	// delete, recording only its fixup in metrics (if not null) - O(log(n))
+	private int deleteKey(int k, TreeMetrics metrics) {
+		RBNode nodeToDelete = this.searchNode(k);
+		if (nodeToDelete == null) {
+			return -1;
+		}
+		
+		return this.deleteFoundNode(nodeToDelete, metrics);
+	}
+	
+	/**
+	 * returns RBNode with matching key if exists, else returns null
+	 * 
+	 * starts searching on root
+	 *
+	 * O(log(n)) because of the inner method searchNode(key, node)
+	 */
+	private RBNode searchNode(int key) {
+		return searchNode(key, this.root);
+	}
+	
+	// deletes a node with at most one child, recording it as a delete in metrics (if not null) - O(log(n))
+	private void removeNode(RBNode node, TreeMetrics metrics) {
+		if (metrics == null) {
+			this.deleteNode(node, null);
+			return;
+		}
+		long start = System.nanoTime();
+		this.deleteNode(node, metrics);
+		metrics.recordDelete(System.nanoTime() - start);
+	}
+	
+	// records an operation of a batch, started at startTime, if there are metrics - O(1)
+	private static void recordBatchOperation(TreeMetrics metrics, boolean isInsert, long startTime) {
+		if (metrics == null) {
+			return;
+		}
+		if (isInsert) {
+			metrics.recordInsert(System.nanoTime() - startTime);
+		} else {
+			metrics.recordDelete(System.nanoTime() - startTime);
+		}
+	}
+	
+	/**
+	 * search(k), recording its latency and path length in the metrics - the
+	 * same walk as searchNode, counting the nodes on the way
+	 * 
+	 * O(log(n))
+	 */
+	private String measuredSearch(int key, TreeMetrics metrics) {
+		long start = System.nanoTime();
+		int pathLength = 0;
+		RBNode node = this.root;
+		while (node != null) {
+			pathLength++;
+			if (key == node.key) {
+				break;
+			}
+			node = (key < node.key) ? node.leftChild : node.rightChild;
+		}
+		String value = (node == null) ? null : node.value;
+		metrics.recordSearch(System.nanoTime() - start, pathLength);
+		return value;
+	}
+	
+	/**
+	 * returns RBNode with matching key if exists, else returns null
+	 * 
+	 * starts searching on a given node
+	 * 
+	 * in O(log(n)), because it visits nodes on one branch only,
+	 * the tree height is of course O(log(n))
 	 */
 	private RBNode searchNode(int key, RBNode node){
-		if (node != null) {
+		while (node != null) {
 			if (key == node.key) {
 				return node;
 			}
 			if (key < node.key) {
-				if (node.leftChild != null) {
-					return searchNode(key, node.leftChild);
-				}
-				return null;
-			}
-			if (node.rightChild != null) {
-				return searchNode(key, node.rightChild);
+				node = node.leftChild;
+			} else {
+				node = node.rightChild;
 			}
 		}
 		return null;
@@ -443,19 +1359,483 @@ public class RBTree {
 	private RBNode searchLeaf(int key, RBNode node) {
 		RBNode myNode = node;
 		
-		if (key == myNode.key) {
+		while (true) {
+			if (key == myNode.key) {
+				return null;
+			}
+			RBNode next = (key < myNode.key) ? myNode.leftChild : myNode.rightChild;
+			if (next == null) {
+				return myNode;
+			}
+			myNode = next;
+		}
+	}
+	
+	/**
+	 * builds a tree of the first count items of the sorted arrays,
+	 * setting the root, min, max and size
+	 * 
+	 * O(n)
+	 */
+	private static RBTree buildFromSorted(int[] keys, String[] values, int count) {
+		RBTree tree = new RBTree();
+		if (count == 0) {
+			return tree;
+		}
+		
+		tree.root = buildSubtree(keys, values, 0, count - 1, 0, redLevel(count));
+		tree.setBoundsFromRoot();
+		return tree;
+	}
+	
+	/**
+	 * builds a balanced subtree of the items first..last, whose root is at the
+	 * given depth, and returns its root. nodes at the red level are red, the
+	 * rest are black.
+	 * 
+	 * O(last - first), the recursion depth is O(log(n))
+	 */
+	private static RBNode buildSubtree(int[] keys, String[] values, int first, int last, int depth, int redLevel) {
+		if (first > last) {
 			return null;
 		}
-		if (key < myNode.key) {
-			if (myNode.leftChild != null) {
-				return searchLeaf(key, myNode.leftChild);
+		
+		int middle = (first + last) >>> 1;
+		RBNode node = new RBNode(keys[middle], values[middle]);
+		if (depth != redLevel) {
+			node.color = RBNode.Color.BLACK;
+		}
+		
+		node.setLeft(buildSubtree(keys, values, first, middle - 1, depth + 1, redLevel));
+		node.setRight(buildSubtree(keys, values, middle + 1, last, depth + 1, redLevel));
+		node.subtreeSize = last - first + 1;
+		return node;
+	}
+	
+	/**
+	 * returns the depth of the deepest level of a balanced tree of count nodes
+	 * if that level isn't full, or a depth beyond the tree if it is - O(log(n))
+	 */
+	private static int redLevel(int count) {
+		int level = 0;
+		for (int remaining = count - 1; remaining >= 0; remaining = remaining / 2 - 1) {
+			level++;
+		}
+		return level;
+	}
+	
+	/**
+	 * splits the detached subtree of root at key k: sets the root of less to
+	 * a subtree of the smaller keys, and the root of greater to a subtree of
+	 * the bigger keys, and returns k's node (detached) or null. only the
+	 * roots and the subtree sizes are set. rootHeight is the black height of
+	 * root, and the black heights of the two subtrees are put in heights[0]
+	 * and heights[1].
+	 * 
+	 * the subtrees hanging off the path from the root to k are joined,
+	 * bottom up, into the two subtrees. every join costs the difference of
+	 * black heights it bridges, and these differences add up to the height.
+	 * 
+	 * O(log(n))
+	 */
+	private static RBNode splitSubtree(RBNode root, int rootHeight, int k, RBTree less, RBTree greater, int[] heights) {
+		// finds k, or the deepest node above it, keeping the black height of
+		// the current node's subtree
+		RBNode node = root;
+		int height = rootHeight;
+		RBNode parent = null;
+		int parentHeight = 0;
+		while (node != null && node.key != k) {
+			parent = node;
+			parentHeight = height;
+			if (node.isBlack()) {
+				height--;
+			}
+			node = (k < node.key) ? node.leftChild : node.rightChild;
+		}
+		
+		// k's own subtrees start the two trees
+		less.root = null;
+		greater.root = null;
+		int lessHeight = 0;
+		int greaterHeight = 0;
+		if (node != null) {
+			int childHeight = height - (node.isBlack() ? 1 : 0);
+			less.root = node.leftChild;
+			lessHeight = detachSubtree(node.leftChild, childHeight);
+			greater.root = node.rightChild;
+			greaterHeight = detachSubtree(node.rightChild, childHeight);
+			node.parent = null;
+		}
+		
+		// climbs to the root, joining every node on the way, with its other
+		// subtree, to the tree on its side of k. the colors are read before
+		// the join recolors the node.
+		while (parent != null) {
+			RBNode grandparent = parent.parent;
+			int childHeight = parentHeight - (parent.isBlack() ? 1 : 0);
+			if (grandparent != null) {
+				parentHeight += (grandparent.isBlack() ? 1 : 0);
+			}
+			
+			if (k < parent.key) {
+				RBNode subtree = parent.rightChild;
+				int subtreeHeight = detachSubtree(subtree, childHeight);
+				greaterHeight = greater.joinSubtrees(greater.root, greaterHeight, parent, subtree, subtreeHeight);
+			} else {
+				RBNode subtree = parent.leftChild;
+				int subtreeHeight = detachSubtree(subtree, childHeight);
+				lessHeight = less.joinSubtrees(subtree, subtreeHeight, parent, less.root, lessHeight);
+			}
+			parent = grandparent;
+		}
+		
+		heights[0] = lessHeight;
+		heights[1] = greaterHeight;
+		return node;
+	}
+	
+	/**
+	 * runs a set operation on the whole trees, and sets up the result -
+	 * see union(first, second)
+	 */
+	private static RBTree combine(Operation operation, RBTree first, RBTree second) {
+		if (first == second) {
+			throw new IllegalArgumentException("can't combine a tree with itself");
+		}
+		if (first.threaded != second.threaded) {
+			throw new IllegalArgumentException("can't combine a threaded tree with a tree that isn't");
+		}
+		
+		RBTree tree = new RBTree(first.threaded);
+		tree.root = ForkJoinPool.commonPool().invoke(
+				new SetOperation(operation, first.root, blackHeight(first.root), second.root, blackHeight(second.root)));
+		first.clear();
+		second.clear();
+		
+		tree.setBoundsFromRoot();
+		if (tree.threaded) {
+			tree.relinkNeighbors();
+		}
+		return tree;
+	}
+	
+	/**
+	 * links every node to its in-order neighbors, going from node to node by
+	 * the child and parent links only - O(n)
+	 */
+	private void relinkNeighbors() {
+		RBNode prev = null;
+		RBNode node = this.min;
+		while (node != null) {
+			linkNeighbors(prev, node);
+			prev = node;
+			
+			if (node.rightChild != null) {
+				node = node.rightChild;
+				while (node.leftChild != null) {
+					node = node.leftChild;
+				}
+			} else {
+				while (node.parent != null && node == node.parent.rightChild) {
+					node = node.parent;
+				}
+				node = node.parent;
+			}
+		}
+		linkNeighbors(prev, null);
+	}
+	
+	/**
+	 * joins the subtrees left and right, whose black heights are given, with
+	 * the node x between them, and makes the result the root of this tree -
+	 * returns the black height of the result
+	 * 
+	 * left's keys must be smaller than x's and right's bigger, and both roots
+	 * must be black and detached. only the root and the subtree sizes are
+	 * set: size, min, max and the in-order links are up to the caller.
+	 * 
+	 * O(|leftHeight - rightHeight| + 1) - the black height of the result is
+	 * counted up from where the shorter subtree was hung, or, if that's
+	 * empty, from the top of the whole path walked down to it
+	 */
+	private int joinSubtrees(RBNode left, int leftHeight, RBNode x, RBNode right, int rightHeight) {
+		x.parent = null;
+		x.color = RBNode.Color.RED;
+		
+		if (leftHeight == rightHeight) {
+			toLeftChild(x, left);
+			toRightChild(x, right);
+			updateSubtreeSize(x);
+			x.color = RBNode.Color.BLACK;
+			this.root = x;
+			return leftHeight + 1;
+		}
+		
+		// the shorter subtree's root, or the taller subtree's node which x
+		// replaces - whichever isn't null. the fixup doesn't get into it.
+		RBNode anchor;
+		int anchorHeight;
+		
+		if (leftHeight > rightHeight) {
+			// walks down left's right spine to a black node (or null) of
+			// right's black height
+			this.root = left;
+			RBNode parent = null;
+			RBNode node = left;
+			int height = leftHeight;
+			while (node != null && (node.isRed() || height > rightHeight)) {
+				if (node.isBlack()) {
+					height--;
+				}
+				parent = node;
+				node = node.rightChild;
+			}
+			
+			toLeftChild(x, node);
+			toRightChild(x, right);
+			updateSubtreeSize(x);
+			toRightChild(parent, x);
+			addToSubtreeSizes(parent, subtreeSize(right) + 1);
+			anchor = (node != null) ? node : right;
+			anchorHeight = rightHeight;
+		} else {
+			// the mirror image - walks down right's left spine
+			this.root = right;
+			RBNode parent = null;
+			RBNode node = right;
+			int height = rightHeight;
+			while (node != null && (node.isRed() || height > leftHeight)) {
+				if (node.isBlack()) {
+					height--;
+				}
+				parent = node;
+				node = node.leftChild;
+			}
+			
+			toRightChild(x, node);
+			toLeftChild(x, left);
+			updateSubtreeSize(x);
+			toLeftChild(parent, x);
+			addToSubtreeSizes(parent, subtreeSize(left) + 1);
+			anchor = (node != null) ? node : left;
+			anchorHeight = leftHeight;
+		}
+		
+		// x is red, and so may be its parent. the tree is a new one, without metrics
+		fixDoubleRed(x, null);
+		
+		if (anchor == null) {
+			return blackHeight(this.root);
+		}
+		// the anchor's subtree is untouched, so the black height of the tree
+		// is the anchor's plus the black nodes above it
+		for (RBNode node = anchor.parent; node != null; node = node.parent) {
+			if (node.isBlack()) {
+				anchorHeight++;
+			}
+		}
+		return anchorHeight;
+	}
+	
+	/**
+	 * detaches a subtree from its parent and blackens its root - returns the
+	 * subtree's black height, given the one it had before
+	 * 
+	 * O(1)
+	 */
+	private static int detachSubtree(RBNode node, int height) {
+		if (node == null) {
+			return height;
+		}
+		node.parent = null;
+		if (node.isRed()) {
+			node.color = RBNode.Color.BLACK;
+			height++;
+		}
+		return height;
+	}
+	
+	// returns the number of black nodes on a path from node down to a null - O(log(n))
+	private static int blackHeight(RBNode node) {
+		int height = 0;
+		for (; node != null; node = node.leftChild) {
+			if (node.isBlack()) {
+				height++;
+			}
+		}
+		return height;
+	}
+	
+	// sets the size, min and max from the root - O(log(n))
+	private void setBoundsFromRoot() {
+		this.size = subtreeSize(this.root);
+		
+		this.min = this.root;
+		while (this.min != null && this.min.leftChild != null) {
+			this.min = this.min.leftChild;
+		}
+		this.max = this.root;
+		while (this.max != null && this.max.rightChild != null) {
+			this.max = this.max.rightChild;
+		}
+	}
+	
+	// empties the tree, without touching the nodes it had - O(1)
+	private void clear() {
+		this.removals++;
+		this.root = null;
+		this.min = null;
+		this.max = null;
+		this.size = 0;
+	}
+	
+	/**
+	 * deletes a node of the tree, replacing it with its successor if it has
+	 * two children - returns the number of color changes
+	 * 
+	 * worst case - O(log n), because of the inner methods deleteNode(node), findSuccessor(node)
+	 */
+	private int deleteFoundNode(RBNode nodeToDelete, TreeMetrics metrics) {
+		if (nodeToDelete.getLeft() == null || nodeToDelete.getRight() == null) {
+			// nodeToDelete has at most one child, physically delete it:
+			return this.deleteNode(nodeToDelete, metrics);
+		}
+		else  {
+			// nodeToDelete has two children, replace it with its successor:
+			RBNode successor = this.findSuccessor(nodeToDelete);
+			
+			// We're going to delete the successor, but what if it's the max?
+			boolean updateMax = (successor == this.max);
+			
+			nodeToDelete.setKey(successor.getKey());
+			nodeToDelete.setValue(successor.getValue());
+			
+			int colorChanges = this.deleteNode(successor, metrics);
+			if (updateMax) {
+				this.max = nodeToDelete;
+			}
+			
+			return colorChanges;
+		}
+	}
+	
+	/**
+	 * returns the node with the given key in the subtree of node, or the node
+	 * under which the key would be inserted if there's no such node
+	 * 
+	 * O(log(n)) - the height of the subtree
+	 */
+	private RBNode searchFrom(RBNode node, int key) {
+		while (true) {
+			if (key == node.key) {
+				return node;
 			}
-			return myNode;
+			RBNode next = (key < node.key) ? node.leftChild : node.rightChild;
+			if (next == null) {
+				return node;
+			}
+			node = next;
 		}
-		if (myNode.rightChild != null) {
-			return searchLeaf(key, myNode.rightChild);
+	}
+	
+	/**
+	 * climbs from a node of the tree to the lowest ancestor (or the node
+	 * itself) whose subtree may hold the given key
+	 * 
+	 * the node's own key is inside the subtree of every ancestor, so only the
+	 * bound on the key's side has to be checked: when climbing towards bigger
+	 * keys, a subtree's upper bound is the key of the first ancestor above it
+	 * which is reached from a left child. the candidate is kept while the
+	 * climb goes up from right children, and moves up to the parent only when
+	 * the parent's key is the bound and it's not bigger than the key.
+	 * 
+	 * O(log(d)) amortized for keys d positions apart, O(log(n)) at worst
+	 */
+	private RBNode climbTowards(RBNode node, int key) {
+		RBNode candidate = node;
+		if (key > node.key) {
+			while (node.parent != null) {
+				if (node == node.parent.leftChild) {
+					if (key < node.parent.key) {
+						break;
+					}
+					candidate = node.parent;
+				}
+				node = node.parent;
+			}
+		} else if (key < node.key) {
+			while (node.parent != null) {
+				if (node == node.parent.rightChild) {
+					if (key > node.parent.key) {
+						break;
+					}
+					candidate = node.parent;
+				}
+				node = node.parent;
+			}
+		}
+		return candidate;
+	}
+	
+	/**
+	 * returns the node a search for key from the finger starts at: the root
+	 * if the finger isn't placed or may point at a removed node, the min or
+	 * max for a key past them, otherwise the lowest ancestor of the finger's
+	 * node whose subtree may hold key. returns null for an empty tree.
+	 * 
+	 * O(log(d)) amortized for keys d positions apart, O(log(n)) at worst
+	 */
+	private RBNode fingerStart(Finger finger, int key) {
+		if (finger.tree != this) {
+			throw new IllegalArgumentException("the finger belongs to another tree");
+		}
+		
+		if (finger.node == null || finger.removals != this.removals) {
+			return this.root;
+		}
+		
+		// keys past the ends, as ascending or descending ids, go right there
+		if (key > this.max.key) {
+			return this.max;
+		}
+		if (key < this.min.key) {
+			return this.min;
+		}
+		return climbTowards(finger.node, key);
+	}
+	
+	/**
+	 * attaches a new node as a child of a node with a suitable null child,
+	 * and fixes the tree - returns the number of color changes
+	 * 
+	 * O(log(n)), because of the inner method insertFixup(node)
+	 */
+	private int attachLeaf(RBNode leaf, RBNode myNode, TreeMetrics metrics) {
+		myNode.parent = leaf;
+		if (myNode.key < leaf.key) {
+			leaf.leftChild = myNode;
+		} else {
+			leaf.rightChild = myNode;
+		}
+		
+		// every ancestor of the new node has one more node in its subtree
+		addToSubtreeSizes(leaf, 1);
+		
+		// the new node's in-order neighbors are its parent and the parent's
+		// neighbor on the same side
+		if (this.threaded) {
+			if (myNode == leaf.leftChild) {
+				linkNeighbors(leaf.prev, myNode);
+				linkNeighbors(myNode, leaf);
+			} else {
+				linkNeighbors(myNode, leaf.next);
+				linkNeighbors(leaf, myNode);
+			}
 		}
-		return myNode;
+		
+		// fixes tree if necessary - colors, size, min/max, root
+		return insertFixup(myNode, metrics);
 	}
 	
 	// replaces x's left child by y - O(1)
@@ -484,43 +1864,184 @@ public class RBTree {
 			if (x == parent.leftChild) {
 				toLeftChild(parent, y);
 			} else {
-				toRightChild(parent, y);
+				toRightChild(parent, y);
+			}
+		}
+	}
+	
+	// makes the given nodes in-order neighbors, either may be null - O(1)
+	private static void linkNeighbors(RBNode prev, RBNode next) {
+		if (prev != null) {
+			prev.next = next;
+		}
+		if (next != null) {
+			next.prev = prev;
+		}
+	}
+	
+	// returns the subtree size of a node, 0 for null - O(1)
+	private static int subtreeSize(RBNode node) {
+		return (node == null) ? 0 : node.subtreeSize;
+	}
+	
+	// recomputes a node's subtree size from its children's - O(1)
+	private static void updateSubtreeSize(RBNode node) {
+		node.subtreeSize = 1 + subtreeSize(node.leftChild) + subtreeSize(node.rightChild);
+	}
+	
+	// adds delta to the subtree sizes of node and all its ancestors - O(log(n))
+	private static void addToSubtreeSizes(RBNode node, int delta) {
+		while (node != null) {
+			node.subtreeSize += delta;
+			node = node.parent;
+		}
+	}
+	
+	/**
+	 * rotate a given node and its right child to the left - O(1)
+	 */
+	private void rotateLeft(RBNode x, TreeMetrics metrics) {
+		if (metrics != null) {
+			metrics.recordRotation();
+		}
+		RBNode y = x.rightChild;
+		
+		transplate(x, y);
+		toRightChild(x, y.leftChild);
+		toLeftChild(y, x);
+		
+		// y takes x's place, so it has x's subtree size; x lost y's right subtree
+		y.subtreeSize = x.subtreeSize;
+		updateSubtreeSize(x);
+		
+		if (x == this.root) {
+			this.root = y;
+		}
+	}
+	
+	/**
+	 * rotate a given node and its left child to the right - O(1)
+	 */
+	private void rotateRight(RBNode x, TreeMetrics metrics) {
+		if (metrics != null) {
+			metrics.recordRotation();
+		}
+		RBNode y = x.leftChild;
+		
+		transplate(x, y);
+		toLeftChild(x, y.rightChild);
+		toRightChild(y, x);
+		
+		// y takes x's place, so it has x's subtree size; x lost y's left subtree
+		y.subtreeSize = x.subtreeSize;
+		updateSubtreeSize(x);
+		
+		if (y.parent == null) {
+			this.root = y;
+		}
+	}
+	
+	/**
+	 * returns the node of the i-th smallest key, i must be between 0 and
+	 * size - 1
+	 * 
+	 * O(log(n)) - every node knows the size of its subtree, so a single
+	 * branch leads to the node
+	 */
+	private RBNode selectNode(int i) {
+		RBNode node = this.root;
+		while (true) {
+			int leftSize = subtreeSize(node.leftChild);
+			if (i < leftSize) {
+				node = node.leftChild;
+			} else if (i == leftSize) {
+				return node;
+			} else {
+				i -= leftSize + 1;
+				node = node.rightChild;
+			}
+		}
+	}
+	
+	/**
+	 * returns the number of keys in the tree which are smaller than key (or
+	 * equal to it, if inclusive)
+	 * 
+	 * O(log(n)) - the same single branch searchNode(key) visits
+	 */
+	private int countBelow(int key, boolean inclusive) {
+		int count = 0;
+		RBNode node = this.root;
+		while (node != null) {
+			if (node.key < key || (inclusive && node.key == key)) {
+				count += subtreeSize(node.leftChild) + 1;
+				node = node.rightChild;
+			} else {
+				node = node.leftChild;
 			}
 		}
+		return count;
+	}
+	
+	// returns the key of a node, or -1 for null - O(1)
+	private static int keyOf(RBNode node) {
+		return (node == null) ? -1 : node.key;
+	}
+	
+	// returns an immutable entry of a node's item, or null for null - O(1)
+	private static Map.Entry<Integer, String> entryOf(RBNode node) {
+		if (node == null) {
+			return null;
+		}
+		return new AbstractMap.SimpleImmutableEntry<Integer, String>(node.key, node.value);
 	}
 	
 	/**
-	 * rotate a given node and its right child to the left - O(1)
+	 * returns the node with the smallest key which is bigger than key (or
+	 * equal to it, if inclusive), or null if there's none
+	 * 
+	 * O(log(n)) - the same single branch searchNode(key) visits
 	 */
-	private void rotateLeft(RBNode x) {
-		RBNode y = x.rightChild;
-		
-		transplate(x, y);
-		toRightChild(x, y.leftChild);
-		toLeftChild(y, x);
-		
-		if (x == this.root) {
-			this.root = y;
+	private RBNode ceilingNode(int key, boolean inclusive) {
+		RBNode node = this.root;
+		RBNode candidate = null;
+		while (node != null) {
+			if (node.key > key || (inclusive && node.key == key)) {
+				candidate = node;
+				node = node.leftChild;
+			} else {
+				node = node.rightChild;
+			}
 		}
+		return candidate;
 	}
 	
 	/**
-	 * rotate a given node and its left child to the right - O(1)
+	 * returns the node with the biggest key which is smaller than key (or
+	 * equal to it, if inclusive), or null if there's none
+	 * 
+	 * O(log(n)) - the same single branch searchNode(key) visits
 	 */
-	private void rotateRight(RBNode x) {
-		RBNode y = x.leftChild;
-		
-		transplate(x, y);
-		toLeftChild(x, y.rightChild);
-		toRightChild(y, x);
-		
-		if (y.parent == null) {
-			this.root = y;
+	private RBNode floorNode(int key, boolean inclusive) {
+		RBNode node = this.root;
+		RBNode candidate = null;
+		while (node != null) {
+			if (node.key < key || (inclusive && node.key == key)) {
+				candidate = node;
+				node = node.rightChild;
+			} else {
+				node = node.leftChild;
+			}
 		}
+		return candidate;
 	}
 	
-	// returns node's successor - worst case O(log(n)), the tree height
+	// returns node's successor - O(1) if threaded, otherwise worst case O(log(n)), the tree height
 	private RBNode findSuccessor(RBNode node) {
+		if (this.threaded) {
+			return node.next;
+		}
+		
 		// If we have a right child, the successor is the minimum of the right subtree:
 		if (node.getRight() != null) {
 			RBNode rightSubtreeMin = node.getRight();
@@ -540,8 +2061,12 @@ public class RBTree {
 		return ancestor;
 	}
 	
-	// returns node's predecessor - worst case O(log(n)), the tree height
+	// returns node's predecessor - O(1) if threaded, otherwise worst case O(log(n)), the tree height
 	private RBNode findPredecessor(RBNode node) {
+		if (this.threaded) {
+			return node.prev;
+		}
+		
 		// If the node has a left subtree, its predecessor is its max:
 		if (node.getLeft() != null) {
 			RBNode pred = node.getLeft();
@@ -568,7 +2093,7 @@ public class RBTree {
 	 * 
 	 * worst case in O(log(n)) - the max munber of loops is the tree height
 	 */
-	private int insertFixup(RBNode node) {
+	private int insertFixup(RBNode node, TreeMetrics metrics) {
 		
 		// upgrades size
 		size++;
@@ -582,117 +2107,106 @@ public class RBTree {
 		}
 		
 		// upgrades colors and rotates if necessary
+		return fixDoubleRed(node, metrics);
+	}
+	
+	/** 
+	 * fixes a red node with a red parent, the only violation in the tree -
+	 * returns the number of color changes
+	 * 
+	 * the root is never recolored: when the recoloring reaches it, the black
+	 * height of the whole tree grows by one instead
+	 * 
+	 * worst case in O(log(n)) - the max munber of loops is the tree height
+	 */
+	private int fixDoubleRed(RBNode node, TreeMetrics metrics) {
 		int colorChanges = 0;
+		int iterations = 0;
 		while (node.parent.isRed()) {
+			iterations++;
 			RBNode parent = node.parent;
 			// always exists, cause otherwise parent is a black root
 			RBNode granny = parent.parent;
+			RBNode uncle = (parent == granny.leftChild) ? granny.rightChild : granny.leftChild;
 			
-			// parent is a left child
-			if (parent == granny.leftChild) {
-				// cases 1,2,3 by the school pseudo cod
-				int[] leftResult = insertLeftCases(node);
-				colorChanges += leftResult[0];
-				// if case one
-				if (leftResult[1] == 1) {
-					node = granny;
-				} else {
+			// case 1: red uncle - recolor and continue from granny
+			if (uncle != null && uncle.isRed()) {
+				colorChanges += parent.setColor(RBNode.Color.BLACK);
+				colorChanges += uncle.setColor(RBNode.Color.BLACK);
+				if (this.root == granny) {
 					break;
 				}
+				colorChanges += granny.setColor(RBNode.Color.RED);
+				node = granny;
+				continue;
+			}
+			
+			// cases 2,3 by the school pseudo cod - both end the loop
+			if (parent == granny.leftChild) {
+				colorChanges += insertLeftCases(node, metrics);
 			} else {
-				// parent is a right child
-				// cases 1,2,3 by the school pseudo cod
-				int[] rightResult = insertRightCases(node);
-				colorChanges += rightResult[0];
-				// if case 1
-				if (rightResult[1] == 1) {
-					node = granny;
-				} else {
-					break;
-				}
+				colorChanges += insertRightCases(node, metrics);
 			}
+			break;
+		}
+		
+		if (metrics != null) {
+			metrics.recordInsertFixup(iterations);
 		}
 		return colorChanges;
 	}
 	
 	/** 
-	 * the one that's in the class slides - cases when parent is a left child
+	 * the one that's in the class slides - cases 2,3 when parent is a left child
+	 * (case 1, a red uncle, is handled by insertFixup)
 	 * 
-	 * returns two ints - number of color changes & if it's case 1
+	 * returns the number of color changes
 	 *
 	 * O(1) - no loops/recursion
 	 */
-	private int[] insertLeftCases(RBNode node) {
+	private int insertLeftCases(RBNode node, TreeMetrics metrics) {
 		RBNode parent = node.parent;
 		RBNode granny = parent.parent;
-		RBNode uncle = granny.rightChild;
 		int colorChanges = 0;
-		int isCase1 = 0;
 		
-		// case 1: red uncle
-		if (uncle != null) {
-			if (uncle.isRed()) {
-				colorChanges += parent.setColor(RBNode.Color.BLACK);
-				colorChanges += uncle.setColor(RBNode.Color.BLACK);
-				if (this.root != granny) {
-					colorChanges += granny.setColor(RBNode.Color.RED);
-					isCase1 = 1;
-				}
-				return new int[] {colorChanges, isCase1};
-			}
-		}
 		// case 2: black/null uncle & node is a right child
 		if (node == parent.rightChild) {
 			node = parent;
-			rotateLeft(node);
+			rotateLeft(node, metrics);
 			parent = node.parent;
 			granny = parent.parent;
 		}
 		// case 3: black/null uncle & node is a left child
 		colorChanges += parent.setColor(RBNode.Color.BLACK);
 		colorChanges += granny.setColor(RBNode.Color.RED);
-		rotateRight(granny);
-		return new int[] {colorChanges, isCase1};
+		rotateRight(granny, metrics);
+		return colorChanges;
 	}
 	
 	/**
 	 * mirror case of the previous method
 	 * 
-	 * returns two ints - number of color changes & if it's case 1
+	 * returns the number of color changes
 	 * 
 	 * O(1) - no loops/recursion
 	 */
-	private int[] insertRightCases(RBNode node) {
+	private int insertRightCases(RBNode node, TreeMetrics metrics) {
 		RBNode parent = node.parent;
 		RBNode granny = parent.parent;
-		RBNode uncle = granny.leftChild;
 		int colorChanges = 0;
-		int isCase1 = 0;
 		
-		// case 1: red uncle
-		if (uncle != null) {
-			if (uncle.isRed()) {
-				colorChanges += parent.setColor(RBNode.Color.BLACK);
-				colorChanges += uncle.setColor(RBNode.Color.BLACK);
-				if (this.root != granny) {
-					colorChanges += granny.setColor(RBNode.Color.RED);
-					isCase1 = 1;
-				}
-				return new int[] {colorChanges, isCase1};
-			}
-		}
 		// case 2: black/null uncle & node is a left child
 		if (node == parent.leftChild) {
 			node = parent;
-			rotateRight(node);
+			rotateRight(node, metrics);
 			parent = node.parent;
 			granny = parent.parent;
 		}
 		// case 3: black/null uncle & node is a right child
 		colorChanges += parent.setColor(RBNode.Color.BLACK);
 		colorChanges += granny.setColor(RBNode.Color.RED);
-		rotateLeft(granny);
-		return new int[] {colorChanges, isCase1};
+		rotateLeft(granny, metrics);
+		return colorChanges;
 	}
 	
 	/**
@@ -705,9 +2219,10 @@ public class RBTree {
 	 * 
 	 * O(log(n)) because of the inner method fixTreeAfterDeletion(child)
 	 */
-	private int deleteNode(RBNode nodeToDelete) {
+	private int deleteNode(RBNode nodeToDelete, TreeMetrics metrics) {
 		// we're going to delete this node for sure, so update size: 
 		this.size -= 1;
+		this.removals++;
 		
 		// if we're deleting the min or max nodes, we should update their pointers:
 		if (nodeToDelete == this.min) {
@@ -718,6 +2233,13 @@ public class RBTree {
 			this.max = this.findPredecessor(nodeToDelete);
 		}
 		
+		// take the node out of the in-order links:
+		if (this.threaded) {
+			linkNeighbors(nodeToDelete.prev, nodeToDelete.next);
+			nodeToDelete.prev = null;
+			nodeToDelete.next = null;
+		}
+		
 		int colorChanges = 0;
 		
 		if (nodeToDelete.getLeft() == null && nodeToDelete.getRight() == null) {
@@ -738,10 +2260,11 @@ public class RBTree {
 					 * children of a double-black node nor its parent, including the
 					 * node to delete
 					 * */
-					colorChanges += this.fixTreeAfterDeletion(nodeToDelete);
+					colorChanges += this.fixTreeAfterDeletion(nodeToDelete, metrics);
 				}
 				
 				parent.replaceChild(nodeToDelete, null);
+				addToSubtreeSizes(parent, -1);
 			}
 		}
 		else if (nodeToDelete.getLeft() == null || nodeToDelete.getRight() == null) {
@@ -763,6 +2286,8 @@ public class RBTree {
 			}
 			else {
 				parent.replaceChild(nodeToDelete, child);
+				// before the fixup, so its rotations see the right sizes
+				addToSubtreeSizes(parent, -1);
 			}
 			
 			// if the deleted node was black
@@ -775,7 +2300,7 @@ public class RBTree {
 				}
 				else {
 					// mark it and fix the tree
-					colorChanges += this.fixTreeAfterDeletion(child);
+					colorChanges += this.fixTreeAfterDeletion(child, metrics);
 				}
 			}
 		}
@@ -784,44 +2309,54 @@ public class RBTree {
 	}
 	
 	/**
-	 * recursively fix a tree that has a node afflicted with the dreaded "double blackness"
+	 * fix a tree that has a node afflicted with the dreaded "double blackness"
 	 * 
 	 * the input node is the node that is marked as double black
 	 * (we do not store this information anywhere else)
 	 * 
 	 * returns the number of color changes that occurred during the fixup
 	 * 
-	 * O(log(n)) - the maximal depth of recursion is the tree height
+	 * O(log(n)) - case 2 moves the double blackness one level up, so the
+	 * maximal number of loops is the tree height
 	 */
-	private int fixTreeAfterDeletion(RBNode doubleBlackNode) {
-		// if we reached the root, do nothing:
-		if (doubleBlackNode == this.root) {
-			return 0;
-		}
-		
-		// if the double black node is red, balance it by changing it to black:
-		if (doubleBlackNode.isRed()) {
-			doubleBlackNode.setToBlack();
-			return 1;
-		}
-		
-		RBNode parent = doubleBlackNode.getParent();
-		RBNode sibling = doubleBlackNode.getSibling();
+	private int fixTreeAfterDeletion(RBNode doubleBlackNode, TreeMetrics metrics) {
+		int colorChanges = 0;
+		int iterations = 0;
 		
-		if (sibling.isRed()) {
-			// case 1: the sibling is red
-			if (sibling == parent.getRight()) {
-				this.rotateLeft(parent);
+		while (true) {
+			iterations++;
+			
+			// if we reached the root, do nothing:
+			if (doubleBlackNode == this.root) {
+				break;
 			}
-			else {
-				this.rotateRight(parent);
+			
+			// if the double black node is red, balance it by changing it to black:
+			if (doubleBlackNode.isRed()) {
+				doubleBlackNode.setToBlack();
+				colorChanges++;
+				break;
+			}
+			
+			RBNode parent = doubleBlackNode.getParent();
+			RBNode sibling = doubleBlackNode.getSibling();
+			
+			if (sibling.isRed()) {
+				// case 1: the sibling is red
+				if (sibling == parent.getRight()) {
+					this.rotateLeft(parent, metrics);
+				}
+				else {
+					this.rotateRight(parent, metrics);
+				}
+				
+				parent.setToRed();
+				sibling.setToBlack();
+				colorChanges += 2;
+				// the double black node now has a black sibling, try again:
+				continue;
 			}
 			
-			parent.setToRed();
-			sibling.setToBlack();
-			return 2 + this.fixTreeAfterDeletion(doubleBlackNode);
-		}
-		else {
 			// the sibling is black
 			
 			RBNode proximalNephew; // the nephew closer to the double black node
@@ -838,123 +2373,484 @@ public class RBTree {
 			
 			if ((proximalNephew == null || proximalNephew.isBlack()) &&
 				(distalNephew == null || distalNephew.isBlack())) {
-				// Case 2: both nephews are black.
+				// Case 2: both nephews are black, move the double blackness up.
 				sibling.setToRed();
-				return 1 + this.fixTreeAfterDeletion(parent);
+				colorChanges++;
+				doubleBlackNode = parent;
+				continue;
 			}
-			else {
-				// At least one child is red.
-				int colorChanges = 0;
-				
-				if (distalNephew == null || distalNephew.isBlack()) {
-					// Case 3: the distal nephew is black (so the proximal nephew must be red).
-					// Rotate as needed:
-					RBNode newProximalNephew;
-					if (proximalNephew == sibling.getLeft()) {
-						this.rotateRight(sibling);
-						newProximalNephew = proximalNephew.getLeft();
-					}
-					else {
-						this.rotateLeft(sibling);
-						newProximalNephew = proximalNephew.getRight();
-					}
-					
-					// After rotation, update the old relation's colors:
-					proximalNephew.setToBlack();
-					sibling.setToRed();
-					colorChanges += 2;
-					
-					// Update our relations:
-					distalNephew = sibling; // Note that after this operation, the distal nephew is red.
-					sibling = proximalNephew;
-					proximalNephew = newProximalNephew;
-				}
-				
-				// Case 4: the distal nephew is red (the proximal nephew can be either red or black).
-				RBNode.Color parentColor = parent.getColor();
-				if (sibling == parent.getRight()) {
-					this.rotateLeft(parent);
+			
+			// At least one child is red.
+			if (distalNephew == null || distalNephew.isBlack()) {
+				// Case 3: the distal nephew is black (so the proximal nephew must be red).
+				// Rotate as needed:
+				if (proximalNephew == sibling.getLeft()) {
+					this.rotateRight(sibling, metrics);
 				}
 				else {
-					this.rotateRight(parent);
+					this.rotateLeft(sibling, metrics);
 				}
 				
-				colorChanges += sibling.setColor(parentColor);
-				colorChanges += parent.setColor(RBNode.Color.BLACK);
-				colorChanges += distalNephew.setColor(RBNode.Color.BLACK);
+				// After rotation, update the old relation's colors:
+				proximalNephew.setToBlack();
+				sibling.setToRed();
+				colorChanges += 2;
 				
-				return colorChanges;
+				// Update our relations:
+				distalNephew = sibling; // Note that after this operation, the distal nephew is red.
+				sibling = proximalNephew;
+			}
+			
+			// Case 4: the distal nephew is red (the proximal nephew can be either red or black).
+			RBNode.Color parentColor = parent.getColor();
+			if (sibling == parent.getRight()) {
+				this.rotateLeft(parent, metrics);
 			}
+			else {
+				this.rotateRight(parent, metrics);
+			}
+			
+			colorChanges += sibling.setColor(parentColor);
+			colorChanges += parent.setColor(RBNode.Color.BLACK);
+			colorChanges += distalNephew.setColor(RBNode.Color.BLACK);
+			break;
+		}
+		
+		if (metrics != null) {
+			metrics.recordDeleteFixup(iterations);
 		}
+		return colorChanges;
 	}
 	
-	// collect the node keys using inorder into a given list - O(n)
-	private void collectKeysInorder(RBNode node, List keysList) {
-		if (node == null) {
-			return;
+	/**
+	 * Helper classes
+	 */
+	
+	/**
+	 * public static class EntryIterator
+	 * 
+	 * iterates over the items of a tree in key order, without boxing: next()
+	 * returns the next key, and value() the value of the last returned key
+	 */
+	public static class EntryIterator {
+		private final RBTree tree;
+		private final boolean ascending;
+		private RBNode nextNode;
+		private RBNode lastNode;
+		
+		private EntryIterator(RBTree tree, RBNode first, boolean ascending) {
+			this.tree = tree;
+			this.nextNode = first;
+			this.ascending = ascending;
+		}
+		
+		// returns true iff there are more items - O(1)
+		public boolean hasNext() {
+			return this.nextNode != null;
+		}
+		
+		// returns the next key and moves past it - O(1) if the tree is
+		// threaded, amortized O(1) otherwise
+		public int next() {
+			if (this.nextNode == null) {
+				throw new NoSuchElementException();
+			}
+			
+			this.lastNode = this.nextNode;
+			if (this.ascending) {
+				this.nextNode = this.tree.findSuccessor(this.nextNode);
+			} else {
+				this.nextNode = this.tree.findPredecessor(this.nextNode);
+			}
+			return this.lastNode.key;
 		}
 		
-		this.collectKeysInorder(node.getLeft(), keysList);
-		keysList.addItem(node.getKey());
-		this.collectKeysInorder(node.getRight(), keysList);
+		// returns the value of the key last returned by next() - O(1)
+		public String value() {
+			if (this.lastNode == null) {
+				throw new IllegalStateException("next() wasn't called yet");
+			}
+			return this.lastNode.value;
+		}
 	}
 	
-	// collect the node values using inorder into a given list - O(n)
-	private void collectValuesInorder(RBNode node, List keysList) {
-		if (node == null) {
-			return;
+	/**
+	 * the state of a spliterator over a tree: before the traversal starts, it
+	 * covers the node first (if any) and then the whole subtree of top.
+	 * splitting hands off first and top's left subtree, and leaves top and
+	 * its right subtree - which has the same shape. once the traversal
+	 * starts, it goes by successors, and doesn't split any more.
+	 */
+	private static abstract class SubtreeSpliterator {
+		protected static final int CHARACTERISTICS = Spliterator.ORDERED | Spliterator.SORTED |
+				Spliterator.DISTINCT | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.NONNULL;
+		
+		protected final RBTree tree;
+		protected RBNode first;
+		protected RBNode top;
+		// set once the traversal starts - the next node and the number left:
+		private boolean started;
+		private RBNode nextNode;
+		private int remaining;
+		
+		protected SubtreeSpliterator(RBTree tree, RBNode first, RBNode top) {
+			this.tree = tree;
+			this.first = first;
+			this.top = top;
+		}
+		
+		// returns true iff a split would leave both parts non empty - O(1)
+		protected boolean splittable() {
+			return !this.started && this.top != null && (this.first != null || this.top.leftChild != null);
+		}
+		
+		// drops first and top's left subtree, after a split handed them off - O(1)
+		protected void dropPrefix() {
+			this.first = this.top;
+			this.top = this.top.rightChild;
+		}
+		
+		// returns the next node and moves past it, or null if there's none -
+		// amortized O(1)
+		protected RBNode advance() {
+			if (!this.started) {
+				this.remaining = (int)this.estimateSize();
+				this.nextNode = this.first;
+				if (this.nextNode == null && this.top != null) {
+					this.nextNode = this.top;
+					while (this.nextNode.leftChild != null) {
+						this.nextNode = this.nextNode.leftChild;
+					}
+				}
+				this.started = true;
+			}
+			if (this.remaining == 0) {
+				return null;
+			}
+			
+			RBNode node = this.nextNode;
+			this.remaining--;
+			this.nextNode = (this.remaining > 0) ? this.tree.findSuccessor(node) : null;
+			return node;
+		}
+		
+		// the exact number of items left - O(1)
+		public long estimateSize() {
+			if (this.started) {
+				return this.remaining;
+			}
+			return ((this.first != null) ? 1 : 0) + subtreeSize(this.top);
+		}
+		
+		public int characteristics() {
+			return CHARACTERISTICS;
+		}
+	}
+	
+	// the spliterator of keySpliterator()
+	private static class KeySpliterator extends SubtreeSpliterator implements Spliterator.OfInt {
+		public KeySpliterator(RBTree tree, RBNode first, RBNode top) {
+			super(tree, first, top);
 		}
 		
-		this.collectValuesInorder(node.getLeft(), keysList);
-		keysList.addItem(node.getValue());
-		this.collectValuesInorder(node.getRight(), keysList);
+		public KeySpliterator trySplit() {
+			if (!this.splittable()) {
+				return null;
+			}
+			KeySpliterator prefix = new KeySpliterator(this.tree, this.first, this.top.leftChild);
+			this.dropPrefix();
+			return prefix;
+		}
+		
+		public boolean tryAdvance(IntConsumer action) {
+			RBNode node = this.advance();
+			if (node == null) {
+				return false;
+			}
+			action.accept(node.key);
+			return true;
+		}
+		
+		public void forEachRemaining(IntConsumer action) {
+			for (RBNode node = this.advance(); node != null; node = this.advance()) {
+				action.accept(node.key);
+			}
+		}
+		
+		// the keys are in their natural order
+		public Comparator<? super Integer> getComparator() {
+			return null;
+		}
+	}
+	
+	// the spliterator of entrySpliterator()
+	private static class EntrySpliterator extends SubtreeSpliterator implements Spliterator<Map.Entry<Integer, String>> {
+		public EntrySpliterator(RBTree tree, RBNode first, RBNode top) {
+			super(tree, first, top);
+		}
+		
+		public EntrySpliterator trySplit() {
+			if (!this.splittable()) {
+				return null;
+			}
+			EntrySpliterator prefix = new EntrySpliterator(this.tree, this.first, this.top.leftChild);
+			this.dropPrefix();
+			return prefix;
+		}
+		
+		public boolean tryAdvance(Consumer<? super Map.Entry<Integer, String>> action) {
+			RBNode node = this.advance();
+			if (node == null) {
+				return false;
+			}
+			action.accept(new AbstractMap.SimpleImmutableEntry<Integer, String>(node.key, node.value));
+			return true;
+		}
+		
+		// the entries are in the order of their keys
+		public Comparator<? super Map.Entry<Integer, String>> getComparator() {
+			return Map.Entry.comparingByKey();
+		}
 	}
 	
 	/**
-	 * Helper classes
+	 * public interface EntryVisitor
+	 * 
+	 * receives the items of a scan, one by one; returning false stops the scan
 	 */
+	public interface EntryVisitor {
+		boolean visit(int key, String value);
+	}
 	
-	// partial implementation of a list using dynamic (doubling) arrays
-	private static class List {
+	/**
+	 * public static class Batch
+	 * 
+	 * a batch of inserts and deletes, for applyBatch(batch). operations are
+	 * numbered by the order they were added, starting at 0.
+	 */
+	public static class Batch {
 		// The initial array length:
 		private static final int INITIAL_LENGTH = 16;
-		// The factor by which to increase the array once its full:
-		private static final int INCREASE_FACTOR = 2;
 		
-		private Object[] storageArray;
-		private int numberOfItemsStored;
+		private int[] keys;
+		private String[] values;
+		private boolean[] isInsert;
+		private int count;
 		
-		public List() {
-			this.storageArray = new Object[INITIAL_LENGTH];
-			this.numberOfItemsStored = 0;
+		public Batch() {
+			this.keys = new int[INITIAL_LENGTH];
+			this.values = new String[INITIAL_LENGTH];
+			this.isInsert = new boolean[INITIAL_LENGTH];
 		}
 		
-		// adds an item to the end of the list
-		// worst case - O(n), amortized - O(1)
-		public void addItem(Object item) {
+		// adds an insert of (k, v), returns its number - amortized O(1)
+		public int insert(int k, String v) {
+			return this.add(k, v, true);
+		}
+		
+		// adds a delete of k, returns its number - amortized O(1)
+		public int delete(int k) {
+			return this.add(k, null, false);
+		}
+		
+		// returns the number of operations in the batch - O(1)
+		public int size() {
+			return this.count;
+		}
+		
+		private int add(int k, String v, boolean insert) {
+			if (this.count == this.keys.length) {
+				this.keys = Arrays.copyOf(this.keys, 2 * this.count);
+				this.values = Arrays.copyOf(this.values, 2 * this.count);
+				this.isInsert = Arrays.copyOf(this.isInsert, 2 * this.count);
+			}
 			
-			if (this.numberOfItemsStored == this.storageArray.length) {
-				Object[] increasedArray = new Object[this.storageArray.length * List.INCREASE_FACTOR];
-				
-				for (int ix = 0; ix < this.numberOfItemsStored; ix++) {
-					increasedArray[ix] = this.storageArray[ix];
-				}
-				
-				this.storageArray = increasedArray;
+			this.keys[this.count] = k;
+			this.values[this.count] = v;
+			this.isInsert[this.count] = insert;
+			return this.count++;
+		}
+	}
+	
+	/**
+	 * public static class Finger
+	 * 
+	 * a position in a tree, left by the last search, insert or delete made
+	 * with it, from which the next one starts. a finger is cheap, and a tree
+	 * may have any number of them; removing nodes from the tree (by another
+	 * finger, or without one) sends the finger back to the root once.
+	 */
+	public static class Finger {
+		private final RBTree tree;
+		private RBNode node;
+		// the tree's removals when node was placed:
+		private long removals;
+		
+		private Finger(RBTree tree) {
+			this.tree = tree;
+		}
+		
+		// places the finger at a node of the tree, or nowhere for null - O(1)
+		private void place(RBNode node, long removals) {
+			this.node = node;
+			this.removals = removals;
+		}
+	}
+	
+	/**
+	 * public static class Split
+	 * 
+	 * the result of split(k): the trees of the keys smaller and bigger than
+	 * k, and k's value if k was in the tree
+	 */
+	public static class Split {
+		private final RBTree less;
+		private final boolean found;
+		private final String value;
+		private final RBTree greater;
+		
+		private Split(RBTree less, boolean found, String value, RBTree greater) {
+			this.less = less;
+			this.found = found;
+			this.value = value;
+			this.greater = greater;
+		}
+		
+		// the tree of the keys smaller than k - O(1)
+		public RBTree getLess() {
+			return this.less;
+		}
+		
+		// true iff k was in the tree - O(1)
+		public boolean isFound() {
+			return this.found;
+		}
+		
+		// k's value, or null if it wasn't in the tree - O(1)
+		public String getValue() {
+			return this.value;
+		}
+		
+		// the tree of the keys bigger than k - O(1)
+		public RBTree getGreater() {
+			return this.greater;
+		}
+	}
+	
+	// the set operations of union, intersection and difference
+	private enum Operation {
+		UNION, INTERSECTION, DIFFERENCE;
+	}
+	
+	/**
+	 * one step of a set operation on two detached subtrees with black roots,
+	 * whose black heights are given: second's root splits first, the
+	 * operation goes on with the subtrees on either side, and the results are
+	 * joined - by the root if it's kept, or else with nothing between them.
+	 * returns the root of the result, which is made of the nodes of both
+	 * subtrees, and leaves its black height in height.
+	 * 
+	 * the black heights are carried along, every split and join adjusts them
+	 * in O(1), so no step walks down to a leaf to find one.
+	 * 
+	 * the two halves run in parallel as long as there are enough nodes to go
+	 * around, and one after the other below that.
+	 */
+	private static class SetOperation extends RecursiveTask<RBNode> {
+		private static final long serialVersionUID = 1L;
+		
+		private final Operation operation;
+		private final RBNode first;
+		private final int firstHeight;
+		private final RBNode second;
+		private final int secondHeight;
+		// the black height of the result, set by compute:
+		private int height;
+		
+		public SetOperation(Operation operation, RBNode first, int firstHeight, RBNode second, int secondHeight) {
+			this.operation = operation;
+			this.first = first;
+			this.firstHeight = firstHeight;
+			this.second = second;
+			this.secondHeight = secondHeight;
+		}
+		
+		protected RBNode compute() {
+			if (this.first == null) {
+				return result((this.operation == Operation.UNION) ? this.second : null, this.secondHeight);
+			}
+			if (this.second == null) {
+				return result((this.operation == Operation.INTERSECTION) ? null : this.first, this.firstHeight);
+			}
+			boolean sequential = subtreeSize(this.first) + subtreeSize(this.second) < SEQUENTIAL_SET_OPERATION_SIZE;
+			
+			// second's root is black, so its subtrees are a level lower
+			RBNode pivot = this.second;
+			RBNode secondLess = pivot.leftChild;
+			RBNode secondGreater = pivot.rightChild;
+			int secondLessHeight = detachSubtree(secondLess, this.secondHeight - 1);
+			int secondGreaterHeight = detachSubtree(secondGreater, this.secondHeight - 1);
+			
+			RBTree less = new RBTree();
+			RBTree greater = new RBTree();
+			int[] heights = new int[2];
+			RBNode node = splitSubtree(this.first, this.firstHeight, pivot.key, less, greater, heights);
+			
+			SetOperation lessTask = new SetOperation(this.operation, less.root, heights[0], secondLess, secondLessHeight);
+			SetOperation greaterTask = new SetOperation(this.operation, greater.root, heights[1], secondGreater, secondGreaterHeight);
+			RBNode lessRoot;
+			RBNode greaterRoot;
+			if (sequential) {
+				lessRoot = lessTask.compute();
+				greaterRoot = greaterTask.compute();
+			} else {
+				lessTask.fork();
+				greaterRoot = greaterTask.compute();
+				lessRoot = lessTask.join();
 			}
 			
-			this.storageArray[this.numberOfItemsStored] = item;
-			this.numberOfItemsStored++;
+			// first's node is kept rather than second's
+			if (this.operation == Operation.UNION) {
+				return join(lessRoot, lessTask.height, (node != null) ? node : pivot, greaterRoot, greaterTask.height);
+			}
+			if (this.operation == Operation.INTERSECTION && node != null) {
+				return join(lessRoot, lessTask.height, node, greaterRoot, greaterTask.height);
+			}
+			return join(lessRoot, lessTask.height, greaterRoot, greaterTask.height);
+		}
+		
+		// sets the black height of the result (0 if it's empty) and returns its root - O(1)
+		private RBNode result(RBNode root, int height) {
+			this.height = (root == null) ? 0 : height;
+			return root;
 		}
 		
-		// returns the size of the list - O(1)
-		public int length() {
-			return this.numberOfItemsStored;
+		// joins the detached subtrees left and right with the node x between
+		// them - O(|leftHeight - rightHeight| + 1)
+		private RBNode join(RBNode left, int leftHeight, RBNode x, RBNode right, int rightHeight) {
+			RBTree tree = new RBTree();
+			this.height = tree.joinSubtrees(left, leftHeight, x, right, rightHeight);
+			return tree.root;
 		}
 		
-		// returns an item at a given index in the list - O(1)
-		public Object getItem(int index) {
-			return this.storageArray[index];
+		// joins the detached subtrees left and right with nothing between
+		// them: left's max is split off to go between them - O(log(size of left))
+		private RBNode join(RBNode left, int leftHeight, RBNode right, int rightHeight) {
+			if (left == null) {
+				return result(right, rightHeight);
+			}
+			if (right == null) {
+				return result(left, leftHeight);
+			}
+			
+			RBNode max = left;
+			while (max.rightChild != null) {
+				max = max.rightChild;
+			}
+			RBTree rest = new RBTree();
+			int[] heights = new int[2];
+			splitSubtree(left, leftHeight, max.key, rest, new RBTree(), heights);
+			return join(rest.root, heights[0], max, right, rightHeight);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,1453 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ *
+ * RuntimeBenchmarks
+ *
+ * A benchmark suite for RBTree, measuring throughput (ops/sec), allocation
+ * (bytes/op) and garbage collection (collections and pause time) of insert,
+ * delete, search, min/max, keysToArray/valuesToArray and more.
+ *
+ * Every benchmark runs over a grid of tree sizes, key distributions
+ * (sequential, clustered, shuffled, Zipfian) and - for search - hit ratios. Each
+ * configuration is run a few unreported warmup iterations, so the JIT has a
+ * chance to compile the measured code, followed by the measured iterations.
+ * Building the tree a benchmark works on is never measured.
+ *
+ * usage: java RuntimeBenchmarks [sizes=1000,10000,...] [warmup=N]
+ *        [iterations=N] [filter=benchmark-name-prefix]
+ *
+ * the default sizes stop at 1M; pass sizes=...,10000000 (and a big enough
+ * -Xmx) for the 10M runs.
+ *
+ */
+
+public class RuntimeBenchmarks {
+	private static final int[] DEFAULT_SIZES = {1000, 10000, 100000, 1000000};
+	private static final int DEFAULT_WARMUP_ITERATIONS = 3;
+	private static final int DEFAULT_MEASURED_ITERATIONS = 5;
+	private static final double[] HIT_RATIOS = {1.0, 0.5, 0.0};
+	// the number of calls per iteration for the O(1) benchmarks (min/max):
+	private static final int CONSTANT_TIME_CALLS = 10000000;
+	// the minimal number of elements exported per iteration by the O(n) benchmarks:
+	private static final int MIN_EXPORTED_ELEMENTS = 1000000;
+	// the number of items visited by every range scan:
+	private static final int SCAN_LENGTH = 32;
+	// the number of sequential keys in every run of the clustered distribution:
+	private static final int CLUSTER_LENGTH = 64;
+	// the delays of the timer benchmarks are this many times the operation
+	// keys, so the deadlines are sparse enough to rarely collide:
+	private static final int TIMER_DELAY_SCALE = 16;
+	// the skew of the Zipfian distribution, as in YCSB:
+	private static final double ZIPF_THETA = 0.99;
+	// the seed of all random choices, so runs are comparable:
+	private static final long SEED = 42;
+
+	// results are added here so the JIT can't drop the measured calls:
+	public static volatile long sink;
+
+	/**
+	 * the order in which a benchmark accesses the keys
+	 */
+	public enum Distribution {
+		SEQUENTIAL, CLUSTERED, SHUFFLED, ZIPFIAN;
+	}
+
+	public static void main(String[] args) {
+		int[] sizes = DEFAULT_SIZES;
+		int warmup = DEFAULT_WARMUP_ITERATIONS;
+		int iterations = DEFAULT_MEASURED_ITERATIONS;
+		String filter = "";
+
+		for (String arg : args) {
+			String[] parts = arg.split("=", 2);
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("expected name=value, got: " + arg);
+			}
+			if (parts[0].equals("sizes")) {
+				String[] sizeStrings = parts[1].split(",");
+				sizes = new int[sizeStrings.length];
+				for (int ix = 0; ix < sizes.length; ix++) {
+					sizes[ix] = Integer.parseInt(sizeStrings[ix].trim());
+				}
+			} else if (parts[0].equals("warmup")) {
+				warmup = Integer.parseInt(parts[1]);
+			} else if (parts[0].equals("iterations")) {
+				iterations = Integer.parseInt(parts[1]);
+			} else if (parts[0].equals("filter")) {
+				filter = parts[1];
+			} else {
+				throw new IllegalArgumentException("unknown option: " + parts[0]);
+			}
+		}
+
+		System.out.printf("%-20s %-10s %9s %5s %24s %12s %6s %8s\n",
+				"benchmark", "keys", "size", "hit", "ops/sec", "bytes/op", "gc", "gc ms");
+
+		for (int size : sizes) {
+			for (Benchmark benchmark : benchmarks()) {
+				if (!benchmark.name.startsWith(filter)) {
+					continue;
+				}
+
+				for (Distribution distribution : benchmark.distributions()) {
+					for (double hitRatio : benchmark.hitRatios()) {
+						Workload workload = new Workload(size, distribution, hitRatio);
+						Result result = measure(benchmark, workload, warmup, iterations);
+						System.out.printf("%-20s %-10s %9d %5s %24s %12.1f %6d %8d\n",
+								benchmark.name, distribution.name().toLowerCase(), size,
+								benchmark.hitRatios().length > 1 ? String.format("%.2f", hitRatio) : "-",
+								result.throughput(), result.bytesPerOperation(),
+								result.gcCount, result.gcMillis);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * the benchmarks of the suite, in the order they are reported
+	 */
+	private static List<Benchmark> benchmarks() {
+		List<Benchmark> result = new ArrayList<Benchmark>();
+
+		// inserts the operation keys into an empty tree:
+		result.add(new Benchmark("insert") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = new RBTree();
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.insert(key, workload.valueOf(key));
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// inserts the operation keys into an empty tree that records metrics:
+		result.add(new Benchmark("insert-metrics") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = new RBTree();
+				this.tree.setMetrics(new TreeMetrics());
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.insert(key, workload.valueOf(key));
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// inserts the operation keys into an empty tree, with a finger:
+		result.add(new Benchmark("insert-finger") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = new RBTree();
+			}
+
+			public long run(Workload workload) {
+				RBTree.Finger finger = this.tree.finger();
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.insert(key, workload.valueOf(key), finger);
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// inserts the operation keys into an empty tree, as a single batch:
+		result.add(new Benchmark("insert-batch") {
+			private RBTree tree;
+			private RBTree.Batch batch;
+
+			public void setup(Workload workload) {
+				this.tree = new RBTree();
+				this.batch = new RBTree.Batch();
+				for (int key : workload.operationKeys) {
+					this.batch.insert(key, workload.valueOf(key));
+				}
+			}
+
+			public long run(Workload workload) {
+				sink += this.tree.applyBatch(this.batch).length;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// deletes the operation keys from a full tree:
+		result.add(new Benchmark("delete") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = workload.fullTree();
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.delete(key);
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// deletes the operation keys from a full tree, with a finger:
+		result.add(new Benchmark("delete-finger") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = workload.fullTree();
+			}
+
+			public long run(Workload workload) {
+				RBTree.Finger finger = this.tree.finger();
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.delete(key, finger);
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// deletes the operation keys from a full threaded tree:
+		result.add(new Benchmark("delete-threaded") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = workload.fullTree(true);
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.delete(key);
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// searches the operation keys in a full tree:
+		result.add(new Benchmark("search") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = workload.fullTree();
+				}
+			}
+
+			public long run(Workload workload) {
+				long found = 0;
+				for (int key : workload.operationKeys) {
+					if (this.tree.search(key) != null) {
+						found++;
+					}
+				}
+				sink += found;
+				return workload.operationKeys.length;
+			}
+
+			public double[] hitRatios() {
+				return HIT_RATIOS;
+			}
+		});
+
+		// searches the operation keys in a full tree that records metrics:
+		result.add(new Benchmark("search-metrics") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = workload.fullTree();
+					this.tree.setMetrics(new TreeMetrics());
+				}
+			}
+
+			public long run(Workload workload) {
+				long found = 0;
+				for (int key : workload.operationKeys) {
+					if (this.tree.search(key) != null) {
+						found++;
+					}
+				}
+				sink += found;
+				return workload.operationKeys.length;
+			}
+
+			public double[] hitRatios() {
+				return HIT_RATIOS;
+			}
+		});
+
+		// searches the operation keys in a full tree, with a finger:
+		result.add(new Benchmark("search-finger") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = workload.fullTree();
+				}
+			}
+
+			public long run(Workload workload) {
+				RBTree.Finger finger = this.tree.finger();
+				long found = 0;
+				for (int key : workload.operationKeys) {
+					if (this.tree.search(key, finger) != null) {
+						found++;
+					}
+				}
+				sink += found;
+				return workload.operationKeys.length;
+			}
+
+			public double[] hitRatios() {
+				return HIT_RATIOS;
+			}
+		});
+
+		// finds the floor of each operation key in a full tree - a miss has an even floor:
+		result.add(new Benchmark("floor-key") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = workload.fullTree();
+				}
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.floorKey(key);
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+
+			public double[] hitRatios() {
+				return HIT_RATIOS;
+			}
+		});
+
+		// scans up to SCAN_LENGTH items from each operation key:
+		result.add(new Benchmark("range-scan") {
+			private RBTree tree;
+			private long total;
+			private final RBTree.EntryVisitor visitor = new RBTree.EntryVisitor() {
+				public boolean visit(int key, String value) {
+					total += key;
+					return true;
+				}
+			};
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = workload.fullTree();
+				}
+			}
+
+			public long run(Workload workload) {
+				long visited = 0;
+				for (int key : workload.operationKeys) {
+					visited += this.tree.scan(key, true, Integer.MAX_VALUE, true, SCAN_LENGTH, this.visitor);
+				}
+				sink += this.total;
+				return visited;
+			}
+		});
+
+		// selects the key at every position of a full tree, in the operation keys' order:
+		result.add(new Benchmark("select") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = workload.fullTree();
+				}
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					// the rank of key, if it were in the tree:
+					total += this.tree.select(key / 2 - 1);
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// ranks the operation keys in a full tree:
+		result.add(new Benchmark("rank") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = workload.fullTree();
+				}
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.rank(key);
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// alternates min() and max() on a full tree:
+		result.add(new ConstantTimeBenchmark("min/max") {
+			public long run(Workload workload) {
+				long total = 0;
+				for (int ix = 0; ix < CONSTANT_TIME_CALLS; ix += 2) {
+					total += this.tree.min().length();
+					total += this.tree.max().length();
+				}
+				sink += total;
+				return CONSTANT_TIME_CALLS;
+			}
+		});
+
+		// iterates over all the items of a full tree, one operation per item:
+		result.add(new ConstantTimeBenchmark("iterate") {
+			public long run(Workload workload) {
+				return iterateAll(this.tree, exportsPerIteration(workload));
+			}
+		});
+
+		// iterates over all the items of a full threaded tree, one operation per item:
+		result.add(new ConstantTimeBenchmark("iterate-threaded") {
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = workload.fullTree(true);
+				}
+			}
+
+			public long run(Workload workload) {
+				return iterateAll(this.tree, exportsPerIteration(workload));
+			}
+		});
+
+		// sums the keys of a full tree by a sequential stream, one operation per key:
+		result.add(new ConstantTimeBenchmark("key-stream") {
+			public long run(Workload workload) {
+				int streams = exportsPerIteration(workload);
+				long total = 0;
+				for (int ix = 0; ix < streams; ix++) {
+					total += this.tree.keyStream().asLongStream().sum();
+				}
+				sink += total;
+				return (long)streams * workload.size;
+			}
+		});
+
+		// sums the keys of a full tree by a parallel stream, one operation per key:
+		result.add(new ConstantTimeBenchmark("key-stream-parallel") {
+			public long run(Workload workload) {
+				int streams = exportsPerIteration(workload);
+				long total = 0;
+				for (int ix = 0; ix < streams; ix++) {
+					total += this.tree.keyStream().parallel().asLongStream().sum();
+				}
+				sink += total;
+				return (long)streams * workload.size;
+			}
+		});
+
+		// exports all keys of a full tree, one operation per export:
+		result.add(new ConstantTimeBenchmark("keysToArray") {
+			public long run(Workload workload) {
+				int exports = exportsPerIteration(workload);
+				long total = 0;
+				for (int ix = 0; ix < exports; ix++) {
+					total += this.tree.keysToArray().length;
+				}
+				sink += total;
+				return exports;
+			}
+		});
+
+		// exports all values of a full tree, one operation per export:
+		result.add(new ConstantTimeBenchmark("valuesToArray") {
+			public long run(Workload workload) {
+				int exports = exportsPerIteration(workload);
+				long total = 0;
+				for (int ix = 0; ix < exports; ix++) {
+					total += this.tree.valuesToArray().length;
+				}
+				sink += total;
+				return exports;
+			}
+		});
+
+		// builds a full tree from sorted arrays:
+		result.add(new ConstantTimeBenchmark("build-sorted") {
+			private int[] keys;
+			private String[] values;
+
+			public void setup(Workload workload) {
+				if (this.keys == null || this.keys.length != workload.size) {
+					this.keys = new int[workload.size];
+					this.values = new String[workload.size];
+					for (int ix = 0; ix < workload.size; ix++) {
+						this.keys[ix] = 2 * (ix + 1);
+						this.values[ix] = workload.valueOf(this.keys[ix]);
+					}
+				}
+			}
+
+			public long run(Workload workload) {
+				sink += RBTree.fromSortedArrays(this.keys, this.values).size();
+				return workload.size;
+			}
+		});
+
+		// builds a full tree from shuffled arrays:
+		result.add(new ConstantTimeBenchmark("build-unsorted") {
+			private String[] values;
+
+			public void setup(Workload workload) {
+				if (this.values == null || this.values.length != workload.size) {
+					this.values = new String[workload.size];
+					for (int ix = 0; ix < workload.size; ix++) {
+						this.values[ix] = workload.valueOf(workload.treeKeys[ix]);
+					}
+				}
+			}
+
+			public long run(Workload workload) {
+				sink += RBTree.fromArrays(workload.treeKeys, this.values).size();
+				return workload.size;
+			}
+		});
+
+		// unites a full tree with a tree of every third key, by joins:
+		result.add(new SetBenchmark("union") {
+			public long run(Workload workload) {
+				sink += RBTree.union(this.first, this.second).size();
+				return this.operations;
+			}
+		});
+
+		// unites a full tree with a tree of every third key, by inserting the
+		// second tree's items one by one:
+		result.add(new SetBenchmark("union-by-insert") {
+			public long run(Workload workload) {
+				int[] keys = this.second.keysToArray();
+				String[] values = this.second.valuesToArray();
+				for (int ix = 0; ix < keys.length; ix++) {
+					this.first.insert(keys[ix], values[ix]);
+				}
+				sink += this.first.size();
+				return this.operations;
+			}
+		});
+
+		// searches the operation keys in a mapped snapshot of a full tree:
+		result.add(new SnapshotBenchmark("snapshot-search") {
+			public long run(Workload workload) {
+				long found = 0;
+				for (int key : workload.operationKeys) {
+					if (this.snapshot.search(key) != null) {
+						found++;
+					}
+				}
+				sink += found;
+				return workload.operationKeys.length;
+			}
+
+			public Distribution[] distributions() {
+				return Distribution.values();
+			}
+
+			public double[] hitRatios() {
+				return HIT_RATIOS;
+			}
+		});
+
+		// maps a snapshot of a full tree and reads its min, as a restart would:
+		result.add(new SnapshotBenchmark("snapshot-open") {
+			public long run(Workload workload) {
+				try {
+					MappedSnapshot opened = MappedSnapshot.open(this.file);
+					sink += opened.min().length();
+					opened.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return 1;
+			}
+		});
+
+		// builds a tree from a mapped snapshot of a full tree:
+		result.add(new SnapshotBenchmark("snapshot-thaw") {
+			public long run(Workload workload) {
+				sink += this.snapshot.thaw().size();
+				return workload.size;
+			}
+		});
+
+		// searches the operation keys in a paged tree, with pools of 1/8 and all of its pages:
+		for (final int poolShare : new int[] {8, 1}) {
+			result.add(new PagedBenchmark("paged-search-1/" + poolShare, poolShare) {
+				public long run(Workload workload) {
+					long found = 0;
+					for (int key : workload.operationKeys) {
+						if (this.tree.search(key) != null) {
+							found++;
+						}
+					}
+					sink += found;
+					return workload.operationKeys.length;
+				}
+			});
+		}
+
+		// a timer queue of a full tree's deadlines: the first timer fires and
+		// is rescheduled after TIMER_DELAY_SCALE times the operation key (the
+		// hold model). a taken deadline is moved to the next free one:
+		result.add(new TimerBenchmark("timers") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = workload.fullTree();
+			}
+
+			public long run(Workload workload) {
+				for (int delay : workload.operationKeys) {
+					Map.Entry<Integer, String> timer = this.tree.pollFirst();
+					int deadline = timer.getKey() + TIMER_DELAY_SCALE * delay;
+					while (this.tree.insert(deadline, timer.getValue()) < 0) {
+						deadline++;
+					}
+				}
+				sink += this.tree.size();
+				return workload.operationKeys.length;
+			}
+		});
+
+		// the same timer queue in a java.util.TreeMap:
+		result.add(new TimerBenchmark("timers-treemap") {
+			private TreeMap<Integer, String> map;
+
+			public void setup(Workload workload) {
+				this.map = new TreeMap<Integer, String>();
+				for (int key : workload.treeKeys) {
+					this.map.put(key, workload.valueOf(key));
+				}
+			}
+
+			public long run(Workload workload) {
+				for (int delay : workload.operationKeys) {
+					Map.Entry<Integer, String> timer = this.map.pollFirstEntry();
+					int deadline = timer.getKey() + TIMER_DELAY_SCALE * delay;
+					while (this.map.putIfAbsent(deadline, timer.getValue()) != null) {
+						deadline++;
+					}
+				}
+				sink += this.map.size();
+				return workload.operationKeys.length;
+			}
+		});
+
+		// the same timer queue in a java.util.PriorityQueue, which allows equal deadlines:
+		result.add(new TimerBenchmark("timers-priorityqueue") {
+			private PriorityQueue<Map.Entry<Integer, String>> queue;
+
+			public void setup(Workload workload) {
+				this.queue = new PriorityQueue<Map.Entry<Integer, String>>(workload.size,
+						Map.Entry.<Integer, String>comparingByKey());
+				for (int key : workload.treeKeys) {
+					this.queue.add(new AbstractMap.SimpleImmutableEntry<Integer, String>(key, workload.valueOf(key)));
+				}
+			}
+
+			public long run(Workload workload) {
+				for (int delay : workload.operationKeys) {
+					Map.Entry<Integer, String> timer = this.queue.poll();
+					this.queue.add(new AbstractMap.SimpleImmutableEntry<Integer, String>(timer.getKey() + TIMER_DELAY_SCALE * delay, timer.getValue()));
+				}
+				sink += this.queue.size();
+				return workload.operationKeys.length;
+			}
+		});
+
+		// drains a full tree, one item at a time:
+		result.add(new Benchmark("drain") {
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = workload.fullTree();
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				Map.Entry<Integer, String> first;
+				while ((first = this.tree.pollFirst()) != null) {
+					total += first.getKey();
+				}
+				sink += total;
+				return workload.size;
+			}
+
+			public Distribution[] distributions() {
+				return new Distribution[] {Distribution.SHUFFLED};
+			}
+		});
+
+		// drains a full tree in batches of SCAN_LENGTH items:
+		result.add(new Benchmark("drain-batch") {
+			private final int[] keys = new int[SCAN_LENGTH];
+			private final String[] values = new String[SCAN_LENGTH];
+			private RBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = workload.fullTree();
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				while (this.tree.pollFirst(SCAN_LENGTH, this.keys, 0, this.values, 0) > 0) {
+					total += this.keys[0];
+				}
+				sink += total;
+				return workload.size;
+			}
+
+			public Distribution[] distributions() {
+				return new Distribution[] {Distribution.SHUFFLED};
+			}
+		});
+
+		// inserts the operation keys into an empty persistent tree:
+		result.add(new Benchmark("persistent-insert") {
+			private PersistentRBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = new PersistentRBTree();
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.insert(key, workload.valueOf(key));
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// inserts the operation keys into an empty array based tree:
+		result.add(new Benchmark("int-insert") {
+			private IntRBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = new IntRBTree();
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.insert(key, workload.valueOf(key));
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// inserts the operation keys into an empty array based tree, with values in an arena:
+		result.add(new Benchmark("int-insert-arena") {
+			private IntRBTree tree;
+
+			public void setup(Workload workload) {
+				this.tree = new IntRBTree(new ValueArena(false));
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int key : workload.operationKeys) {
+					total += this.tree.insert(key, workload.valueOf(key));
+				}
+				sink += total;
+				return workload.operationKeys.length;
+			}
+		});
+
+		// searches the operation keys in a full array based tree:
+		result.add(new Benchmark("int-search") {
+			private IntRBTree tree;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = new IntRBTree(workload.size);
+					for (int key : workload.treeKeys) {
+						this.tree.insert(key, workload.valueOf(key));
+					}
+				}
+			}
+
+			public long run(Workload workload) {
+				long found = 0;
+				for (int key : workload.operationKeys) {
+					if (this.tree.search(key) != null) {
+						found++;
+					}
+				}
+				sink += found;
+				return workload.operationKeys.length;
+			}
+
+			public double[] hitRatios() {
+				return HIT_RATIOS;
+			}
+		});
+
+		// searches the operation keys in a full array based tree, with values in an arena:
+		result.add(new Benchmark("int-search-arena") {
+			private IntRBTree tree;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = new IntRBTree(workload.size, new ValueArena(false));
+					for (int key : workload.treeKeys) {
+						this.tree.insert(key, workload.valueOf(key));
+					}
+				}
+			}
+
+			public long run(Workload workload) {
+				long found = 0;
+				for (int key : workload.operationKeys) {
+					if (this.tree.search(key) != null) {
+						found++;
+					}
+				}
+				sink += found;
+				return workload.operationKeys.length;
+			}
+
+			public double[] hitRatios() {
+				return HIT_RATIOS;
+			}
+		});
+
+		// inserts the operation keys, widened to longs, into an empty long key tree:
+		result.add(new Benchmark("long-insert") {
+			private LongRBTree tree;
+			private long[] keys;
+
+			public void setup(Workload workload) {
+				this.tree = new LongRBTree();
+				this.keys = toLongKeys(workload.operationKeys);
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int ix = 0; ix < this.keys.length; ix++) {
+					total += this.tree.insert(this.keys[ix], workload.valueOf(workload.operationKeys[ix]));
+				}
+				sink += total;
+				return this.keys.length;
+			}
+		});
+
+		// searches the operation keys, widened to longs, in a full long key tree:
+		result.add(new Benchmark("long-search") {
+			private LongRBTree tree;
+			private long[] keys;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = new LongRBTree(workload.size);
+					for (int key : workload.treeKeys) {
+						this.tree.insert(toLongKey(key), workload.valueOf(key));
+					}
+				}
+				this.keys = toLongKeys(workload.operationKeys);
+			}
+
+			public long run(Workload workload) {
+				long found = 0;
+				for (long key : this.keys) {
+					if (this.tree.search(key) != null) {
+						found++;
+					}
+				}
+				sink += found;
+				return this.keys.length;
+			}
+
+			public double[] hitRatios() {
+				return HIT_RATIOS;
+			}
+		});
+
+		// inserts the operation keys, as doubles, into an empty double key tree:
+		result.add(new Benchmark("double-insert") {
+			private DoubleRBTree tree;
+			private double[] keys;
+
+			public void setup(Workload workload) {
+				this.tree = new DoubleRBTree();
+				this.keys = toDoubleKeys(workload.operationKeys);
+			}
+
+			public long run(Workload workload) {
+				long total = 0;
+				for (int ix = 0; ix < this.keys.length; ix++) {
+					total += this.tree.insert(this.keys[ix], workload.valueOf(workload.operationKeys[ix]));
+				}
+				sink += total;
+				return this.keys.length;
+			}
+		});
+
+		// searches the operation keys, as doubles, in a full double key tree:
+		result.add(new Benchmark("double-search") {
+			private DoubleRBTree tree;
+			private double[] keys;
+
+			public void setup(Workload workload) {
+				if (this.tree == null || this.tree.size() != workload.size) {
+					this.tree = new DoubleRBTree(workload.size);
+					for (int key : workload.treeKeys) {
+						this.tree.insert(toDoubleKey(key), workload.valueOf(key));
+					}
+				}
+				this.keys = toDoubleKeys(workload.operationKeys);
+			}
+
+			public long run(Workload workload) {
+				long found = 0;
+				for (double key : this.keys) {
+					if (this.tree.search(key) != null) {
+						found++;
+					}
+				}
+				sink += found;
+				return this.keys.length;
+			}
+
+			public double[] hitRatios() {
+				return HIT_RATIOS;
+			}
+		});
+
+		return result;
+	}
+
+	// the key of the long key benchmarks for an int key - spread over the
+	// whole range of longs, in the same order
+	private static long toLongKey(int key) {
+		return (long)key * 0x9E3779B9L - Long.MAX_VALUE / 2;
+	}
+
+	// the key of the double key benchmarks for an int key, in the same order
+	private static double toDoubleKey(int key) {
+		return key * 0.75 - 1e6;
+	}
+
+	private static long[] toLongKeys(int[] keys) {
+		long[] result = new long[keys.length];
+		for (int ix = 0; ix < keys.length; ix++) {
+			result[ix] = toLongKey(keys[ix]);
+		}
+		return result;
+	}
+
+	private static double[] toDoubleKeys(int[] keys) {
+		double[] result = new double[keys.length];
+		for (int ix = 0; ix < keys.length; ix++) {
+			result[ix] = toDoubleKey(keys[ix]);
+		}
+		return result;
+	}
+
+	// iterates over a tree the given number of times, returns the items visited
+	private static long iterateAll(RBTree tree, int times) {
+		long total = 0;
+		long visited = 0;
+		for (int ix = 0; ix < times; ix++) {
+			RBTree.EntryIterator iterator = tree.iterator();
+			while (iterator.hasNext()) {
+				total += iterator.next();
+				visited++;
+			}
+		}
+		sink += total;
+		return visited;
+	}
+
+	// repeats small exports so every iteration does a comparable amount of work
+	private static int exportsPerIteration(Workload workload) {
+		return Math.max(1, MIN_EXPORTED_ELEMENTS / workload.size);
+	}
+
+	// runs the warmup iterations, then the measured ones, and sums up the latter
+	private static Result measure(Benchmark benchmark, Workload workload, int warmup, int iterations) {
+		Result result = new Result(iterations);
+
+		for (int iteration = 0; iteration < warmup + iterations; iteration++) {
+			benchmark.setup(workload);
+
+			long gcCount = gcCount();
+			long gcMillis = gcMillis();
+			long bytes = allocatedBytes();
+			long nanos = System.nanoTime();
+
+			long operations = benchmark.run(workload);
+
+			nanos = System.nanoTime() - nanos;
+			bytes = allocatedBytes() - bytes;
+			gcMillis = gcMillis() - gcMillis;
+			gcCount = gcCount() - gcCount;
+
+			if (iteration >= warmup) {
+				result.add(operations, nanos, bytes, gcCount, gcMillis);
+			}
+		}
+
+		return result;
+	}
+
+	// returns the number of bytes allocated so far by the current thread,
+	// or 0 if the JVM can't tell us
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	// returns the number of collections so far, over all collectors
+	private static long gcCount() {
+		long total = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, bean.getCollectionCount());
+		}
+		return total;
+	}
+
+	// returns the accumulated collection time so far, over all collectors
+	private static long gcMillis() {
+		long total = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, bean.getCollectionTime());
+		}
+		return total;
+	}
+
+	/**
+	 * Helper classes
+	 */
+
+	/**
+	 * a single benchmark - setup() prepares the state of an iteration and is
+	 * not measured, run() is measured and returns the number of operations
+	 */
+	private static abstract class Benchmark {
+		protected final String name;
+
+		public Benchmark(String name) {
+			this.name = name;
+		}
+
+		public abstract void setup(Workload workload);
+
+		public abstract long run(Workload workload);
+
+		// the key distributions to run with
+		public Distribution[] distributions() {
+			return Distribution.values();
+		}
+
+		// the search hit ratios to run with
+		public double[] hitRatios() {
+			return new double[] {1.0};
+		}
+	}
+
+	/**
+	 * a benchmark that doesn't depend on the key distribution, working on a
+	 * full tree which is built once per size
+	 */
+	private static abstract class ConstantTimeBenchmark extends Benchmark {
+		// volatile, so the JIT can't hoist the O(1) calls out of the loop:
+		protected volatile RBTree tree;
+
+		public ConstantTimeBenchmark(String name) {
+			super(name);
+		}
+
+		public void setup(Workload workload) {
+			if (this.tree == null || this.tree.size() != workload.size) {
+				this.tree = workload.fullTree();
+			}
+		}
+
+		public Distribution[] distributions() {
+			return new Distribution[] {Distribution.SHUFFLED};
+		}
+	}
+
+	/**
+	 * a benchmark that combines a full tree with a tree of every third key
+	 * up to the same maximum, built anew for every iteration - one operation
+	 * per item of both trees
+	 */
+	private static abstract class SetBenchmark extends Benchmark {
+		protected RBTree first;
+		protected RBTree second;
+		protected long operations;
+
+		public SetBenchmark(String name) {
+			super(name);
+		}
+
+		public void setup(Workload workload) {
+			this.first = sortedTree(workload, 2);
+			this.second = sortedTree(workload, 3);
+			this.operations = this.first.size() + this.second.size();
+		}
+
+		public Distribution[] distributions() {
+			return new Distribution[] {Distribution.SHUFFLED};
+		}
+
+		// returns a tree of the multiples of step, up to 2 * size
+		private static RBTree sortedTree(Workload workload, int step) {
+			int[] keys = new int[2 * workload.size / step];
+			String[] values = new String[keys.length];
+			for (int ix = 0; ix < keys.length; ix++) {
+				keys[ix] = step * (ix + 1);
+				values[ix] = workload.valueOf(keys[ix]);
+			}
+			return RBTree.fromSortedArrays(keys, values);
+		}
+	}
+
+	/**
+	 * a benchmark on a mapped snapshot of a full tree, which is written to
+	 * a temporary file once per size
+	 */
+	private static abstract class SnapshotBenchmark extends Benchmark {
+		protected File file;
+		protected MappedSnapshot snapshot;
+
+		public SnapshotBenchmark(String name) {
+			super(name);
+		}
+
+		public void setup(Workload workload) {
+			if (this.snapshot != null && this.snapshot.size() == workload.size) {
+				return;
+			}
+			try {
+				if (this.file == null) {
+					this.file = File.createTempFile("benchmark", ".snapshot");
+					this.file.deleteOnExit();
+				}
+				if (this.snapshot != null) {
+					this.snapshot.close();
+				}
+				MappedSnapshot.write(workload.fullTree(), this.file);
+				this.snapshot = MappedSnapshot.open(this.file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public Distribution[] distributions() {
+			return new Distribution[] {Distribution.SHUFFLED};
+		}
+	}
+
+	/**
+	 * a benchmark of a timer queue, where the shuffled operation keys are the
+	 * (uniform) delays of the rescheduled timers. Zipfian delays would crowd
+	 * the deadlines of the sorted maps into long runs of collisions.
+	 */
+	private static abstract class TimerBenchmark extends Benchmark {
+		public TimerBenchmark(String name) {
+			super(name);
+		}
+
+		public Distribution[] distributions() {
+			return new Distribution[] {Distribution.SHUFFLED};
+		}
+	}
+
+	/**
+	 * a benchmark working on a paged tree file of a full tree, which is
+	 * written once per size and opened with a pool of 1/poolShare of its pages
+	 */
+	private static abstract class PagedBenchmark extends Benchmark {
+		private final int poolShare;
+		private File file;
+		protected PagedRBTree tree;
+
+		public PagedBenchmark(String name, int poolShare) {
+			super(name);
+			this.poolShare = poolShare;
+		}
+
+		public void setup(Workload workload) {
+			if (this.tree != null && this.tree.size() == workload.size) {
+				return;
+			}
+			try {
+				if (this.file == null) {
+					this.file = File.createTempFile("benchmark", ".pages");
+					this.file.deleteOnExit();
+				}
+				if (this.tree != null) {
+					this.tree.close();
+				}
+				this.file.delete();
+
+				// a pool big enough for the whole file, 64 records a page:
+				PagedRBTree written = PagedRBTree.open(this.file, workload.size / 64 + 2);
+				for (int key : workload.treeKeys) {
+					written.insert(key, workload.valueOf(key));
+				}
+				written.close();
+
+				this.tree = PagedRBTree.open(this.file, (int)Math.max(1, written.filePages() / this.poolShare));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public Distribution[] distributions() {
+			return new Distribution[] {Distribution.SHUFFLED, Distribution.ZIPFIAN};
+		}
+
+		public double[] hitRatios() {
+			return HIT_RATIOS;
+		}
+	}
+
+	/**
+	 * the keys a benchmark works with: a full tree holds the even keys
+	 * 2, 4, ..., 2 * size, and the operation keys are size keys in the order
+	 * given by the distribution. a search miss looks for an odd key.
+	 */
+	private static class Workload {
+		private final int size;
+		private final int[] treeKeys;
+		private final int[] operationKeys;
+		private final String[] values;
+
+		public Workload(int size, Distribution distribution, double hitRatio) {
+			Random random = new Random(SEED);
+
+			this.size = size;
+			this.values = new String[size + 1];
+			for (int ix = 1; ix <= size; ix++) {
+				this.values[ix] = Integer.toString(2 * ix);
+			}
+
+			// the order of insertion when building a full tree:
+			this.treeKeys = new int[size];
+			for (int ix = 0; ix < size; ix++) {
+				this.treeKeys[ix] = 2 * (ix + 1);
+			}
+			shuffle(this.treeKeys, random);
+
+			this.operationKeys = new int[size];
+			ZipfGenerator zipf = (distribution == Distribution.ZIPFIAN) ? new ZipfGenerator(size, ZIPF_THETA) : null;
+			for (int ix = 0; ix < size; ix++) {
+				int rank;
+				if (zipf != null) {
+					rank = zipf.next(random);
+				} else {
+					rank = ix;
+				}
+				int key = 2 * (rank + 1);
+				if (random.nextDouble() >= hitRatio) {
+					key++;
+				}
+				this.operationKeys[ix] = key;
+			}
+			if (distribution == Distribution.SHUFFLED) {
+				shuffle(this.operationKeys, random);
+			} else if (distribution == Distribution.CLUSTERED) {
+				shuffleClusters(this.operationKeys, random);
+			}
+		}
+
+		// returns a new tree holding all the even keys
+		public RBTree fullTree() {
+			return this.fullTree(false);
+		}
+
+		// returns a new tree holding all the even keys, threaded or not
+		public RBTree fullTree(boolean threaded) {
+			RBTree tree = new RBTree(threaded);
+			for (int key : this.treeKeys) {
+				tree.insert(key, this.valueOf(key));
+			}
+			return tree;
+		}
+
+		// returns the (shared) value of an even key, or a new one for an odd key
+		public String valueOf(int key) {
+			if (key % 2 == 0) {
+				return this.values[key / 2];
+			}
+			return Integer.toString(key);
+		}
+
+		// Fisher-Yates shuffle - O(n)
+		private static void shuffle(int[] array, Random random) {
+			for (int ix = array.length - 1; ix > 0; ix--) {
+				int other = random.nextInt(ix + 1);
+				int temp = array[ix];
+				array[ix] = array[other];
+				array[other] = temp;
+			}
+		}
+
+		// shuffles the runs of CLUSTER_LENGTH elements, keeping the order inside every run
+		private static void shuffleClusters(int[] array, Random random) {
+			int[] clusters = new int[(array.length + CLUSTER_LENGTH - 1) / CLUSTER_LENGTH];
+			for (int ix = 0; ix < clusters.length; ix++) {
+				clusters[ix] = ix;
+			}
+			shuffle(clusters, random);
+
+			int[] source = array.clone();
+			int target = 0;
+			for (int cluster : clusters) {
+				int first = cluster * CLUSTER_LENGTH;
+				int length = Math.min(CLUSTER_LENGTH, array.length - first);
+				System.arraycopy(source, first, array, target, length);
+				target += length;
+			}
+		}
+	}
+
+	/**
+	 * draws ranks 0..n-1 from a Zipfian distribution, rank 0 being the most
+	 * popular one (the algorithm of Gray et al., "Quickly Generating
+	 * Billion-Record Synthetic Databases", as used by YCSB)
+	 */
+	private static class ZipfGenerator {
+		private final int n;
+		private final double theta;
+		private final double alpha;
+		private final double zetan;
+		private final double eta;
+
+		// O(n) - computing zeta(n, theta)
+		public ZipfGenerator(int n, double theta) {
+			this.n = n;
+			this.theta = theta;
+			this.alpha = 1.0 / (1.0 - theta);
+			this.zetan = zeta(n, theta);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / this.zetan);
+		}
+
+		// O(1)
+		public int next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * this.zetan;
+			if (uz < 1.0) {
+				return 0;
+			}
+			if (uz < 1.0 + Math.pow(0.5, this.theta)) {
+				return Math.min(1, this.n - 1);
+			}
+			int rank = (int)(this.n * Math.pow(this.eta * u - this.eta + 1, this.alpha));
+			return Math.min(rank, this.n - 1);
+		}
+
+		private static double zeta(int n, double theta) {
+			double sum = 0;
+			for (int ix = 1; ix <= n; ix++) {
+				sum += 1 / Math.pow(ix, theta);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * the accumulated outcome of the measured iterations of one configuration
+	 */
+	private static class Result {
+		private final double[] opsPerSecond;
+		private int iterations;
+		private long operations;
+		private long bytes;
+		private long gcCount;
+		private long gcMillis;
+
+		public Result(int iterations) {
+			this.opsPerSecond = new double[iterations];
+		}
+
+		public void add(long operations, long nanos, long bytes, long gcCount, long gcMillis) {
+			this.opsPerSecond[this.iterations++] = operations * 1e9 / Math.max(1, nanos);
+			this.operations += operations;
+			this.bytes += bytes;
+			this.gcCount += gcCount;
+			this.gcMillis += gcMillis;
+		}
+
+		// mean ops/sec, plus/minus the standard deviation over the iterations
+		public String throughput() {
+			if (this.iterations == 0) {
+				return "-";
+			}
+
+			double mean = 0;
+			for (int ix = 0; ix < this.iterations; ix++) {
+				mean += this.opsPerSecond[ix];
+			}
+			mean /= this.iterations;
+
+			double variance = 0;
+			for (int ix = 0; ix < this.iterations; ix++) {
+				variance += (this.opsPerSecond[ix] - mean) * (this.opsPerSecond[ix] - mean);
+			}
+			variance /= this.iterations;
+
+			return String.format("%.0f +- %.0f", mean, Math.sqrt(variance));
+		}
+
+		public double bytesPerOperation() {
+			return (double)this.bytes / Math.max(1, this.operations);
+		}
+	}
+}
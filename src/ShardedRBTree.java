@@ -0,0 +1,517 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ *
+ * ShardedRBTree
+ *
+ * A thread safe map of non-negative int keys to String values, whose key
+ * space is cut into ranges, or shards. Each shard is an RBTree with a lock
+ * of its own, so writes to different shards don't contend.
+ *
+ * Shard i holds the keys from lowerBounds[i] up to (not including)
+ * lowerBounds[i + 1]. The bounds are an immutable array, replaced whenever
+ * they move, so routing a key takes no lock. An operation routes the key,
+ * locks the shard, and checks the shard still owns the key - bounds only
+ * move while all the shards they separate are locked.
+ *
+ * The operations that span shards (min, max, size, the exports) lock all
+ * the shards, in order, so they see a consistent tree.
+ *
+ */
+
+public class ShardedRBTree {
+	private final Shard[] shards;
+	// the smallest key of every shard, lowerBounds[0] is always 0:
+	private volatile int[] lowerBounds;
+	// held while a new lowerBounds is made from the current one, so moves of
+	// disjoint boundaries don't drop each other's bound:
+	private final Object boundsLock = new Object();
+
+	/**
+	 * public ShardedRBTree(int shardCount, int maxKey)
+	 *
+	 * creates an empty tree of shardCount shards of equal key ranges,
+	 * covering the keys 0..maxKey - bigger keys go to the last shard
+	 */
+	public ShardedRBTree(int shardCount, int maxKey) {
+		this(evenBounds(shardCount, maxKey));
+	}
+
+	/**
+	 * public ShardedRBTree(int[] lowerBounds)
+	 *
+	 * creates an empty tree with a shard for every lower bound. the bounds
+	 * must start at 0 and be strictly increasing, otherwise
+	 * IllegalArgumentException is thrown.
+	 */
+	public ShardedRBTree(int[] lowerBounds) {
+		if (lowerBounds.length == 0 || lowerBounds[0] != 0) {
+			throw new IllegalArgumentException("the lower bounds must start at 0");
+		}
+		for (int ix = 1; ix < lowerBounds.length; ix++) {
+			if (lowerBounds[ix - 1] >= lowerBounds[ix]) {
+				throw new IllegalArgumentException("the lower bounds are not strictly increasing at index " + ix);
+			}
+		}
+
+		this.lowerBounds = lowerBounds.clone();
+		this.shards = new Shard[lowerBounds.length];
+		for (int ix = 0; ix < this.shards.length; ix++) {
+			this.shards[ix] = new Shard();
+		}
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the value of an item with key k if it exists in the tree
+	 * otherwise, returns null
+	 *
+	 * in O(log(n)), under the owning shard's read lock
+	 */
+	public String search(int k) {
+		while (true) {
+			int index = this.shardOf(k);
+			Shard shard = this.shards[index];
+			long stamp = shard.lock.readLock();
+			try {
+				if (this.shardOf(k) == index) {
+					return shard.tree.search(k);
+				}
+			} finally {
+				shard.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * public int insert(int k, String v)
+	 *
+	 * as RBTree.insert, under the owning shard's write lock
+	 */
+	public int insert(int k, String v) {
+		while (true) {
+			int index = this.shardOf(k);
+			Shard shard = this.shards[index];
+			long stamp = shard.lock.writeLock();
+			try {
+				if (this.shardOf(k) == index) {
+					shard.writes++;
+					return shard.tree.insert(k, v);
+				}
+			} finally {
+				shard.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * as RBTree.delete, under the owning shard's write lock
+	 */
+	public int delete(int k) {
+		while (true) {
+			int index = this.shardOf(k);
+			Shard shard = this.shards[index];
+			long stamp = shard.lock.writeLock();
+			try {
+				if (this.shardOf(k) == index) {
+					shard.writes++;
+					return shard.tree.delete(k);
+				}
+			} finally {
+				shard.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the value of the item with the smallest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(number of shards)
+	 */
+	public String min() {
+		long[] stamps = this.readLockAll();
+		try {
+			for (Shard shard : this.shards) {
+				if (!shard.tree.empty()) {
+					return shard.tree.min();
+				}
+			}
+			return null;
+		} finally {
+			this.unlockReadAll(stamps);
+		}
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the value of the item with the largest key in the tree, or null
+	 * if the tree is empty
+	 *
+	 * in O(number of shards)
+	 */
+	public String max() {
+		long[] stamps = this.readLockAll();
+		try {
+			for (int ix = this.shards.length - 1; ix >= 0; ix--) {
+				if (!this.shards[ix].tree.empty()) {
+					return this.shards[ix].tree.max();
+				}
+			}
+			return null;
+		} finally {
+			this.unlockReadAll(stamps);
+		}
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 *
+	 * in O(number of shards)
+	 */
+	public int size() {
+		long[] stamps = this.readLockAll();
+		try {
+			int size = 0;
+			for (Shard shard : this.shards) {
+				size += shard.tree.size();
+			}
+			return size;
+		} finally {
+			this.unlockReadAll(stamps);
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 *
+	 * in O(number of shards)
+	 */
+	public boolean empty() {
+		return this.size() == 0;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty
+	 * array if the tree is empty. the shards are in key order, so their
+	 * exports are just placed one after the other.
+	 *
+	 * in O(n)
+	 */
+	public int[] keysToArray() {
+		long[] stamps = this.readLockAll();
+		try {
+			int[] keys = new int[this.lockedSize()];
+			int offset = 0;
+			for (Shard shard : this.shards) {
+				offset += shard.tree.export(0, shard.tree.size(), keys, offset, null, 0);
+			}
+			return keys;
+		} finally {
+			this.unlockReadAll(stamps);
+		}
+	}
+
+	/**
+	 * public String[] valuesToArray()
+	 *
+	 * Returns an array which contains all values in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 *
+	 * in O(n)
+	 */
+	public String[] valuesToArray() {
+		long[] stamps = this.readLockAll();
+		try {
+			String[] values = new String[this.lockedSize()];
+			int offset = 0;
+			for (Shard shard : this.shards) {
+				offset += shard.tree.export(0, shard.tree.size(), null, 0, values, offset);
+			}
+			return values;
+		} finally {
+			this.unlockReadAll(stamps);
+		}
+	}
+
+	/**
+	 * public int shardCount()
+	 *
+	 * returns the number of shards
+	 *
+	 * in O(1)
+	 */
+	public int shardCount() {
+		return this.shards.length;
+	}
+
+	/**
+	 * public int[] lowerBounds()
+	 *
+	 * returns the smallest key of every shard
+	 *
+	 * in O(number of shards)
+	 */
+	public int[] lowerBounds() {
+		return this.lowerBounds.clone();
+	}
+
+	/**
+	 * public int[] shardSizes()
+	 *
+	 * returns the number of items in every shard
+	 *
+	 * in O(number of shards)
+	 */
+	public int[] shardSizes() {
+		long[] stamps = this.readLockAll();
+		try {
+			int[] sizes = new int[this.shards.length];
+			for (int ix = 0; ix < sizes.length; ix++) {
+				sizes[ix] = this.shards[ix].tree.size();
+			}
+			return sizes;
+		} finally {
+			this.unlockReadAll(stamps);
+		}
+	}
+
+	/**
+	 * public long[] shardWrites()
+	 *
+	 * returns the number of inserts and deletes routed to every shard so
+	 * far - a shard which gets most of them is a candidate for moving its
+	 * bounds closer together
+	 *
+	 * in O(number of shards)
+	 */
+	public long[] shardWrites() {
+		long[] stamps = this.readLockAll();
+		try {
+			long[] writes = new long[this.shards.length];
+			for (int ix = 0; ix < writes.length; ix++) {
+				writes[ix] = this.shards[ix].writes;
+			}
+			return writes;
+		} finally {
+			this.unlockReadAll(stamps);
+		}
+	}
+
+	/**
+	 * public void moveBoundary(int index, int bound)
+	 *
+	 * moves the lower bound of shard index (at least 1) to bound, which must
+	 * stay above the lower bound of the shard before it and below the one of
+	 * the shard after it, otherwise IllegalArgumentException is thrown. the
+	 * items between the old and the new bound move to the other shard.
+	 *
+	 * locks the two shards only. the items move by split and join.
+	 *
+	 * in O(log(n))
+	 */
+	public void moveBoundary(int index, int bound) {
+		if (index < 1 || index >= this.shards.length) {
+			throw new IllegalArgumentException("no lower bound to move at index " + index);
+		}
+
+		Shard lower = this.shards[index - 1];
+		Shard upper = this.shards[index];
+		long lowerStamp = lower.lock.writeLock();
+		long upperStamp = upper.lock.writeLock();
+		try {
+			int[] bounds = this.lowerBounds;
+			if (bound <= bounds[index - 1] || (index + 1 < bounds.length && bound >= bounds[index + 1])) {
+				throw new IllegalArgumentException("bound " + bound + " is out of the range of shards " + (index - 1) + " and " + index);
+			}
+
+			if (bound < bounds[index]) {
+				// the top of the lower shard moves up
+				RBTree.Split split = lower.tree.split(bound);
+				lower.tree = split.getLess();
+				upper.tree = concat(withKey(split.getGreater(), bound, split), upper.tree);
+			} else if (bound > bounds[index]) {
+				// the bottom of the upper shard moves down
+				RBTree.Split split = upper.tree.split(bound);
+				lower.tree = concat(lower.tree, split.getLess());
+				upper.tree = withKey(split.getGreater(), bound, split);
+			}
+
+			// only this entry may change here, but other entries may have
+			// moved since bounds was read:
+			synchronized (this.boundsLock) {
+				int[] newBounds = this.lowerBounds.clone();
+				newBounds[index] = bound;
+				this.lowerBounds = newBounds;
+			}
+		} finally {
+			upper.lock.unlockWrite(upperStamp);
+			lower.lock.unlockWrite(lowerStamp);
+		}
+	}
+
+	/**
+	 * public void rebalance()
+	 *
+	 * moves the bounds so that all the shards hold the same number of items
+	 * (give or take one). does nothing if there are fewer items than shards.
+	 *
+	 * locks all the shards. the shards are joined into a single tree, which
+	 * is then split at the new bounds.
+	 *
+	 * in O(number of shards * log(n))
+	 */
+	public void rebalance() {
+		long[] stamps = this.writeLockAll();
+		try {
+			int size = this.lockedSize();
+			if (size < this.shards.length) {
+				return;
+			}
+
+			RBTree tree = new RBTree();
+			for (Shard shard : this.shards) {
+				tree = concat(tree, shard.tree);
+			}
+
+			// the new bounds are the keys of evenly spaced ranks
+			int[] newBounds = new int[this.shards.length];
+			for (int ix = 1; ix < newBounds.length; ix++) {
+				newBounds[ix] = tree.select((int)((long)size * ix / newBounds.length));
+			}
+
+			// splits the shards off the top of the tree, one by one
+			for (int ix = newBounds.length - 1; ix > 0; ix--) {
+				RBTree.Split split = tree.split(newBounds[ix]);
+				this.shards[ix].tree = withKey(split.getGreater(), newBounds[ix], split);
+				tree = split.getLess();
+			}
+			this.shards[0].tree = tree;
+
+			synchronized (this.boundsLock) {
+				this.lowerBounds = newBounds;
+			}
+		} finally {
+			this.unlockWriteAll(stamps);
+		}
+	}
+
+	/**
+	 * Private methods
+	 */
+
+	// returns the index of the shard which owns key k - O(log(number of shards))
+	private int shardOf(int k) {
+		int index = Arrays.binarySearch(this.lowerBounds, k);
+		if (index >= 0) {
+			return index;
+		}
+		// negative keys aren't supported, but they don't break anything either
+		return Math.max(0, -index - 2);
+	}
+
+	// returns the number of items, all shards must be locked - O(number of shards)
+	private int lockedSize() {
+		int size = 0;
+		for (Shard shard : this.shards) {
+			size += shard.tree.size();
+		}
+		return size;
+	}
+
+	// read locks all the shards in order, returns their stamps
+	private long[] readLockAll() {
+		long[] stamps = new long[this.shards.length];
+		for (int ix = 0; ix < stamps.length; ix++) {
+			stamps[ix] = this.shards[ix].lock.readLock();
+		}
+		return stamps;
+	}
+
+	private void unlockReadAll(long[] stamps) {
+		for (int ix = stamps.length - 1; ix >= 0; ix--) {
+			this.shards[ix].lock.unlockRead(stamps[ix]);
+		}
+	}
+
+	// write locks all the shards in order, returns their stamps
+	private long[] writeLockAll() {
+		long[] stamps = new long[this.shards.length];
+		for (int ix = 0; ix < stamps.length; ix++) {
+			stamps[ix] = this.shards[ix].lock.writeLock();
+		}
+		return stamps;
+	}
+
+	private void unlockWriteAll(long[] stamps) {
+		for (int ix = stamps.length - 1; ix >= 0; ix--) {
+			this.shards[ix].lock.unlockWrite(stamps[ix]);
+		}
+	}
+
+	/**
+	 * returns a tree of the items of left and then right, which are left
+	 * empty. right's min becomes the key the two are joined by.
+	 *
+	 * O(log(n))
+	 */
+	private static RBTree concat(RBTree left, RBTree right) {
+		if (right.empty()) {
+			return left;
+		}
+		if (left.empty()) {
+			return right;
+		}
+
+		int key = right.select(0);
+		String value = right.min();
+		right.delete(key);
+		return RBTree.join(left, key, value, right);
+	}
+
+	// puts the key a split was made at back into the bigger part, if it was found - O(log(n))
+	private static RBTree withKey(RBTree greater, int key, RBTree.Split split) {
+		if (split.isFound()) {
+			greater.insert(key, split.getValue());
+		}
+		return greater;
+	}
+
+	// the lower bounds of shardCount equal ranges of 0..maxKey
+	private static int[] evenBounds(int shardCount, int maxKey) {
+		if (shardCount < 1 || maxKey < shardCount - 1) {
+			throw new IllegalArgumentException("can't cut 0.." + maxKey + " into " + shardCount + " shards");
+		}
+
+		int[] bounds = new int[shardCount];
+		for (int ix = 0; ix < shardCount; ix++) {
+			bounds[ix] = (int)(((long)maxKey + 1) * ix / shardCount);
+		}
+		return bounds;
+	}
+
+	/**
+	 * Helper classes
+	 */
+
+	// a key range's tree, with its lock. the tree is replaced when bounds move.
+	private static class Shard {
+		private final StampedLock lock = new StampedLock();
+		private RBTree tree = new RBTree();
+		// the inserts and deletes routed here, under the write lock:
+		private long writes;
+	}
+}
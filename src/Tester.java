@@ -1,6 +1,18 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import org.junit.Test;
 
 public class Tester {
@@ -13,18 +25,1749 @@ public class Tester {
 		// Run the simple test:
 		insertions = new int[] {6, 7, 8, 9, 10, 5, 4, 3, 2, 1};
 		deletions = new int[]  {2, 9, 1, 10, 5, 4, 3, 8, 7, 6};
-		runFullTestSuite(insertions, deletions);
+		runFullTestSuite(insertions, deletions, false);
+		runFullTestSuite(insertions, deletions, true);
 		
 		// Run the big dataset test:
 		insertions = getKeysFromFile("test data/test_data_insert_1.txt");
 		deletions = getKeysFromFile("test data/test_data_delete_1.txt");
-		runFullTestSuite(insertions, deletions);
+		runFullTestSuite(insertions, deletions, false);
+		runFullTestSuite(insertions, deletions, true);
+		
+		testOffHeapTreeValues();
+		testBulkBuild();
+		testApplyBatch();
+		testScan();
+		testExport();
+		testConcurrentTree();
+		testPersistentTree();
+		testSplitJoin();
+		testSetOperations();
+		testStreams();
+		testShardedTree();
+		testMappedSnapshot();
+		testDurableTree();
+		testPagedTree();
+		testFingers();
+		testPoll();
+		testNavigation();
+		testValueArena();
+		testPrimitiveKeyTrees();
+		testTreeMetrics();
+		testDuplicateInsert();
+		testMetricsSwitching();
+	}
+	
+	private static void testMetricsSwitching()
+	{
+		// metrics set and removed by another thread, in the middle of the writes:
+		final RBTree tree = new RBTree();
+		final TreeMetrics metrics = new TreeMetrics();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread switcher = new Thread()
+		{
+			public void run()
+			{
+				while (!done.get())
+				{
+					tree.setMetrics(metrics);
+					tree.setMetrics(null);
+				}
+			}
+		};
+		switcher.start();
+		
+		RBTree reference = new RBTree();
+		Random random = new Random(6);
+		try
+		{
+			for (int ix = 0; ix < 1000000; ix++)
+			{
+				int key = random.nextInt(2000);
+				if (random.nextBoolean())
+				{
+					assert tree.insert(key, "v") == reference.insert(key, "v");
+				}
+				else
+				{
+					assert tree.delete(key) == reference.delete(key);
+				}
+			}
+		}
+		finally
+		{
+			done.set(true);
+		}
+		
+		try
+		{
+			switcher.join();
+		}
+		catch (InterruptedException e)
+		{
+			assert false;
+		}
+		assert Arrays.equals(tree.keysToArray(), reference.keysToArray());
+		verifyRBTreeInvariants(tree);
+		assert metrics.rotations() > 0;
+	}
+	
+	private static void testDuplicateInsert()
+	{
+		RBTree tree = new RBTree();
+		for (int key = 0; key < 1000; key++)
+		{
+			tree.insert(key, Integer.toString(key));
+		}
+		
+		// a rejected duplicate leaves the tree as it was, and allocates no node:
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+			long threadId = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(threadId);
+			for (int ix = 0; ix < 100000; ix++)
+			{
+				assert tree.insert(ix % 1000, "duplicate") == -1;
+			}
+			long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+			// a node per duplicate would be megabytes
+			assert allocated < (1 << 20) : allocated;
+		}
+		assert tree.size() == 1000 && tree.search(7).equals("7");
+		verifyRBTreeInvariants(tree);
+	}
+	
+	private static void testTreeMetrics()
+	{
+		// the histogram alone:
+		TreeMetrics.Histogram histogram = new TreeMetrics.Histogram();
+		assert histogram.count() == 0 && histogram.percentile(0.99) == 0 && histogram.mean() == 0;
+		for (int value = 0; value < 1000; value++)
+		{
+			histogram.record(value);
+		}
+		assert histogram.count() == 1000 && histogram.max() == 999 && histogram.mean() == 499.5;
+		for (double p : new double[] {0.01, 0.1, 0.5, 0.9, 0.99, 0.999})
+		{
+			long exact = (long)Math.ceil(p * 1000) - 1;
+			long percentile = histogram.percentile(p);
+			assert percentile >= exact && percentile <= exact + exact / 16 + 1 : p + ": " + percentile;
+		}
+		assert histogram.percentile(0) == 0 && histogram.percentile(1) == 999;
+		histogram.record(Long.MAX_VALUE);
+		histogram.record(-5);
+		assert histogram.percentile(1) == Long.MAX_VALUE && histogram.percentile(0) == 0;
+		try
+		{
+			histogram.percentile(1.5);
+			assert false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+		histogram.reset();
+		assert histogram.count() == 0 && histogram.max() == 0;
+		
+		// a tree recording its operations does exactly what one that doesn't does:
+		Random random = new Random(12);
+		RBTree plain = new RBTree();
+		RBTree measured = new RBTree(true);
+		assert measured.getMetrics() == null;
+		TreeMetrics metrics = new TreeMetrics();
+		measured.setMetrics(metrics);
+		assert measured.getMetrics() == metrics;
+		
+		int inserts = 0;
+		int inserted = 0;
+		int deletes = 0;
+		int searches = 0;
+		for (int ix = 0; ix < 20000; ix++)
+		{
+			int key = random.nextInt(5000);
+			int choice = random.nextInt(4);
+			if (choice < 2)
+			{
+				int colorChanges = plain.insert(key, Integer.toString(key));
+				assert measured.insert(key, Integer.toString(key)) == colorChanges;
+				inserts++;
+				inserted += (colorChanges == -1) ? 0 : 1;
+			}
+			else if (choice == 2)
+			{
+				assert measured.delete(key) == plain.delete(key);
+				deletes++;
+			}
+			else
+			{
+				String value = plain.search(key);
+				assert value == null ? measured.search(key) == null : value.equals(measured.search(key));
+				searches++;
+			}
+		}
+		verifyRBTreeInvariants(measured);
+		
+		assert metrics.insertLatency().count() == inserts;
+		assert metrics.deleteLatency().count() == deletes;
+		assert metrics.searchLatency().count() == searches;
+		assert metrics.searchPathLength().count() == searches;
+		// every insert into a non empty tree ends with a fixup:
+		assert metrics.insertFixupLength().count() == inserted - 1;
+		assert metrics.deleteFixupLength().count() > 0 && metrics.rotations() > 0;
+		// a red black tree is never more than 2*log2(n+1) high:
+		assert metrics.searchPathLength().max() <= 2 * (32 - Integer.numberOfLeadingZeros(5001));
+		assert metrics.searchPathLength().percentile(0.5) >= 1;
+		
+		// metrics may be shared by trees, and recording stops without them:
+		RBTree other = new RBTree();
+		other.setMetrics(metrics);
+		other.search(1);
+		assert metrics.searchLatency().count() == searches + 1;
+		other.setMetrics(null);
+		other.search(1);
+		other.insert(1, "1");
+		assert metrics.searchLatency().count() == searches + 1 && metrics.insertLatency().count() == inserts;
+		
+		// fingers, batches and polls are recorded too, each operation once:
+		TreeMetrics pathMetrics = new TreeMetrics();
+		RBTree pathTree = new RBTree();
+		pathTree.setMetrics(pathMetrics);
+		RBTree.Finger finger = pathTree.finger();
+		for (int key = 0; key < 100; key++)
+		{
+			pathTree.insert(key, Integer.toString(key), finger);
+		}
+		pathTree.insert(50, "duplicate", finger);
+		pathTree.search(50, finger);
+		pathTree.delete(50, finger);
+		RBTree.Batch pathBatch = new RBTree.Batch();
+		pathBatch.insert(200, "200");
+		pathBatch.insert(201, "201");
+		pathBatch.delete(10);
+		pathTree.applyBatch(pathBatch);
+		pathTree.pollFirst();
+		pathTree.pollLast();
+		pathTree.pollFirst(3, null, 0, null, 0);
+		assert pathMetrics.insertLatency().count() == 103;
+		assert pathMetrics.searchLatency().count() == 1;
+		// the path length is of searches by key only:
+		assert pathMetrics.searchPathLength().count() == 0;
+		assert pathMetrics.deleteLatency().count() == 7;
+		assert pathMetrics.insertFixupLength().count() == 99 + 2;
+		
+		// the same metrics through JMX:
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = metrics.register("tester");
+			CompositeData searchLatency = (CompositeData)server.getAttribute(name, "SearchLatency");
+			assert ((Long)searchLatency.get("count")) == searches + 1;
+			assert ((Long)searchLatency.get("p99")) == metrics.searchLatency().percentile(0.99);
+			assert ((Long)server.getAttribute(name, "Rotations")) == metrics.rotations();
+			server.invoke(name, "reset", new Object[0], new String[0]);
+			assert metrics.rotations() == 0 && metrics.insertLatency().count() == 0;
+			metrics.unregister(name);
+			assert !server.isRegistered(name);
+		}
+		catch (JMException e)
+		{
+			assert false : e;
+		}
+	}
+	
+	private static void testPrimitiveKeyTrees()
+	{
+		// keys mapped in order to negative longs and fractional doubles make
+		// the same shapes, so every color change count must match RBTree's:
+		Random random = new Random(11);
+		RBTree reference = new RBTree();
+		LongRBTree longTree = new LongRBTree(4);
+		DoubleRBTree doubleTree = new DoubleRBTree(4);
+		for (int ix = 0; ix < 20000; ix++)
+		{
+			int key = random.nextInt(5000);
+			if (random.nextInt(3) != 0)
+			{
+				String value = Integer.toString(key);
+				int colorChanges = reference.insert(key, value);
+				assert longTree.insert(toLongKey(key), value) == colorChanges;
+				assert doubleTree.insert(toDoubleKey(key), value) == colorChanges;
+			}
+			else
+			{
+				int colorChanges = reference.delete(key);
+				assert longTree.delete(toLongKey(key)) == colorChanges;
+				assert doubleTree.delete(toDoubleKey(key)) == colorChanges;
+			}
+			assert longTree.size() == reference.size() && doubleTree.size() == reference.size();
+		}
+		
+		int[] keys = reference.keysToArray();
+		long[] longKeys = longTree.keysToArray();
+		double[] doubleKeys = doubleTree.keysToArray();
+		for (int ix = 0; ix < keys.length; ix++)
+		{
+			assert longKeys[ix] == toLongKey(keys[ix]) && doubleKeys[ix] == toDoubleKey(keys[ix]);
+			assert longTree.search(longKeys[ix]).equals(reference.search(keys[ix]));
+			assert doubleTree.search(doubleKeys[ix]).equals(reference.search(keys[ix]));
+		}
+		assert Arrays.equals(longTree.valuesToArray(), reference.valuesToArray());
+		assert Arrays.equals(doubleTree.valuesToArray(), reference.valuesToArray());
+		assert longTree.min().equals(reference.min()) && doubleTree.max().equals(reference.max());
+		
+		// export windows, as in RBTree:
+		for (int from : new int[] {0, 1, keys.length / 2, keys.length - 1, keys.length, keys.length + 5})
+		{
+			int[] expectedKeys = new int[keys.length];
+			String[] expectedValues = new String[keys.length];
+			long[] exportedLongs = new long[keys.length];
+			double[] exportedDoubles = new double[keys.length];
+			String[] exportedValues = new String[keys.length];
+			int count = reference.export(from, 100, expectedKeys, 0, expectedValues, 0);
+			assert longTree.export(from, 100, exportedLongs, 0, exportedValues, 0) == count;
+			assert doubleTree.export(from, 100, exportedDoubles, 0, null, 0) == count;
+			for (int ix = 0; ix < count; ix++)
+			{
+				assert exportedLongs[ix] == toLongKey(expectedKeys[ix]);
+				assert exportedDoubles[ix] == toDoubleKey(expectedKeys[ix]);
+				assert exportedValues[ix].equals(expectedValues[ix]);
+			}
+		}
+		try
+		{
+			longTree.export(0, 2, new long[1], 0, null, 0);
+			assert false;
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			// expected
+		}
+		
+		// the whole range of longs, against a TreeMap:
+		LongRBTree wideTree = new LongRBTree();
+		TreeMap<Long, String> expected = new TreeMap<Long, String>();
+		for (int ix = 0; ix < 5000; ix++)
+		{
+			long key = (ix < 2) ? ((ix == 0) ? Long.MIN_VALUE : Long.MAX_VALUE) : random.nextLong();
+			String value = Long.toString(key);
+			assert (wideTree.insert(key, value) == -1) == expected.containsKey(key);
+			expected.put(key, value);
+		}
+		long[] wideKeys = wideTree.keysToArray();
+		int ix = 0;
+		for (Map.Entry<Long, String> entry : expected.entrySet())
+		{
+			assert wideKeys[ix++] == entry.getKey();
+		}
+		assert wideTree.min().equals(Long.toString(Long.MIN_VALUE)) && wideTree.max().equals(Long.toString(Long.MAX_VALUE));
+		
+		// NaN is no key, and 0.0 and -0.0 are one key:
+		DoubleRBTree edgeTree = new DoubleRBTree();
+		try
+		{
+			edgeTree.insert(Double.NaN, "nan");
+			assert false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+		assert edgeTree.search(Double.NaN) == null && edgeTree.delete(Double.NaN) == -1;
+		assert edgeTree.insert(-0.0, "zero") != -1;
+		assert edgeTree.insert(0.0, "zero again") == -1;
+		assert edgeTree.search(0.0).equals("zero");
+		edgeTree.insert(Double.NEGATIVE_INFINITY, "-inf");
+		edgeTree.insert(Double.POSITIVE_INFINITY, "+inf");
+		edgeTree.insert(Double.MIN_VALUE, "tiny");
+		assert Arrays.equals(edgeTree.valuesToArray(), new String[] {"-inf", "zero", "tiny", "+inf"});
+		assert edgeTree.delete(0.0) != -1 && edgeTree.search(-0.0) == null;
+		
+		// the checked in trees are what the template generates:
+		try
+		{
+			List<String> template = Files.readAllLines(new File("templates/PrimitiveRBTree.template").toPath());
+			for (String name : new String[] {"Int", "Long", "Double"})
+			{
+				List<String> source = Files.readAllLines(new File("src/" + name + "RBTree.java").toPath());
+				assert source.equals(TreeGenerator.generate(template, name, name.toLowerCase())) : name + "RBTree.java differs from the template";
+			}
+		}
+		catch (IOException e)
+		{
+			assert false : e;
+		}
+	}
+	
+	private static long toLongKey(int key)
+	{
+		return ((long)key << 32) - (1L << 50);
+	}
+	
+	private static double toDoubleKey(int key)
+	{
+		return key / 8.0 - 1000.0;
+	}
+	
+	private static void testValueArena()
+	{
+		for (boolean deduplicate : new boolean[] {false, true})
+		{
+			Random random = new Random(10);
+			ValueArena arena = new ValueArena(deduplicate);
+			IntRBTree tree = new IntRBTree(4, arena);
+			RBTree reference = new RBTree();
+			
+			for (int ix = 0; ix < 20000; ix++)
+			{
+				int key = random.nextInt(5000);
+				if (random.nextInt(3) != 0)
+				{
+					// few distinct values, some null, some long and multi-byte:
+					int kind = key % 50;
+					String value = (kind == 0) ? null : (kind == 1) ? "\u05e2\u05e8\u05da " + key + " " + new String(new char[2000]) : Integer.toString(kind);
+					assert tree.insert(key, value) == reference.insert(key, value);
+				}
+				else
+				{
+					assert tree.delete(key) == reference.delete(key);
+				}
+			}
+			verifyArenaTreeMatchesTree(tree, reference);
+			if (deduplicate)
+			{
+				assert arena.values() <= 48 + reference.size() / 50 + 1;
+			}
+			
+			// deleting almost everything compacts the arena, and keeps the rest:
+			int[] keys = reference.keysToArray();
+			for (int ix = 10; ix < keys.length; ix++)
+			{
+				assert tree.delete(keys[ix]) == reference.delete(keys[ix]);
+			}
+			verifyArenaTreeMatchesTree(tree, reference);
+			assert arena.holeBytes() <= Math.max(arena.liveBytes(), 1 << 16);
+			arena.compact();
+			assert arena.holeBytes() == 0;
+			verifyArenaTreeMatchesTree(tree, reference);
+			
+			for (int ix = 0; ix < 10; ix++)
+			{
+				tree.delete(keys[ix]);
+			}
+			assert arena.values() == 0 && arena.liveBytes() == 0;
+		}
+	}
+	
+	private static void verifyArenaTreeMatchesTree(IntRBTree arenaTree, RBTree tree)
+	{
+		assert arenaTree.size() == tree.size();
+		assert Arrays.equals(arenaTree.keysToArray(), tree.keysToArray());
+		assert Arrays.equals(arenaTree.valuesToArray(), tree.valuesToArray());
+		assert arenaTree.min() == null ? tree.min() == null : arenaTree.min().equals(tree.min());
+		assert arenaTree.max() == null ? tree.max() == null : arenaTree.max().equals(tree.max());
+	}
+	
+	private static void testNavigation()
+	{
+		for (boolean threaded : new boolean[] {false, true})
+		{
+			Random random = new Random(9);
+			RBTree tree = new RBTree(threaded);
+			TreeMap<Integer, String> reference = new TreeMap<Integer, String>();
+			
+			assert tree.floorKey(5) == -1 && tree.ceilingKey(5) == -1;
+			assert tree.lowerEntry(5) == null && tree.higherEntry(5) == null;
+			
+			for (int ix = 0; ix < 300; ix++)
+			{
+				int key = 3 * random.nextInt(200);
+				tree.insert(key, Integer.toString(key));
+				reference.put(key, Integer.toString(key));
+			}
+			
+			for (int k = -1; k <= 605; k++)
+			{
+				verifyNavigation(tree.floorKey(k), tree.floorEntry(k), reference.floorEntry(k));
+				verifyNavigation(tree.ceilingKey(k), tree.ceilingEntry(k), reference.ceilingEntry(k));
+				verifyNavigation(tree.lowerKey(k), tree.lowerEntry(k), reference.lowerEntry(k));
+				verifyNavigation(tree.higherKey(k), tree.higherEntry(k), reference.higherEntry(k));
+			}
+		}
+	}
+	
+	private static void verifyNavigation(int key, Map.Entry<Integer, String> entry, Map.Entry<Integer, String> expected)
+	{
+		if (expected == null)
+		{
+			assert key == -1 && entry == null;
+		}
+		else
+		{
+			assert key == expected.getKey() && entry.equals(expected);
+		}
+	}
+	
+	private static void testPoll()
+	{
+		for (boolean threaded : new boolean[] {false, true})
+		{
+			Random random = new Random(8);
+			RBTree tree = new RBTree(threaded);
+			TreeMap<Integer, String> reference = new TreeMap<Integer, String>();
+			
+			assert tree.pollFirst() == null;
+			assert tree.pollLast() == null;
+			assert tree.pollFirst(5, new int[0], 0, null, 0) == 0;
+			
+			// a timer queue: the first deadline is due, and a later one comes in
+			for (int ix = 0; ix < 3000; ix++)
+			{
+				int key = ix / 2 + random.nextInt(1000);
+				if (!reference.containsKey(key))
+				{
+					reference.put(key, Integer.toString(key));
+				}
+				tree.insert(key, Integer.toString(key));
+				
+				if (random.nextInt(3) == 0)
+				{
+					assert tree.pollFirst().equals(reference.pollFirstEntry());
+				}
+				else if (random.nextInt(5) == 0)
+				{
+					assert tree.pollLast().equals(reference.pollLastEntry());
+				}
+			}
+			verifyTreeMatchesArray(tree, listToArray(new ArrayList<Integer>(reference.keySet())));
+			verifyRBTreeInvariants(tree);
+			
+			// drained in batches, the last one cut short:
+			int[] keys = new int[100];
+			String[] values = new String[110];
+			while (!reference.isEmpty())
+			{
+				int count = tree.pollFirst(keys.length, keys, 0, values, 10);
+				assert count == Math.min(keys.length, reference.size());
+				for (int ix = 0; ix < count; ix++)
+				{
+					Map.Entry<Integer, String> expected = reference.pollFirstEntry();
+					assert keys[ix] == expected.getKey();
+					assert values[10 + ix].equals(expected.getValue());
+				}
+				verifyRBTreeInvariants(tree);
+			}
+			verifyEmptyTree(tree);
+			
+			try
+			{
+				tree.insert(1, "1");
+				tree.pollFirst(1, keys, 100, null, 0);
+				assert false;
+			}
+			catch (IndexOutOfBoundsException e)
+			{
+				// expected, the key doesn't fit
+			}
+		}
+	}
+	
+	private static void testFingers()
+	{
+		Random random = new Random(7);
+		RBTree tree = new RBTree();
+		RBTree reference = new RBTree();
+		RBTree.Finger finger = tree.finger();
+		
+		assert tree.search(5, finger) == null;
+		assert tree.delete(5, finger) == -1;
+		
+		// ascending, descending and clustered keys, and random ones:
+		for (int ix = 0; ix < 4000; ix++)
+		{
+			int key;
+			if (ix < 1000)
+			{
+				key = 2 * ix;
+			}
+			else if (ix < 2000)
+			{
+				key = 2 * (2000 - ix) + 1;
+			}
+			else if (ix < 3000)
+			{
+				key = 100 * (ix / 50) % 3000 + ix % 50;
+			}
+			else
+			{
+				key = random.nextInt(3000);
+			}
+			
+			int choice = random.nextInt(4);
+			if (choice == 0)
+			{
+				assert tree.delete(key, finger) == reference.delete(key);
+			}
+			else if (choice == 1)
+			{
+				String value = tree.search(key, finger);
+				assert value == null ? reference.search(key) == null : value.equals(reference.search(key));
+			}
+			else
+			{
+				assert tree.insert(key, Integer.toString(key), finger) == reference.insert(key, Integer.toString(key));
+			}
+			
+			// removals without the finger send it back to the root:
+			if (ix % 97 == 0)
+			{
+				int other = random.nextInt(3000);
+				assert tree.delete(other) == reference.delete(other);
+			}
+		}
+		verifyTreeMatchesArray(tree, reference.keysToArray());
+		verifyRBTreeInvariants(tree);
+		
+		// deleting everything in order, from the min up and from the max down:
+		int[] keys = reference.keysToArray();
+		for (int ix = 0; ix < keys.length / 2; ix++)
+		{
+			assert tree.delete(keys[ix], finger) == reference.delete(keys[ix]);
+		}
+		for (int ix = keys.length - 1; ix >= keys.length / 2; ix--)
+		{
+			assert tree.delete(keys[ix], finger) == reference.delete(keys[ix]);
+		}
+		verifyEmptyTree(tree);
+		
+		try
+		{
+			reference.search(1, finger);
+			assert false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected, the finger is of another tree
+		}
+	}
+	
+	private static void testPagedTree()
+	{
+		try
+		{
+			File file = File.createTempFile("rbtree", ".pages");
+			file.deleteOnExit();
+			Random random = new Random(6);
+			RBTree reference = new RBTree();
+			String longValue = "a value which is much too long to be stored inline, in three overflow records or so - \u05e2\u05e8\u05da";
+			
+			// a pool of two pages, for a tree of many more:
+			PagedRBTree tree = PagedRBTree.open(file, 2);
+			for (int ix = 0; ix < 5000; ix++)
+			{
+				int key = random.nextInt(2000);
+				if (random.nextInt(3) != 0)
+				{
+					String value = (key % 10 == 0) ? null : (key % 10 == 1) ? longValue + key : "\u05e2" + key;
+					assert tree.insert(key, value) == reference.insert(key, value);
+				}
+				else
+				{
+					assert tree.delete(key) == reference.delete(key);
+				}
+			}
+			verifyPagedTreeMatchesTree(tree, reference);
+			assert tree.filePages() > tree.poolPages();
+			assert tree.misses() > 0 && tree.pageWrites() > 0;
+			assert tree.hitRatio() < 1.0 && tree.ioPerOperation() > 0.0;
+			tree.close();
+			
+			// reopened with a bigger pool, then reads only hit after the first pass:
+			tree = PagedRBTree.open(file, (int)file.length() / 4096);
+			verifyPagedTreeMatchesTree(tree, reference);
+			tree.resetStatistics();
+			for (int key : reference.keysToArray())
+			{
+				assert tree.search(key) == null ? reference.search(key) == null : tree.search(key).equals(reference.search(key));
+			}
+			assert tree.misses() == 0 && tree.pageWrites() == 0 && tree.hitRatio() == 1.0;
+			
+			// the freed records are reused:
+			long pages = tree.filePages();
+			int[] keys = reference.keysToArray();
+			for (int key : keys)
+			{
+				assert tree.delete(key) == reference.delete(key);
+			}
+			assert tree.empty();
+			for (int key : keys)
+			{
+				assert tree.insert(key, "\u05e2" + key) == reference.insert(key, "\u05e2" + key);
+			}
+			assert tree.filePages() == pages;
+			verifyPagedTreeMatchesTree(tree, reference);
+			tree.close();
+			
+			try
+			{
+				tree.min();
+				assert false;
+			}
+			catch (IllegalStateException e)
+			{
+				// expected, the tree is closed
+			}
+			
+			RandomAccessFile notATree = new RandomAccessFile(file, "rw");
+			notATree.writeInt(0);
+			notATree.close();
+			try
+			{
+				PagedRBTree.open(file, 2);
+				assert false;
+			}
+			catch (IOException e)
+			{
+				// expected, the header is broken
+			}
+			file.delete();
+		}
+		catch (IOException e)
+		{
+			assert false : e;
+		}
+	}
+	
+	private static void testDurableTree()
+	{
+		try
+		{
+			File logFile = File.createTempFile("rbtree", ".log");
+			File snapshotFile = new File(logFile.getPath() + ".snapshot");
+			logFile.deleteOnExit();
+			snapshotFile.deleteOnExit();
+			Random random = new Random(5);
+			
+			for (DurableRBTree.SyncPolicy policy : DurableRBTree.SyncPolicy.values())
+			{
+				logFile.delete();
+				snapshotFile.delete();
+				RBTree reference = new RBTree();
+				DurableRBTree tree = DurableRBTree.open(logFile, snapshotFile, policy);
+				
+				for (int ix = 0; ix < 3000; ix++)
+				{
+					int key = random.nextInt(400);
+					if (random.nextInt(3) != 0)
+					{
+						// null and multi-byte values too:
+						String value = (key % 10 == 0) ? null : "\u05e2" + key;
+						assert tree.insert(key, value) == reference.insert(key, value);
+					}
+					else
+					{
+						assert tree.delete(key) == reference.delete(key);
+					}
+					
+					if (ix == 1000)
+					{
+						tree.checkpoint();
+					}
+				}
+				verifyDurableTreeMatchesTree(tree, reference);
+				tree.close();
+				
+				// the snapshot and the log after it:
+				tree = DurableRBTree.open(logFile, snapshotFile, policy);
+				verifyDurableTreeMatchesTree(tree, reference);
+				
+				// the last write torn in the middle is dropped:
+				int[] keysBefore = reference.keysToArray();
+				int key = 1000 + random.nextInt(1000);
+				tree.insert(key, "torn");
+				tree.close();
+				RandomAccessFile log = new RandomAccessFile(logFile, "rw");
+				log.setLength(log.length() - 3);
+				log.close();
+				tree = DurableRBTree.open(logFile, snapshotFile, policy);
+				assert Arrays.equals(tree.keysToArray(), keysBefore);
+				
+				// a log replayed on top of a snapshot which already has it:
+				tree.insert(key, "again");
+				reference.insert(key, "again");
+				tree.close();
+				MappedSnapshot.write(reference, snapshotFile);
+				tree = DurableRBTree.open(logFile, snapshotFile, policy);
+				verifyDurableTreeMatchesTree(tree, reference);
+				tree.close();
+				
+				try
+				{
+					tree.insert(1, "1");
+					assert false;
+				}
+				catch (IllegalStateException e)
+				{
+					// expected, the tree is closed
+				}
+			}
+			
+			// concurrent writers, whose syncs are grouped:
+			logFile.delete();
+			final DurableRBTree shared = DurableRBTree.open(logFile, null, DurableRBTree.SyncPolicy.GROUP_COMMIT);
+			Thread[] writers = new Thread[4];
+			for (int t = 0; t < writers.length; t++)
+			{
+				final int first = t;
+				writers[t] = new Thread()
+				{
+					public void run()
+					{
+						for (int key = first; key < 400; key += 4)
+						{
+							shared.insert(key, Integer.toString(key));
+						}
+					}
+				};
+				writers[t].start();
+			}
+			for (Thread writer : writers)
+			{
+				writer.join();
+			}
+			shared.close();
+			DurableRBTree reopened = DurableRBTree.open(logFile, null, DurableRBTree.SyncPolicy.NONE);
+			assert reopened.size() == 400;
+			reopened.close();
+			
+			// replayed in chunks smaller than a record, and than a long value:
+			logFile.delete();
+			RBTree reference = new RBTree();
+			DurableRBTree chunked = DurableRBTree.open(logFile, null, DurableRBTree.SyncPolicy.NONE);
+			for (int key = 0; key < 200; key++)
+			{
+				String value = (key % 7 == 0) ? null : (key % 50 == 0) ? new String(new char[300]).replace('\0', 'x') : "v" + key;
+				assert chunked.insert(key, value) == reference.insert(key, value);
+				if (key % 3 == 0)
+				{
+					assert chunked.delete(key / 2) == reference.delete(key / 2);
+				}
+			}
+			chunked.close();
+			RandomAccessFile log = new RandomAccessFile(logFile, "rw");
+			long logLength = log.length();
+			// and a torn record after them, which isn't replayed:
+			log.seek(logLength);
+			log.write(new byte[] {1, 0, 0, 0, 5, 0, 0, 0});
+			log.close();
+			for (int chunkBytes : new int[] {1, 5, 16, 4096})
+			{
+				RBTree replayed = new RBTree();
+				FileChannel channel = FileChannel.open(logFile.toPath());
+				assert DurableRBTree.replay(channel, replayed, chunkBytes) == logLength;
+				channel.close();
+				assert Arrays.equals(replayed.keysToArray(), reference.keysToArray());
+				assert Arrays.equals(replayed.valuesToArray(), reference.valuesToArray());
+			}
+		}
+		catch (IOException e)
+		{
+			assert false : e;
+		}
+		catch (InterruptedException e)
+		{
+			assert false : e;
+		}
+	}
+	
+	private static void verifyDurableTreeMatchesTree(DurableRBTree tree, RBTree reference)
+	{
+		assert tree.size() == reference.size();
+		assert Arrays.equals(tree.keysToArray(), reference.keysToArray());
+		assert Arrays.equals(tree.valuesToArray(), reference.valuesToArray());
+		assert tree.min() == null ? reference.min() == null : tree.min().equals(reference.min());
+	}
+	
+	private static void testMappedSnapshot()
+	{
+		try
+		{
+			File file = File.createTempFile("rbtree", ".snapshot");
+			file.deleteOnExit();
+			
+			for (int size : new int[] {0, 1, 2, 100, 5000})
+			{
+				int[] keys = listToArray(createItemList(size));
+				RBTree tree = new RBTree();
+				for (int key : keys)
+				{
+					// null, empty, multi-byte and long values too:
+					String value = (key % 7 == 0) ? null : (key % 11 == 0) ? "" :
+							(key % 13 == 0) ? "\u05e2\u05e5 " + key : (key % 17 == 0) ? new String(new char[100]).replace('\0', 'x') + key : Integer.toString(key);
+					tree.insert(2 * key, value);
+				}
+				
+				MappedSnapshot.write(tree, file);
+				MappedSnapshot snapshot = MappedSnapshot.open(file);
+				
+				assert snapshot.size() == tree.size();
+				assert snapshot.empty() == tree.empty();
+				assert Arrays.equals(snapshot.keysToArray(), tree.keysToArray());
+				assert Arrays.equals(snapshot.valuesToArray(), tree.valuesToArray());
+				assert snapshot.min() == null ? tree.min() == null : snapshot.min().equals(tree.min());
+				assert snapshot.max() == null ? tree.max() == null : snapshot.max().equals(tree.max());
+				assert snapshot.minKey() == (size == 0 ? -1 : 2);
+				assert snapshot.maxKey() == (size == 0 ? -1 : 2 * size);
+				
+				for (int key = 0; key <= 2 * size + 2; key++)
+				{
+					String expected = tree.search(key);
+					assert expected == null ? snapshot.search(key) == null : expected.equals(snapshot.search(key));
+					assert snapshot.rank(key) == tree.rank(key);
+					assert snapshot.countInRange(key, key + 9) == tree.countInRange(key, key + 9);
+					assert snapshot.select(key) == tree.select(key);
+					
+					EntryListVisitor fromSnapshot = new EntryListVisitor();
+					EntryListVisitor fromTree = new EntryListVisitor();
+					assert snapshot.scan(key, key % 2 == 0, key + 20, key % 3 == 0, 6, fromSnapshot) ==
+							tree.scan(key, key % 2 == 0, key + 20, key % 3 == 0, 6, fromTree);
+					assert fromSnapshot.entries.equals(fromTree.entries);
+				}
+				
+				RBTree thawed = snapshot.thaw();
+				verifyRBTreeInvariants(thawed);
+				assert Arrays.equals(thawed.keysToArray(), tree.keysToArray());
+				assert Arrays.equals(thawed.valuesToArray(), tree.valuesToArray());
+				
+				snapshot.close();
+				try
+				{
+					snapshot.search(2);
+					assert false;
+				}
+				catch (IllegalStateException e)
+				{
+					// expected, the snapshot is closed
+				}
+			}
+			
+			// a file cut short isn't a snapshot:
+			RBTree tree = new RBTree();
+			insertArrayIntoTree(tree, new int[] {1, 2, 3});
+			MappedSnapshot.write(tree, file);
+			RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+			truncated.setLength(truncated.length() - 1);
+			truncated.close();
+			try
+			{
+				MappedSnapshot.open(file).close();
+				assert false;
+			}
+			catch (IOException e)
+			{
+				// expected
+			}
+			
+			// a write which fails leaves no temporary file behind - here the
+			// move fails, as the target is a directory which isn't empty:
+			File directory = Files.createTempDirectory("rbtree").toFile();
+			File blocker = new File(directory, "blocker");
+			assert blocker.createNewFile();
+			try
+			{
+				MappedSnapshot.write(tree, directory);
+				assert false;
+			}
+			catch (IOException e)
+			{
+				// expected
+			}
+			assert !new File(directory.getPath() + ".tmp").exists();
+			assert blocker.delete() && directory.delete();
+		}
+		catch (IOException e)
+		{
+			assert false : e;
+		}
+	}
+	
+	private static void testShardedTree()
+	{
+		Random random = new Random(4);
+		ShardedRBTree tree = new ShardedRBTree(4, 999);
+		RBTree reference = new RBTree();
+		assert Arrays.equals(tree.lowerBounds(), new int[] {0, 250, 500, 750});
+		
+		for (int ix = 0; ix < 5000; ix++)
+		{
+			// mostly low keys, so the first shard gets hot:
+			int key = (random.nextInt(4) == 0) ? random.nextInt(1200) : random.nextInt(100);
+			if (random.nextInt(3) != 0)
+			{
+				assert (tree.insert(key, Integer.toString(key)) == -1) == (reference.insert(key, Integer.toString(key)) == -1);
+			}
+			else
+			{
+				assert (tree.delete(key) == -1) == (reference.delete(key) == -1);
+			}
+			assert tree.search(key) == null ? reference.search(key) == null : tree.search(key).equals(reference.search(key));
+			
+			if (ix % 500 == 0)
+			{
+				tree.rebalance();
+				int[] sizes = tree.shardSizes();
+				for (int size : sizes)
+				{
+					assert reference.size() < sizes.length || Math.abs(size - reference.size() / sizes.length) <= 1;
+				}
+			}
+			else if (ix % 100 == 0)
+			{
+				int[] bounds = tree.lowerBounds();
+				int index = 1 + random.nextInt(bounds.length - 1);
+				int upper = (index + 1 < bounds.length) ? bounds[index + 1] : 1300;
+				tree.moveBoundary(index, bounds[index - 1] + 1 + random.nextInt(upper - bounds[index - 1] - 1));
+			}
+			
+			if (ix % 50 == 0)
+			{
+				verifyShardedTreeMatchesTree(tree, reference);
+			}
+		}
+		verifyShardedTreeMatchesTree(tree, reference);
+		
+		int[] bounds = tree.lowerBounds();
+		try
+		{
+			tree.moveBoundary(1, bounds[2]);
+			assert false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected, shard 1 would be left without keys
+		}
+		
+		// concurrent writers of disjoint keys, while the bounds move:
+		final ShardedRBTree shared = new ShardedRBTree(8, 80000);
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++)
+		{
+			final int first = t;
+			writers[t] = new Thread()
+			{
+				public void run()
+				{
+					for (int key = first; key < 80000; key += 4)
+					{
+						shared.insert(key, Integer.toString(key));
+					}
+					for (int key = first; key < 80000; key += 8)
+					{
+						shared.delete(key);
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (int ix = 0; ix < 20; ix++)
+		{
+			shared.rebalance();
+		}
+		for (Thread writer : writers)
+		{
+			try
+			{
+				writer.join();
+			}
+			catch (InterruptedException e)
+			{
+				assert false;
+			}
+		}
+		assert shared.size() == 40000;
+		int[] keys = shared.keysToArray();
+		for (int ix = 0; ix < keys.length; ix++)
+		{
+			assert keys[ix] == (ix / 4) * 8 + 4 + (ix % 4);
+		}
+		
+		// concurrent moves of disjoint boundaries - 1, 3, 5 and 7 lock shards
+		// 0-1, 2-3, 4-5 and 6-7 - mustn't lose each other's bounds:
+		final ShardedRBTree moving = new ShardedRBTree(8, 7999);
+		RBTree movingReference = new RBTree();
+		for (int key = 0; key < 8000; key++)
+		{
+			moving.insert(key, Integer.toString(key));
+			movingReference.insert(key, Integer.toString(key));
+		}
+		final int[] initialBounds = moving.lowerBounds();
+		Thread[] movers = new Thread[4];
+		for (int t = 0; t < movers.length; t++)
+		{
+			final int index = 2 * t + 1;
+			movers[t] = new Thread()
+			{
+				public void run()
+				{
+					for (int ix = 0; ix < 2000; ix++)
+					{
+						moving.moveBoundary(index, initialBounds[index] + ((ix % 2 == 0) ? -(ix % 97) - 1 : (ix % 89) + 1));
+					}
+					moving.moveBoundary(index, initialBounds[index] + index);
+				}
+			};
+			movers[t].start();
+		}
+		for (Thread mover : movers)
+		{
+			try
+			{
+				mover.join();
+			}
+			catch (InterruptedException e)
+			{
+				assert false;
+			}
+		}
+		int[] movedBounds = moving.lowerBounds();
+		for (int index = 0; index < movedBounds.length; index++)
+		{
+			assert movedBounds[index] == initialBounds[index] + ((index % 2 == 1) ? index : 0) : Arrays.toString(movedBounds);
+		}
+		for (int key = 0; key < 8000; key++)
+		{
+			assert Integer.toString(key).equals(moving.search(key)) : key;
+		}
+		verifyShardedTreeMatchesTree(moving, movingReference);
+	}
+	
+	private static void verifyShardedTreeMatchesTree(ShardedRBTree tree, RBTree reference)
+	{
+		assert tree.size() == reference.size();
+		assert tree.empty() == reference.empty();
+		assert Arrays.equals(tree.keysToArray(), reference.keysToArray());
+		assert Arrays.equals(tree.valuesToArray(), reference.valuesToArray());
+		assert tree.min() == null ? reference.min() == null : tree.min().equals(reference.min());
+		assert tree.max() == null ? reference.max() == null : tree.max().equals(reference.max());
+		
+		// every shard holds exactly the keys of its range:
+		int[] bounds = tree.lowerBounds();
+		int[] sizes = tree.shardSizes();
+		for (int ix = 0; ix < bounds.length; ix++)
+		{
+			int upper = (ix + 1 < bounds.length) ? bounds[ix + 1] : Integer.MAX_VALUE;
+			assert sizes[ix] == reference.countInRange(bounds[ix], upper - 1);
+		}
 	}
 	
-	private static void runFullTestSuite(int[] insertions, int[] deletions)
+	private static void testStreams()
 	{
-		List<Integer> keysInTree = new ArrayList<Integer>();
+		for (boolean threaded : new boolean[] {false, true})
+		{
+			for (int size : new int[] {0, 1, 2, 3, 10, 100, 5000})
+			{
+				int[] keys = listToArray(createItemList(size));
+				RBTree tree = new RBTree(threaded);
+				insertArrayIntoTree(tree, keys);
+				int[] sortedKeys = tree.keysToArray();
+				
+				assert Arrays.equals(tree.keyStream().toArray(), sortedKeys);
+				assert Arrays.equals(tree.keyStream().parallel().toArray(), sortedKeys);
+				assert tree.keyStream().parallel().asLongStream().sum() == (long)size * (size + 1) / 2;
+				
+				Object[] entries = tree.entryStream().parallel().toArray();
+				assert entries.length == size;
+				for (int ix = 0; ix < size; ix++)
+				{
+					@SuppressWarnings("unchecked")
+					Map.Entry<Integer, String> entry = (Map.Entry<Integer, String>)entries[ix];
+					assert entry.getKey() == sortedKeys[ix];
+					assert entry.getValue().equals(Integer.toString(sortedKeys[ix]));
+				}
+				
+				// splitting all the way down keeps the order and the exact sizes:
+				List<Integer> collected = new ArrayList<Integer>();
+				collectBySplitting(tree.keySpliterator(), collected);
+				assert collected.size() == size;
+				for (int ix = 0; ix < size; ix++)
+				{
+					assert collected.get(ix) == sortedKeys[ix];
+				}
+			}
+		}
+	}
+	
+	// splits the spliterator recursively, then traverses its parts in order
+	private static void collectBySplitting(Spliterator.OfInt spliterator, final List<Integer> collected)
+	{
+		long size = spliterator.getExactSizeIfKnown();
+		int before = collected.size();
+		
+		Spliterator.OfInt prefix = spliterator.trySplit();
+		if (prefix != null)
+		{
+			assert prefix.getExactSizeIfKnown() + spliterator.getExactSizeIfKnown() == size;
+			collectBySplitting(prefix, collected);
+			collectBySplitting(spliterator, collected);
+		}
+		else
+		{
+			spliterator.forEachRemaining(new IntConsumer()
+			{
+				public void accept(int key)
+				{
+					collected.add(key);
+				}
+			});
+		}
+		
+		assert collected.size() - before == size;
+	}
+	
+	private static void testSetOperations()
+	{
+		Random random = new Random(3);
+		// the last sizes are big enough for the operations to fork:
+		int[][] sizes = {{0, 0}, {0, 5}, {5, 0}, {1, 1}, {10, 10}, {3, 100}, {100, 3}, {500, 700}, {20000, 6000}};
+		
+		for (boolean threaded : new boolean[] {false, true})
+		{
+			for (int[] size : sizes)
+			{
+				TreeSet<Integer> firstKeys = new TreeSet<Integer>();
+				TreeSet<Integer> secondKeys = new TreeSet<Integer>();
+				while (firstKeys.size() < size[0])
+				{
+					firstKeys.add(random.nextInt(3 * (size[0] + size[1]) + 1));
+				}
+				while (secondKeys.size() < size[1])
+				{
+					secondKeys.add(random.nextInt(3 * (size[0] + size[1]) + 1));
+				}
+				
+				TreeSet<Integer> expected = new TreeSet<Integer>(firstKeys);
+				expected.addAll(secondKeys);
+				verifySetOperation(RBTree.union(setTree(firstKeys, "first", threaded), setTree(secondKeys, "second", threaded)),
+						expected, firstKeys);
+				
+				expected = new TreeSet<Integer>(firstKeys);
+				expected.retainAll(secondKeys);
+				verifySetOperation(RBTree.intersection(setTree(firstKeys, "first", threaded), setTree(secondKeys, "second", threaded)),
+						expected, firstKeys);
+				
+				expected = new TreeSet<Integer>(firstKeys);
+				expected.removeAll(secondKeys);
+				verifySetOperation(RBTree.difference(setTree(firstKeys, "first", threaded), setTree(secondKeys, "second", threaded)),
+						expected, firstKeys);
+			}
+		}
+		
+		RBTree tree = setTree(new TreeSet<Integer>(Arrays.asList(1, 2, 3)), "first", false);
+		try
+		{
+			RBTree.union(tree, tree);
+			assert false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected, a tree can't be united with itself
+		}
+	}
+	
+	// returns a tree of the given keys, all of them with the given value
+	private static RBTree setTree(Set<Integer> keys, String value, boolean threaded)
+	{
+		RBTree tree = new RBTree(threaded);
+		List<Integer> shuffled = new ArrayList<Integer>(keys);
+		Collections.shuffle(shuffled);
+		for (int key : shuffled)
+		{
+			tree.insert(key, value);
+		}
+		return tree;
+	}
+	
+	// verifies the result of a set operation, whose items of firstKeys must have come from the first tree
+	private static void verifySetOperation(RBTree tree, TreeSet<Integer> expected, Set<Integer> firstKeys)
+	{
+		verifyRBTreeInvariants(tree);
+		assert tree.size() == expected.size();
+		
+		int[] keys = tree.keysToArray();
+		String[] values = tree.valuesToArray();
+		int ix = 0;
+		for (int key : expected)
+		{
+			assert keys[ix] == key;
+			assert values[ix].equals(firstKeys.contains(key) ? "first" : "second");
+			ix++;
+		}
+		
+		assert expected.isEmpty() ? tree.min() == null : tree.min().equals(tree.search(expected.first()));
+		assert expected.isEmpty() ? tree.max() == null : tree.max().equals(tree.search(expected.last()));
+		
+		// the parent links must be right too:
+		for (int key : expected)
+		{
+			assert tree.delete(key) != -1;
+		}
+		verifyEmptyTree(tree);
+	}
+	
+	private static void testSplitJoin()
+	{
+		for (boolean threaded : new boolean[] {false, true})
+		{
+			for (int size = 0; size <= 40; size++)
+			{
+				int[] keys = listToArray(createItemList(size));
+				
+				for (int k = 0; k <= size + 1; k++)
+				{
+					RBTree tree = new RBTree(threaded);
+					insertArrayIntoTree(tree, keys);
+					
+					RBTree.Split split = tree.split(k);
+					verifyEmptyTree(tree);
+					assert split.isFound() == (k >= 1 && k <= size);
+					assert split.isFound() ? split.getValue().equals(Integer.toString(k)) : split.getValue() == null;
+					
+					RBTree less = split.getLess();
+					RBTree greater = split.getGreater();
+					assert less.isThreaded() == threaded && greater.isThreaded() == threaded;
+					verifyTreeMatchesArray(less, range(1, Math.min(k - 1, size)));
+					verifyTreeMatchesArray(greater, range(Math.max(k + 1, 1), size));
+					verifyRBTreeInvariants(less);
+					verifyRBTreeInvariants(greater);
+					
+					// and back again, k included:
+					RBTree joined = RBTree.join(less, k, Integer.toString(k), greater);
+					verifyEmptyTree(less);
+					verifyEmptyTree(greater);
+					verifyTreeMatchesArray(joined, range(Math.min(k, 1), Math.max(k, size)));
+					verifyRBTreeInvariants(joined);
+					
+					// the parent links must be right too:
+					joined.insert(size + 2, Integer.toString(size + 2));
+					for (int i : keys)
+					{
+						joined.delete(i);
+						verifyRBTreeInvariants(joined);
+					}
+				}
+			}
+			
+			// trees of very different heights:
+			for (int leftSize = 0; leftSize <= 300; leftSize += 37)
+			{
+				for (int rightSize = 0; rightSize <= 3000; rightSize += 599)
+				{
+					RBTree left = new RBTree(threaded);
+					insertArrayIntoTree(left, range(1, leftSize));
+					RBTree right = new RBTree(threaded);
+					insertArrayIntoTree(right, range(leftSize + 2, leftSize + 1 + rightSize));
+					
+					// with an empty tree on either side:
+					RBTree joined = RBTree.join(new RBTree(threaded), 0, "0", left);
+					verifyTreeMatchesArray(joined, range(0, leftSize));
+					verifyRBTreeInvariants(joined);
+					joined = RBTree.join(right, leftSize + 2 + rightSize, Integer.toString(leftSize + 2 + rightSize), new RBTree(threaded));
+					verifyTreeMatchesArray(joined, range(leftSize + 2, leftSize + 2 + rightSize));
+					verifyRBTreeInvariants(joined);
+					
+					left = new RBTree(threaded);
+					insertArrayIntoTree(left, range(1, leftSize));
+					right = new RBTree(threaded);
+					insertArrayIntoTree(right, range(leftSize + 2, leftSize + 1 + rightSize));
+					joined = RBTree.join(left, leftSize + 1, Integer.toString(leftSize + 1), right);
+					verifyTreeMatchesArray(joined, range(1, leftSize + 1 + rightSize));
+					verifyRBTreeInvariants(joined);
+				}
+			}
+		}
+		
+		RBTree left = new RBTree();
+		insertArrayIntoTree(left, new int[] {1, 5});
+		RBTree right = new RBTree();
+		insertArrayIntoTree(right, new int[] {7, 9});
+		try
+		{
+			RBTree.join(left, 7, "7", right);
+			assert false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected, 7 isn't smaller than the right keys
+		}
+		try
+		{
+			RBTree.join(left, 6, "6", new RBTree(true));
+			assert false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected, only one of the trees is threaded
+		}
+	}
+	
+	// returns the keys first..last, in order
+	private static int[] range(int first, int last)
+	{
+		int[] result = new int[Math.max(last - first + 1, 0)];
+		
+		for (int ix = 0; ix < result.length; ix++)
+		{
+			result[ix] = first + ix;
+		}
+		
+		return result;
+	}
+	
+	private static void testPersistentTree()
+	{
+		Random random = new Random(2);
+		PersistentRBTree tree = new PersistentRBTree();
+		RBTree reference = new RBTree();
+		
+		PersistentRBTree.Snapshot empty = tree.snapshot();
+		PersistentRBTree.Snapshot frozen = null;
+		int[] frozenKeys = null;
+		
+		for (int ix = 0; ix < 3000; ix++)
+		{
+			int key = random.nextInt(500);
+			if (random.nextInt(3) != 0)
+			{
+				assert tree.insert(key, Integer.toString(key)) == (reference.insert(key, Integer.toString(key)) == -1 ? -1 : 0);
+			}
+			else
+			{
+				assert tree.delete(key) == (reference.delete(key) == -1 ? -1 : 0);
+			}
+			
+			PersistentRBTree.Snapshot snapshot = tree.snapshot();
+			assert snapshot.isValid();
+			assert Arrays.equals(snapshot.keysToArray(), reference.keysToArray());
+			assert Arrays.equals(snapshot.valuesToArray(), reference.valuesToArray());
+			assert snapshot.size() == reference.size();
+			assert snapshot.search(key) == null ? reference.search(key) == null : snapshot.search(key).equals(reference.search(key));
+			assert tree.min() == null ? reference.min() == null : tree.min().equals(reference.min());
+			assert tree.max() == null ? reference.max() == null : tree.max().equals(reference.max());
+			
+			if (ix == 1000)
+			{
+				frozen = snapshot;
+				frozenKeys = snapshot.keysToArray();
+			}
+		}
+		
+		// older versions never change:
+		assert empty.empty() && empty.size() == 0 && empty.keysToArray().length == 0;
+		assert Arrays.equals(frozen.keysToArray(), frozenKeys);
+		assert frozen.isValid();
+	}
+	
+	private static void testConcurrentTree()
+	{
+		// even keys are always in the tree, odd keys come and go:
+		final ConcurrentRBTree tree = new ConcurrentRBTree();
+		for (int key = 0; key < 2000; key += 2)
+		{
+			tree.insert(key, Integer.toString(key));
+		}
+		
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++)
+		{
+			final boolean writer = (t == 0);
+			final Random random = new Random(t);
+			threads.add(new Thread()
+			{
+				public void run()
+				{
+					for (int ix = 0; ix < 100000 && !failed.get(); ix++)
+					{
+						int key = random.nextInt(2000);
+						if (writer && key % 2 == 1)
+						{
+							if (random.nextBoolean())
+							{
+								tree.insert(key, Integer.toString(key));
+							}
+							else
+							{
+								tree.delete(key);
+							}
+						}
+						else
+						{
+							String value = tree.search(key);
+							if ((key % 2 == 0 && value == null) || (value != null && !value.equals(Integer.toString(key))))
+							{
+								failed.set(true);
+							}
+							if (tree.min() == null || !tree.min().equals("0") || tree.size() < 1000)
+							{
+								failed.set(true);
+							}
+						}
+					}
+				}
+			});
+		}
+		
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				assert false;
+			}
+		}
+		
+		assert !failed.get();
+		assert tree.size() == tree.keysToArray().length;
+	}
+	
+	private static void testExport()
+	{
+		int[] keys = listToArray(createItemList(100));
+		RBTree tree = new RBTree();
+		insertArrayIntoTree(tree, keys);
+		Arrays.sort(keys);
+		String[] values = stringifyArray(keys);
+		
+		// export in chunks of every length, into arrays with an offset:
+		for (int chunk = 1; chunk <= 101; chunk += 10)
+		{
+			int[] exportedKeys = new int[keys.length + 3];
+			String[] exportedValues = new String[keys.length + 5];
+			for (int from = 0; from < keys.length; from += chunk)
+			{
+				int count = tree.export(from, chunk, exportedKeys, 3 + from, exportedValues, 5 + from);
+				assert count == Math.min(chunk, keys.length - from);
+			}
+			assert Arrays.equals(Arrays.copyOfRange(exportedKeys, 3, exportedKeys.length), keys);
+			assert Arrays.equals(Arrays.copyOfRange(exportedValues, 5, exportedValues.length), values);
+		}
+		
+		// keys only, past the end:
+		int[] lastKeys = new int[10];
+		assert tree.export(95, 10, lastKeys, 0, null, 0) == 5;
+		assert lastKeys[4] == keys[99];
+		assert tree.export(100, 10, lastKeys, 0, null, 0) == 0;
+		
+		try
+		{
+			tree.export(0, 10, new int[5], 0, null, 0);
+			assert false;
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			// expected, the window doesn't fit
+		}
+		
+		// into a buffer:
+		java.nio.IntBuffer buffer = java.nio.IntBuffer.allocate(30);
+		assert tree.exportKeys(80, buffer) == 20;
+		assert buffer.position() == 20;
+		assert buffer.get(0) == keys[80];
+		assert buffer.get(19) == keys[99];
+	}
+	
+	private static void testScan()
+	{
+		List<Integer> itemList = createItemList(100);
 		RBTree tree = new RBTree();
+		for (int i : itemList)
+		{
+			if (i % 3 != 0)
+			{
+				tree.insert(i, Integer.toString(i));
+			}
+		}
+		int[] keys = tree.keysToArray();
+		
+		for (int lo = 0; lo <= 101; lo += 7)
+		{
+			for (int hi = lo - 2; hi <= 101; hi += 5)
+			{
+				for (int limit : new int[] {0, 1, 5, Integer.MAX_VALUE})
+				{
+					for (int bounds = 0; bounds < 4; bounds++)
+					{
+						boolean loInclusive = (bounds & 1) != 0;
+						boolean hiInclusive = (bounds & 2) != 0;
+						
+						List<Integer> expected = new ArrayList<Integer>();
+						for (int key : keys)
+						{
+							if ((key > lo || (loInclusive && key == lo)) && (key < hi || (hiInclusive && key == hi)))
+							{
+								expected.add(key);
+							}
+						}
+						
+						CollectingVisitor ascending = new CollectingVisitor();
+						int visited = tree.scan(lo, loInclusive, hi, hiInclusive, limit, ascending);
+						assert visited == Math.min(limit, expected.size());
+						assert ascending.keys.equals(expected.subList(0, visited));
+						
+						Collections.reverse(expected);
+						CollectingVisitor descending = new CollectingVisitor();
+						visited = tree.scanDescending(hi, hiInclusive, lo, loInclusive, limit, descending);
+						assert visited == Math.min(limit, expected.size());
+						assert descending.keys.equals(expected.subList(0, visited));
+					}
+				}
+			}
+		}
+		
+		// a visitor may stop the scan:
+		RBTree.EntryVisitor stopAtFirst = new RBTree.EntryVisitor() {
+			public boolean visit(int key, String value)
+			{
+				return false;
+			}
+		};
+		assert tree.scan(0, true, 100, true, 10, stopAtFirst) == 1;
+	}
+	
+	// collects the keys of a scan, checking the values match them
+	private static class CollectingVisitor implements RBTree.EntryVisitor
+	{
+		private final List<Integer> keys = new ArrayList<Integer>();
+		
+		public boolean visit(int key, String value)
+		{
+			assert value.equals(Integer.toString(key));
+			keys.add(key);
+			return true;
+		}
+	}
+	
+	// records the items of a scan, whatever their values are
+	private static class EntryListVisitor implements RBTree.EntryVisitor
+	{
+		private final List<String> entries = new ArrayList<String>();
+		
+		public boolean visit(int key, String value)
+		{
+			entries.add(key + "=" + value);
+			return true;
+		}
+	}
+	
+	private static void testApplyBatch()
+	{
+		Random random = new Random(1);
+		RBTree batchTree = new RBTree();
+		RBTree singleTree = new RBTree();
+		
+		for (int round = 0; round < 50; round++)
+		{
+			int batchSize = random.nextInt(200);
+			RBTree.Batch batch = new RBTree.Batch();
+			int[] keys = new int[batchSize];
+			boolean[] isInsert = new boolean[batchSize];
+			for (int ix = 0; ix < batchSize; ix++)
+			{
+				keys[ix] = random.nextInt(300);
+				isInsert[ix] = random.nextInt(3) != 0;
+				if (isInsert[ix])
+				{
+					assert batch.insert(keys[ix], Integer.toString(keys[ix])) == ix;
+				}
+				else
+				{
+					assert batch.delete(keys[ix]) == ix;
+				}
+			}
+			
+			int[] results = batchTree.applyBatch(batch);
+			verifyRBTreeInvariants(batchTree);
+			
+			// the same operations one by one, by key and then by order of addition:
+			for (int key = 0; key < 300; key++)
+			{
+				for (int ix = 0; ix < batchSize; ix++)
+				{
+					if (keys[ix] == key)
+					{
+						int expected = isInsert[ix] ? singleTree.insert(key, Integer.toString(key)) : singleTree.delete(key);
+						assert results[ix] == expected;
+					}
+				}
+			}
+			
+			verifyTreeMatchesArray(batchTree, singleTree.keysToArray());
+		}
+	}
+	
+	private static void testBulkBuild()
+	{
+		for (int size = 0; size <= 70; size++)
+		{
+			List<Integer> itemList = createItemList(size);
+			int[] keys = listToArray(itemList);
+			
+			// unsorted, with every key twice - the first value must win:
+			int[] keysTwice = new int[2 * size];
+			String[] valuesTwice = new String[2 * size];
+			for (int ix = 0; ix < size; ix++)
+			{
+				keysTwice[ix] = keys[ix];
+				valuesTwice[ix] = Integer.toString(keys[ix]);
+				keysTwice[size + ix] = keys[ix];
+				valuesTwice[size + ix] = "duplicate";
+			}
+			RBTree tree = RBTree.fromArrays(keysTwice, valuesTwice);
+			verifyTreeMatchesArray(tree, keys);
+			verifyRBTreeInvariants(tree);
+			
+			// sorted, and then modified as usual:
+			Arrays.sort(keys);
+			tree = RBTree.fromSortedArrays(keys, stringifyArray(keys));
+			verifyTreeMatchesArray(tree, keys);
+			verifyRBTreeInvariants(tree);
+			
+			tree.insert(size + 1, Integer.toString(size + 1));
+			verifyRBTreeInvariants(tree);
+			for (int i : itemList)
+			{
+				tree.delete(i);
+				verifyRBTreeInvariants(tree);
+			}
+			tree.delete(size + 1);
+			verifyEmptyTree(tree);
+		}
+		
+		try
+		{
+			RBTree.fromSortedArrays(new int[] {1, 3, 2}, new String[] {"1", "3", "2"});
+			assert false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected, the keys aren't sorted
+		}
+	}
+	
+	private static void runFullTestSuite(int[] insertions, int[] deletions, boolean threaded)
+	{
+		List<Integer> keysInTree = new ArrayList<Integer>();
+		RBTree tree = new RBTree(threaded);
+		IntRBTree intTree = new IntRBTree(4);
+		OffHeapRBTree offHeapTree = new OffHeapRBTree();
 		
 		verifyEmptyTree(tree);
 		
@@ -41,8 +1784,14 @@ public class Tester {
 			// -1 because a newly inserted node is red, but doesn't count as a color change:
 			assert colorChanges >= (Math.abs(newRedCount - previousRedCount) - 1);
 			
+			// the array based tree must do exactly the same:
+			assert intTree.insert(keyToInsert, valueToInsert) == colorChanges;
+			assert offHeapTree.insert(keyToInsert, valueToInsert) == colorChanges;
+			
 			verifyTreeMatchesArray(tree, listToArray(keysInTree));
 			verifyRBTreeInvariants(tree);
+			verifyIntTreeMatchesTree(intTree, tree);
+			verifyOffHeapTreeMatchesTree(offHeapTree, tree);
 		}
 		
 		for (int ix = 0; ix < deletions.length; ix++)
@@ -57,11 +1806,69 @@ public class Tester {
 			// -1 because a deleted node may be red, and that doesn't count towards a color change.
 			assert colorChanges >= (Math.abs(newRedCount - previousRedCount) - 1);
 			
+			assert intTree.delete(keyToDelete) == colorChanges;
+			assert offHeapTree.delete(keyToDelete) == colorChanges;
+			
 			verifyTreeMatchesArray(tree, listToArray(keysInTree));
 			verifyRBTreeInvariants(tree);
+			verifyIntTreeMatchesTree(intTree, tree);
+			verifyOffHeapTreeMatchesTree(offHeapTree, tree);
 		}
 		
 		verifyEmptyTree(tree);
+		offHeapTree.close();
+	}
+	
+	private static void testOffHeapTreeValues()
+	{
+		OffHeapRBTree tree = new OffHeapRBTree();
+		String longValue = "a value which is much too long to be stored inline";
+		
+		tree.insert(1, "short");
+		tree.insert(2, longValue);
+		tree.insert(3, null);
+		tree.insert(4, "\u05e2\u05e8\u05da");
+		assert tree.search(1).equals("short");
+		assert tree.search(2).equals(longValue);
+		assert tree.search(3) == null;
+		assert tree.search(4).equals("\u05e2\u05e8\u05da");
+		
+		// deleting a node with two children moves its successor's value:
+		tree.delete(1);
+		tree.delete(2);
+		assert tree.search(2) == null;
+		assert tree.max().equals("\u05e2\u05e8\u05da");
+		assert tree.size() == 2;
+		
+		// closing frees the chunks now, not when they're collected:
+		long nativeBytes = tree.nativeBytes();
+		assert nativeBytes > 0;
+		long directBytes = directMemoryUsed();
+		tree.close();
+		assert tree.nativeBytes() == 0;
+		assert directMemoryUsed() <= directBytes - nativeBytes;
+		try
+		{
+			tree.search(4);
+			assert false;
+		}
+		catch (IllegalStateException e)
+		{
+			// expected, the tree is closed
+		}
+	}
+	
+	private static long directMemoryUsed()
+	{
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+		{
+			if (pool.getName().equals("direct"))
+			{
+				return pool.getMemoryUsed();
+			}
+		}
+		assert false : "no direct buffer pool";
+		return 0;
 	}
 	
 	private static int countReds(RBTree.RBNode node)
@@ -125,6 +1932,64 @@ public class Tester {
 		{
 			assert tree.search(i).equals(Integer.toString(i));
 		}
+		
+		// iteration:
+		RBTree.EntryIterator iterator = tree.iterator();
+		for (int ix = 0; ix < sortedArray.length; ix++)
+		{
+			assert iterator.hasNext();
+			assert iterator.next() == sortedArray[ix];
+			assert iterator.value().equals(valuesSortedArray[ix]);
+		}
+		assert !iterator.hasNext();
+		iterator = tree.descendingIterator();
+		for (int ix = sortedArray.length - 1; ix >= 0; ix--)
+		{
+			assert iterator.next() == sortedArray[ix];
+		}
+		assert !iterator.hasNext();
+		
+		// order statistics:
+		assert tree.select(-1) == -1;
+		assert tree.select(sortedArray.length) == -1;
+		for (int ix = 0; ix < sortedArray.length; ix++)
+		{
+			assert tree.select(ix) == sortedArray[ix];
+			assert tree.rank(sortedArray[ix]) == ix;
+			assert tree.rank(sortedArray[ix] + 1) == ix + 1;
+			assert tree.countInRange(sortedArray[0], sortedArray[ix]) == ix + 1;
+			assert tree.countInRange(sortedArray[ix] + 1, sortedArray[ix]) == 0;
+		}
+	}
+	
+	private static void verifyIntTreeMatchesTree(IntRBTree intTree, RBTree tree)
+	{
+		assert intTree.size() == tree.size();
+		assert intTree.empty() == tree.empty();
+		assert Arrays.equals(intTree.keysToArray(), tree.keysToArray());
+		assert Arrays.equals(intTree.valuesToArray(), tree.valuesToArray());
+		assert intTree.min() == tree.min();
+		assert intTree.max() == tree.max();
+	}
+	
+	private static void verifyOffHeapTreeMatchesTree(OffHeapRBTree offHeapTree, RBTree tree)
+	{
+		assert offHeapTree.size() == tree.size();
+		assert offHeapTree.empty() == tree.empty();
+		assert Arrays.equals(offHeapTree.keysToArray(), tree.keysToArray());
+		assert Arrays.equals(offHeapTree.valuesToArray(), tree.valuesToArray());
+		assert offHeapTree.min() == null ? tree.min() == null : offHeapTree.min().equals(tree.min());
+		assert offHeapTree.max() == null ? tree.max() == null : offHeapTree.max().equals(tree.max());
+	}
+	
+	private static void verifyPagedTreeMatchesTree(PagedRBTree pagedTree, RBTree tree)
+	{
+		assert pagedTree.size() == tree.size();
+		assert pagedTree.empty() == tree.empty();
+		assert Arrays.equals(pagedTree.keysToArray(), tree.keysToArray());
+		assert Arrays.equals(pagedTree.valuesToArray(), tree.valuesToArray());
+		assert pagedTree.min() == null ? tree.min() == null : pagedTree.min().equals(tree.min());
+		assert pagedTree.max() == null ? tree.max() == null : pagedTree.max().equals(tree.max());
 	}
 	
 	private static void verifyRBTreeInvariants(RBTree tree)
@@ -133,6 +1998,45 @@ public class Tester {
 		assert treeRoot == null || (!treeRoot.isRed() && treeRoot.isBlack());
 		
 		verifyRBTreeInvariants(treeRoot, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		assert verifySubtreeSizes(treeRoot) == tree.size();
+		
+		if (tree.isThreaded())
+		{
+			verifyThreadedLinks(tree);
+		}
+	}
+	
+	private static void verifyThreadedLinks(RBTree tree)
+	{
+		int[] keys = tree.keysToArray();
+		
+		RBTree.RBNode node = tree.getRoot();
+		while (node != null && node.getLeft() != null)
+		{
+			node = node.getLeft();
+		}
+		
+		RBTree.RBNode prev = null;
+		for (int ix = 0; ix < keys.length; ix++)
+		{
+			assert node.getKey() == keys[ix];
+			assert node.getPrev() == prev;
+			prev = node;
+			node = node.getNext();
+		}
+		assert node == null;
+	}
+	
+	private static int verifySubtreeSizes(RBTree.RBNode node)
+	{
+		if (node == null)
+		{
+			return 0;
+		}
+		
+		int size = 1 + verifySubtreeSizes(node.getLeft()) + verifySubtreeSizes(node.getRight());
+		assert node.getSubtreeSize() == size;
+		return size;
 	}
 	
 	private static int verifyRBTreeInvariants(RBTree.RBNode node, int minKey, int maxKey)
@@ -0,0 +1,102 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * TreeGenerator
+ *
+ * Writes the primitive key trees - IntRBTree, LongRBTree and DoubleRBTree -
+ * from one template, so the three stay the same tree with a different key
+ * type. Every tree is plain source with its own key arrays and comparisons,
+ * so no key is ever boxed.
+ *
+ * In the template, $Name$ stands for the tree's name (Int, Long, Double) and
+ * $key$ for its key type (int, long, double). A line of "#if Name..." keeps
+ * the lines up to the matching "#else" or "#end" only in the trees named in
+ * it, and "#else" keeps the rest only in the others. These lines can't nest,
+ * and are dropped from the output.
+ *
+ * usage: java TreeGenerator [template] [output-dir]
+ *
+ * run it from the repository root after changing the template, and commit
+ * the template with the trees it generated.
+ *
+ */
+
+public class TreeGenerator {
+	private static final String DEFAULT_TEMPLATE = "templates/PrimitiveRBTree.template";
+	private static final String DEFAULT_OUTPUT_DIR = "src";
+
+	// the tree names, and their key types in the same order:
+	private static final String[] NAMES = {"Int", "Long", "Double"};
+	private static final String[] KEY_TYPES = {"int", "long", "double"};
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static void main(String[] args) throws IOException {
+		File template = new File((args.length > 0) ? args[0] : DEFAULT_TEMPLATE);
+		File outputDir = new File((args.length > 1) ? args[1] : DEFAULT_OUTPUT_DIR);
+
+		List<String> lines = Files.readAllLines(template.toPath(), UTF8);
+		for (int ix = 0; ix < NAMES.length; ix++) {
+			File output = new File(outputDir, NAMES[ix] + "RBTree.java");
+			Files.write(output.toPath(), generate(lines, NAMES[ix], KEY_TYPES[ix]), UTF8);
+			System.out.println("wrote " + output);
+		}
+	}
+
+	/**
+	 * public static List<String> generate(List<String> template, String name,
+	 *                                     String keyType)
+	 *
+	 * returns the lines of the tree called name with keys of keyType - the
+	 * template with its conditional lines resolved and its tokens replaced.
+	 *
+	 * throws IllegalArgumentException if the conditional lines are unbalanced
+	 * or nested.
+	 *
+	 * O(length of the template)
+	 */
+	public static List<String> generate(List<String> template, String name, String keyType) {
+		List<String> result = new ArrayList<String>(template.size());
+		// whether we're inside an #if, and whether its current branch is kept:
+		boolean inside = false;
+		boolean keep = true;
+
+		for (int ix = 0; ix < template.size(); ix++) {
+			String line = template.get(ix);
+			String directive = line.trim();
+			if (directive.startsWith("#if ")) {
+				if (inside) {
+					throw new IllegalArgumentException("nested #if at line " + (ix + 1));
+				}
+				List<String> names = Arrays.asList(directive.substring(4).trim().split("\\s+"));
+				inside = true;
+				keep = names.contains(name);
+			} else if (directive.equals("#else")) {
+				if (!inside) {
+					throw new IllegalArgumentException("#else without #if at line " + (ix + 1));
+				}
+				keep = !keep;
+			} else if (directive.equals("#end")) {
+				if (!inside) {
+					throw new IllegalArgumentException("#end without #if at line " + (ix + 1));
+				}
+				inside = false;
+				keep = true;
+			} else if (keep) {
+				result.add(line.replace("$Name$", name).replace("$key$", keyType));
+			}
+		}
+
+		if (inside) {
+			throw new IllegalArgumentException("#if without #end");
+		}
+		return result;
+	}
+}
@@ -0,0 +1,384 @@
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ *
+ * TreeMetrics
+ *
+ * Operation metrics of one RBTree or more, collected only while they're set
+ * on the tree (RBTree.setMetrics) - a tree without metrics pays a null check
+ * per operation and nothing else.
+ *
+ * - the latency of every insert, delete and search - by key, with a finger,
+ *   in a batch or by a poll - in nanoseconds
+ * - the path length of every search by key from the root - the nodes it
+ *   compared k with
+ * - the loop iterations of every fixup after an insert or a delete - how far
+ *   up the tree the rebalancing cascaded
+ * - the number of rotations, whatever did them
+ *
+ * Split, join, the set operations and the bulk builders make new trees, and
+ * are recorded only by the metrics of those trees, if they're given any.
+ *
+ * Counters are LongAdders and histogram buckets are atomic, so trees read by
+ * many threads (or several trees) can share one TreeMetrics. A histogram is
+ * log-linear, like an HDR histogram: 16 buckets for every power of 2, so a
+ * percentile is at most 1/16 above the value it stands for.
+ *
+ * The metrics can be read directly, or through JMX once registered.
+ *
+ */
+
+public class TreeMetrics implements TreeMetricsMXBean {
+	private final Histogram insertLatency = new Histogram();
+	private final Histogram deleteLatency = new Histogram();
+	private final Histogram searchLatency = new Histogram();
+	private final Histogram searchPathLength = new Histogram();
+	private final Histogram insertFixupLength = new Histogram();
+	private final Histogram deleteFixupLength = new Histogram();
+	private final LongAdder rotations = new LongAdder();
+
+	/**
+	 * the histograms of the metrics, and the number of rotations
+	 */
+
+	public Histogram insertLatency() {
+		return this.insertLatency;
+	}
+
+	public Histogram deleteLatency() {
+		return this.deleteLatency;
+	}
+
+	public Histogram searchLatency() {
+		return this.searchLatency;
+	}
+
+	public Histogram searchPathLength() {
+		return this.searchPathLength;
+	}
+
+	public Histogram insertFixupLength() {
+		return this.insertFixupLength;
+	}
+
+	public Histogram deleteFixupLength() {
+		return this.deleteFixupLength;
+	}
+
+	public long rotations() {
+		return this.rotations.sum();
+	}
+
+	/**
+	 * the TreeMetricsMXBean attributes - snapshots of the histograms
+	 */
+
+	public Snapshot getInsertLatency() {
+		return this.insertLatency.snapshot();
+	}
+
+	public Snapshot getDeleteLatency() {
+		return this.deleteLatency.snapshot();
+	}
+
+	public Snapshot getSearchLatency() {
+		return this.searchLatency.snapshot();
+	}
+
+	public Snapshot getSearchPathLength() {
+		return this.searchPathLength.snapshot();
+	}
+
+	public Snapshot getInsertFixupLength() {
+		return this.insertFixupLength.snapshot();
+	}
+
+	public Snapshot getDeleteFixupLength() {
+		return this.deleteFixupLength.snapshot();
+	}
+
+	public long getRotations() {
+		return rotations();
+	}
+
+	/**
+	 * public void reset()
+	 *
+	 * zeroes every metric. an operation recorded at the same time may be
+	 * partly kept.
+	 */
+	public void reset() {
+		this.insertLatency.reset();
+		this.deleteLatency.reset();
+		this.searchLatency.reset();
+		this.searchPathLength.reset();
+		this.insertFixupLength.reset();
+		this.deleteFixupLength.reset();
+		this.rotations.reset();
+	}
+
+	/**
+	 * public ObjectName register(String name) throws JMException
+	 *
+	 * registers the metrics in the platform MBean server, as
+	 * "RBTree:type=TreeMetrics,name=<name>", and returns their object name
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName("RBTree:type=TreeMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * public void unregister(ObjectName objectName) throws JMException
+	 *
+	 * removes metrics registered under objectName from the platform MBean
+	 * server
+	 */
+	public void unregister(ObjectName objectName) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+	}
+
+	/**
+	 * Package private methods - recording, called by RBTree
+	 */
+
+	void recordInsert(long nanos) {
+		this.insertLatency.record(nanos);
+	}
+
+	void recordDelete(long nanos) {
+		this.deleteLatency.record(nanos);
+	}
+
+	void recordSearch(long nanos) {
+		this.searchLatency.record(nanos);
+	}
+
+	void recordSearch(long nanos, int pathLength) {
+		this.searchLatency.record(nanos);
+		this.searchPathLength.record(pathLength);
+	}
+
+	void recordInsertFixup(int iterations) {
+		this.insertFixupLength.record(iterations);
+	}
+
+	void recordDeleteFixup(int iterations) {
+		this.deleteFixupLength.record(iterations);
+	}
+
+	void recordRotation() {
+		this.rotations.increment();
+	}
+
+	/**
+	 * Helper classes
+	 */
+
+	/**
+	 * public static class Histogram
+	 *
+	 * counts non-negative values in log-linear buckets: values below 16 have
+	 * a bucket each, and every power of 2 above them is split into 16 equal
+	 * buckets. recording is O(1) and allocation free, and safe from many
+	 * threads; reading while recording sees some of the concurrent values.
+	 */
+	public static class Histogram {
+		// log2 of the buckets per power of 2:
+		private static final int SUB_BUCKET_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		// the highest bit of a non-negative long is bit 62:
+		private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * public void record(long value)
+		 *
+		 * adds a value - a negative one counts as 0
+		 *
+		 * O(1)
+		 */
+		public void record(long value) {
+			value = Math.max(value, 0);
+			this.buckets.incrementAndGet(bucketOf(value));
+			this.count.increment();
+			this.sum.add(value);
+
+			long currentMax = this.max.get();
+			while (value > currentMax && !this.max.compareAndSet(currentMax, value)) {
+				currentMax = this.max.get();
+			}
+		}
+
+		/**
+		 * public long count(), public double mean(), public long max()
+		 *
+		 * the number of values, their mean (0 if there are none) and the
+		 * largest of them (0 if there are none)
+		 */
+
+		public long count() {
+			return this.count.sum();
+		}
+
+		public double mean() {
+			long count = count();
+			return (count == 0) ? 0 : (double)this.sum.sum() / count;
+		}
+
+		public long max() {
+			return this.max.get();
+		}
+
+		/**
+		 * public long percentile(double p)
+		 *
+		 * returns a value at least as large as a p fraction of the values
+		 * (0 <= p <= 1): the top of the bucket holding the value at rank p,
+		 * but not above max(). 0 if there are no values.
+		 *
+		 * throws IllegalArgumentException if p is not between 0 and 1.
+		 *
+		 * O(buckets)
+		 */
+		public long percentile(double p) {
+			if (!(p >= 0 && p <= 1)) {
+				throw new IllegalArgumentException("p = " + p);
+			}
+			long total = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				total += this.buckets.get(bucket);
+			}
+			if (total == 0) {
+				return 0;
+			}
+
+			long rank = Math.max(1, (long)Math.ceil(p * total));
+			long seen = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				seen += this.buckets.get(bucket);
+				if (seen >= rank) {
+					return Math.min(topOf(bucket), max());
+				}
+			}
+			return max();
+		}
+
+		/**
+		 * public Snapshot snapshot()
+		 *
+		 * returns the count, mean, max and common percentiles of the values
+		 *
+		 * O(buckets)
+		 */
+		public Snapshot snapshot() {
+			return new Snapshot(count(), mean(), max(), percentile(0.5), percentile(0.9), percentile(0.99), percentile(0.999));
+		}
+
+		/**
+		 * public void reset()
+		 *
+		 * drops all the values
+		 */
+		public void reset() {
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				this.buckets.set(bucket, 0);
+			}
+			this.count.reset();
+			this.sum.reset();
+			this.max.set(0);
+		}
+
+		// returns the bucket of a non-negative value - O(1)
+		private static int bucketOf(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int)value;
+			}
+			// the bits below the highest one, cut to SUB_BUCKET_BITS, pick the sub bucket:
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+		}
+
+		// returns the largest value of a bucket - O(1)
+		private static long topOf(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			long bottom = (1L << exponent) | ((long)(bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS));
+			return bottom + ((1L << (exponent - SUB_BUCKET_BITS)) - 1);
+		}
+	}
+
+	/**
+	 * public static class Snapshot
+	 *
+	 * the summary of a histogram at one moment - shown by JMX as composite
+	 * data with these attributes
+	 */
+	public static class Snapshot {
+		private final long count;
+		private final double mean;
+		private final long max;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long p999;
+
+		@ConstructorProperties({"count", "mean", "max", "p50", "p90", "p99", "p999"})
+		public Snapshot(long count, double mean, long max, long p50, long p90, long p99, long p999) {
+			this.count = count;
+			this.mean = mean;
+			this.max = max;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.p999 = p999;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+
+		public double getMean() {
+			return this.mean;
+		}
+
+		public long getMax() {
+			return this.max;
+		}
+
+		public long getP50() {
+			return this.p50;
+		}
+
+		public long getP90() {
+			return this.p90;
+		}
+
+		public long getP99() {
+			return this.p99;
+		}
+
+		public long getP999() {
+			return this.p999;
+		}
+
+		public String toString() {
+			return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+					this.count, this.mean, this.p50, this.p90, this.p99, this.p999, this.max);
+		}
+	}
+}
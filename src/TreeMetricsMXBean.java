@@ -0,0 +1,27 @@
+/**
+ *
+ * TreeMetricsMXBean
+ *
+ * The JMX view of TreeMetrics: a snapshot of every histogram (count, mean,
+ * max and percentiles, as composite data), the number of rotations, and a
+ * reset operation.
+ *
+ */
+
+public interface TreeMetricsMXBean {
+	TreeMetrics.Snapshot getInsertLatency();
+
+	TreeMetrics.Snapshot getDeleteLatency();
+
+	TreeMetrics.Snapshot getSearchLatency();
+
+	TreeMetrics.Snapshot getSearchPathLength();
+
+	TreeMetrics.Snapshot getInsertFixupLength();
+
+	TreeMetrics.Snapshot getDeleteFixupLength();
+
+	long getRotations();
+
+	void reset();
+}
@@ -0,0 +1,296 @@
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ *
+ * ValueArena
+ *
+ * A store of String values as UTF-8 bytes, packed into large shared byte
+ * chunks instead of a String object (and its array) per value. A value is
+ * referenced by an int handle, and decoded to a new String on every get.
+ *
+ * A handle is an index into a table of slots - where its bytes are, how long
+ * they are and how many holders it has - so compaction can move the bytes
+ * without changing any handle. With deduplication, adding a value equal to
+ * a stored one returns the stored one's handle, and each add must be matched
+ * by a release.
+ *
+ * Releasing the last holder of a value leaves a hole in its chunk. When the
+ * holes add up to more than the live bytes (and at least a chunk), the
+ * arena compacts itself: the live values are copied into new chunks, in
+ * slot order, and the old chunks are dropped.
+ *
+ */
+
+public class ValueArena {
+	// the handle of null:
+	public static final int NULL_HANDLE = -1;
+
+	// the size of a chunk; a longer value gets a chunk of its own:
+	private static final int CHUNK_SIZE = 1 << 16;
+	// the end of a bucket chain or of the free slot list:
+	private static final int NO_SLOT = -1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final boolean deduplicate;
+
+	private byte[][] chunks = new byte[4][];
+	private int chunkCount;
+	// the bytes used in the last chunk:
+	private int chunkUsed;
+
+	// the slot table - where the bytes of every handle are, and its holders:
+	private int[] slotChunk = new int[16];
+	private int[] slotOffset = new int[16];
+	private int[] slotLength = new int[16];
+	private int[] slotHolders = new int[16];
+	// the next slot in a bucket chain for live slots, in the free list for free ones:
+	private int[] slotNext = new int[16];
+	private int[] slotHash;
+	private int slotsUsed;
+	private int freeSlot = NO_SLOT;
+
+	// the first slot of every bucket chain, for deduplication:
+	private int[] buckets;
+
+	private int values;
+	private long liveBytes;
+	private long holeBytes;
+
+	/**
+	 * public ValueArena(boolean deduplicate)
+	 *
+	 * creates an empty arena, which stores equal values once if deduplicate
+	 * is true
+	 */
+	public ValueArena(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+		if (deduplicate) {
+			this.slotHash = new int[16];
+			this.buckets = new int[16];
+			Arrays.fill(this.buckets, NO_SLOT);
+		}
+	}
+
+	/**
+	 * public int add(String value)
+	 *
+	 * stores a value and returns its handle, or NULL_HANDLE for null. with
+	 * deduplication, returns the handle of an equal stored value if there's
+	 * one, with one more holder.
+	 *
+	 * O(length of value), amortized O(1) for growing the tables
+	 */
+	public int add(String value) {
+		if (value == null) {
+			return NULL_HANDLE;
+		}
+
+		byte[] bytes = value.getBytes(UTF8);
+		int hash = 0;
+		if (this.deduplicate) {
+			hash = Arrays.hashCode(bytes);
+			for (int slot = this.buckets[hash & (this.buckets.length - 1)]; slot != NO_SLOT; slot = this.slotNext[slot]) {
+				if (this.slotHash[slot] == hash && holds(slot, bytes)) {
+					this.slotHolders[slot]++;
+					return slot;
+				}
+			}
+		}
+
+		int slot = allocateSlot();
+		store(slot, bytes, 0, bytes.length);
+		this.slotHolders[slot] = 1;
+		this.values++;
+		this.liveBytes += bytes.length;
+
+		if (this.deduplicate) {
+			this.slotHash[slot] = hash;
+			link(slot);
+			if (this.values > this.buckets.length) {
+				rehash(2 * this.buckets.length);
+			}
+		}
+		return slot;
+	}
+
+	/**
+	 * public String get(int handle)
+	 *
+	 * returns the value of a handle - a new String - or null for NULL_HANDLE
+	 *
+	 * O(length of the value)
+	 */
+	public String get(int handle) {
+		if (handle == NULL_HANDLE) {
+			return null;
+		}
+		return new String(this.chunks[this.slotChunk[handle]], this.slotOffset[handle], this.slotLength[handle], UTF8);
+	}
+
+	/**
+	 * public void release(int handle)
+	 *
+	 * drops a holder of a handle (nothing for NULL_HANDLE). the handle is
+	 * invalid after its last holder drops it, and may be returned by a later
+	 * add. may compact the arena.
+	 *
+	 * O(1), amortized over the compactions
+	 */
+	public void release(int handle) {
+		if (handle == NULL_HANDLE || --this.slotHolders[handle] > 0) {
+			return;
+		}
+
+		if (this.deduplicate) {
+			unlink(handle);
+		}
+		this.values--;
+		this.liveBytes -= this.slotLength[handle];
+		this.holeBytes += this.slotLength[handle];
+		this.slotNext[handle] = this.freeSlot;
+		this.freeSlot = handle;
+
+		if (this.holeBytes > this.liveBytes && this.holeBytes >= CHUNK_SIZE) {
+			compact();
+		}
+	}
+
+	/**
+	 * public void compact()
+	 *
+	 * copies the live values into new chunks, leaving no holes between them;
+	 * the handles stay valid
+	 *
+	 * O(live bytes + handles ever used)
+	 */
+	public void compact() {
+		byte[][] oldChunks = this.chunks;
+		this.chunks = new byte[4][];
+		this.chunkCount = 0;
+		this.chunkUsed = 0;
+
+		for (int slot = 0; slot < this.slotsUsed; slot++) {
+			if (this.slotHolders[slot] > 0) {
+				store(slot, oldChunks[this.slotChunk[slot]], this.slotOffset[slot], this.slotLength[slot]);
+			}
+		}
+		this.holeBytes = 0;
+	}
+
+	/**
+	 * the number of distinct live values, their bytes, the bytes of released
+	 * values not compacted yet, and the bytes of all the chunks
+	 */
+
+	public int values() {
+		return this.values;
+	}
+
+	public long liveBytes() {
+		return this.liveBytes;
+	}
+
+	public long holeBytes() {
+		return this.holeBytes;
+	}
+
+	public long chunkBytes() {
+		long total = 0;
+		for (int ix = 0; ix < this.chunkCount; ix++) {
+			total += this.chunks[ix].length;
+		}
+		return total;
+	}
+
+	/**
+	 * Private methods
+	 */
+
+	// returns true iff slot holds exactly these bytes - O(length)
+	private boolean holds(int slot, byte[] bytes) {
+		if (this.slotLength[slot] != bytes.length) {
+			return false;
+		}
+		byte[] chunk = this.chunks[this.slotChunk[slot]];
+		int offset = this.slotOffset[slot];
+		for (int ix = 0; ix < bytes.length; ix++) {
+			if (chunk[offset + ix] != bytes[ix]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// copies bytes to the end of the last chunk, or of a new one, for slot - O(length)
+	private void store(int slot, byte[] source, int offset, int length) {
+		if (this.chunkCount == 0 || this.chunkUsed + length > this.chunks[this.chunkCount - 1].length) {
+			if (this.chunkCount == this.chunks.length) {
+				this.chunks = Arrays.copyOf(this.chunks, 2 * this.chunkCount);
+			}
+			this.chunks[this.chunkCount++] = new byte[Math.max(CHUNK_SIZE, length)];
+			this.chunkUsed = 0;
+		}
+
+		System.arraycopy(source, offset, this.chunks[this.chunkCount - 1], this.chunkUsed, length);
+		this.slotChunk[slot] = this.chunkCount - 1;
+		this.slotOffset[slot] = this.chunkUsed;
+		this.slotLength[slot] = length;
+		this.chunkUsed += length;
+	}
+
+	// returns a free slot, growing the table if there's none - amortized O(1)
+	private int allocateSlot() {
+		if (this.freeSlot != NO_SLOT) {
+			int slot = this.freeSlot;
+			this.freeSlot = this.slotNext[slot];
+			return slot;
+		}
+
+		if (this.slotsUsed == this.slotChunk.length) {
+			int capacity = 2 * this.slotsUsed;
+			this.slotChunk = Arrays.copyOf(this.slotChunk, capacity);
+			this.slotOffset = Arrays.copyOf(this.slotOffset, capacity);
+			this.slotLength = Arrays.copyOf(this.slotLength, capacity);
+			this.slotHolders = Arrays.copyOf(this.slotHolders, capacity);
+			this.slotNext = Arrays.copyOf(this.slotNext, capacity);
+			if (this.deduplicate) {
+				this.slotHash = Arrays.copyOf(this.slotHash, capacity);
+			}
+		}
+		return this.slotsUsed++;
+	}
+
+	// adds a live slot to the head of its bucket chain - O(1)
+	private void link(int slot) {
+		int bucket = this.slotHash[slot] & (this.buckets.length - 1);
+		this.slotNext[slot] = this.buckets[bucket];
+		this.buckets[bucket] = slot;
+	}
+
+	// removes a slot from its bucket chain - O(chain length)
+	private void unlink(int slot) {
+		int bucket = this.slotHash[slot] & (this.buckets.length - 1);
+		if (this.buckets[bucket] == slot) {
+			this.buckets[bucket] = this.slotNext[slot];
+			return;
+		}
+		int previous = this.buckets[bucket];
+		while (this.slotNext[previous] != slot) {
+			previous = this.slotNext[previous];
+		}
+		this.slotNext[previous] = this.slotNext[slot];
+	}
+
+	// rebuilds the bucket chains with the given (power of 2) number of buckets - O(slots)
+	private void rehash(int bucketCount) {
+		this.buckets = new int[bucketCount];
+		Arrays.fill(this.buckets, NO_SLOT);
+		for (int slot = 0; slot < this.slotsUsed; slot++) {
+			if (this.slotHolders[slot] > 0) {
+				link(slot);
+			}
+		}
+	}
+}